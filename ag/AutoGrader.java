@@ -79,6 +79,10 @@ public class AutoGrader {
 		}
 	}
 
+	boolean hasArgument(String key) {
+		return testArgs.containsKey(key);
+	}
+
 	String getStringArgument(String key) {
 		String value = (String) testArgs.get(key);
 		Lib.assertTrue(value != null, "getStringArgument(" + key
@@ -193,6 +197,96 @@ public class AutoGrader {
 		privilege.tcb.authorizeDestroy(currentThread);
 	}
 
+	/**
+	 * Notify the autograder that the current thread must wait for a lock
+	 * that another thread holds. <tt>Lock.acquire()</tt> <i>must</i> call this
+	 * method before putting the thread to sleep.
+	 * 
+	 * @param lock the lock being waited for.
+	 */
+	public void waitingForLock(Lock lock) {
+	}
+
+	/**
+	 * Notify the autograder that the current thread now holds a lock.
+	 * <tt>Lock.acquire()</tt> <i>must</i> call this method before returning.
+	 * 
+	 * @param lock the lock that was acquired.
+	 */
+	public void acquiredLock(Lock lock) {
+	}
+
+	/**
+	 * Notify the autograder that the current thread is releasing a lock.
+	 * <tt>Lock.release()</tt> <i>must</i> call this method before handing the
+	 * lock to another thread.
+	 * 
+	 * @param lock the lock being released.
+	 */
+	public void releasingLock(Lock lock) {
+	}
+
+	/**
+	 * Notify the autograder that the current thread must wait in
+	 * <tt>P()</tt> for a semaphore whose value is zero.
+	 * <tt>Semaphore.P()</tt> <i>must</i> call this method before putting the
+	 * thread to sleep.
+	 * 
+	 * @param semaphore the semaphore being waited for.
+	 */
+	public void waitingForSemaphore(Semaphore semaphore) {
+	}
+
+	/**
+	 * Notify the autograder that the current thread has decremented a
+	 * semaphore. <tt>Semaphore.P()</tt> <i>must</i> call this method before
+	 * returning.
+	 * 
+	 * @param semaphore the semaphore that was decremented.
+	 */
+	public void acquiredSemaphore(Semaphore semaphore) {
+	}
+
+	/**
+	 * Notify the autograder that the current thread is incrementing a
+	 * semaphore. <tt>Semaphore.V()</tt> <i>must</i> call this method before
+	 * waking another thread.
+	 * 
+	 * @param semaphore the semaphore being incremented.
+	 */
+	public void releasingSemaphore(Semaphore semaphore) {
+	}
+
+	/**
+	 * Notify the autograder that the current thread is going to sleep on a
+	 * condition variable. <tt>Condition2.sleep()</tt> <i>must</i> call this
+	 * method before putting the thread to sleep.
+	 * 
+	 * @param condition the condition variable being slept on.
+	 */
+	public void sleepingOnCondition(Condition2 condition) {
+	}
+
+	/**
+	 * Notify the autograder that the current thread has been woken from a
+	 * condition variable. <tt>Condition2.sleep()</tt> <i>must</i> call this
+	 * method before reacquiring the lock.
+	 * 
+	 * @param condition the condition variable that was slept on.
+	 */
+	public void wokeOnCondition(Condition2 condition) {
+	}
+
+	/**
+	 * Notify the autograder that the current thread is waking a thread
+	 * sleeping on a condition variable. <tt>Condition2.wake()</tt>
+	 * <i>must</i> call this method before waking the thread.
+	 * 
+	 * @param condition the condition variable.
+	 */
+	public void wakingCondition(Condition2 condition) {
+	}
+
 	/**
 	 * Notify the autograder that a timer interrupt occurred and was handled by
 	 * software if a timer interrupt handler was installed. Called by the
@@ -0,0 +1,560 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.network.*;
+import nachos.threads.*;
+
+import java.io.File;
+
+/**
+ * An autograder that measures how fast the simulator runs, instead of testing
+ * a kernel. It runs a set of microbenchmarks over the simulator's hot paths,
+ * each repeated for some warmup rounds and then some measured rounds, and
+ * reports the mean and best wall-clock time per operation along with the
+ * simulated ticks per operation.
+ *
+ * <p>
+ * The following <tt>-#</tt> arguments are recognized:
+ * <ul>
+ * <li><tt>ops</tt>: the number of operations in each round (10000);
+ * <li><tt>warmup</tt>: the number of rounds run before measuring (3);
+ * <li><tt>rounds</tt>: the number of rounds measured (5);
+ * <li><tt>only</tt>: the name of the single benchmark to run;
+ * <li><tt>alarmThreads</tt>: the number of threads sleeping at once in the
+ * alarm benchmark (100);
+ * <li><tt>fileSize</tt>: the size of the file in the file benchmarks, in KB
+ * (4096);
+ * <li><tt>micro</tt>: if <tt>false</tt>, skip the microbenchmarks and instead
+ * run the kernel, usually on a program given with <tt>-x</tt>, reporting how
+ * many simulated instructions it executed per second.
+ * </ul>
+ *
+ * <p>
+ * <tt>translate</tt> measures the page table when <tt>Processor.usingTLB</tt>
+ * is <tt>false</tt> and the TLB when it is <tt>true</tt>.
+ *
+ * <p>
+ * <tt>privilege</tt>, <tt>newThread</tt>, <tt>thread</tt> and <tt>open</tt>
+ * measure the paths that the security manager guards: entering privileged
+ * code, constructing the Java thread behind each <tt>KThread</tt>, forking
+ * and joining a <tt>KThread</tt>, and opening a host file through the stub
+ * file system. Comparing a run with <tt>NachosSecurityManager.trusted</tt>
+ * set to <tt>true</tt> against one without shows what the checks cost.
+ * Starting a host thread costs far more than the checks, so
+ * <tt>thread</tt> changes little either way; <tt>newThread</tt> shows the
+ * checked step alone.
+ *
+ * <p>
+ * The file benchmarks run the same requests through a
+ * <tt>StubFileSystem</tt> and a <tt>MappedFileSystem</tt> over the test
+ * directory, whichever of the two <tt>StubFileSystem.mapped</tt> selects.
+ * Each operation of <tt>stubSequential</tt> and <tt>mappedSequential</tt>
+ * writes a 64KB block at the end of a growing file and later reads it back,
+ * wrapping around at <tt>fileSize</tt>; each of <tt>stubRandom</tt> and
+ * <tt>mappedRandom</tt> reads or writes a 1KB block at a scattered position
+ * in a file of <tt>fileSize</tt>. Both pay the same simulated delay per
+ * request, so the difference between them is the host's cost of a request.
+ */
+public class BenchGrader extends AutoGrader {
+	void init() {
+		ops = hasArgument("ops") ? getIntegerArgument("ops") : 10000;
+		warmup = hasArgument("warmup") ? getIntegerArgument("warmup") : 3;
+		rounds = hasArgument("rounds") ? getIntegerArgument("rounds") : 5;
+		only = hasArgument("only") ? getStringArgument("only") : null;
+		alarmThreads = hasArgument("alarmThreads") ? getIntegerArgument(
+				"alarmThreads") : 100;
+		fileSize = hasArgument("fileSize") ? getIntegerArgument("fileSize")
+				* 1024 : 4096 * 1024;
+		micro = hasArgument("micro") ? getBooleanArgument("micro") : true;
+
+		Lib.assertTrue(ops > 0 && warmup >= 0 && rounds > 0 && alarmThreads > 0
+				&& fileSize >= sequentialBlockSize);
+	}
+
+	void run() {
+		if (!micro) {
+			runProgram();
+			return;
+		}
+
+		System.out.print("\n");
+
+		bench("interrupt", new Benchmark() {
+			void run(int n) {
+				benchInterrupt(n);
+			}
+		});
+		bench("translate", new Benchmark() {
+			void run(int n) {
+				benchTranslate(n);
+			}
+		});
+		bench("yield", new Benchmark() {
+			void run(int n) {
+				benchYield(n);
+			}
+		});
+		bench("lock", new Benchmark() {
+			void run(int n) {
+				benchLock(n);
+			}
+		});
+		bench("semaphore", new Benchmark() {
+			void run(int n) {
+				benchSemaphore(n);
+			}
+		});
+		bench("alarm", new Benchmark() {
+			void run(int n) {
+				benchAlarm(n);
+			}
+		});
+		bench("mail", new Benchmark() {
+			void run(int n) {
+				benchMail(n);
+			}
+		});
+		bench("privilege", new Benchmark() {
+			void run(int n) {
+				benchPrivilege(n);
+			}
+		});
+		bench("newThread", new Benchmark() {
+			void run(int n) {
+				benchNewThread(n);
+			}
+		});
+		bench("thread", new Benchmark() {
+			void run(int n) {
+				benchThread(n);
+			}
+		});
+		if (Machine.stubFileSystem() != null) {
+			bench("open", new Benchmark() {
+				void run(int n) {
+					benchOpen(n);
+				}
+			});
+
+			File directory = Machine.testDirectory();
+			benchFiles("stub", new StubFileSystem(privilege, directory));
+			benchFiles("mapped", new MappedFileSystem(privilege, directory));
+		}
+
+		kernel.terminate();
+	}
+
+	/**
+	 * Run the kernel on its shell program, and report the simulated
+	 * instruction rate when the machine halts.
+	 */
+	private void runProgram() {
+		final long startTime = System.nanoTime();
+
+		privilege.addExitNotificationHandler(new Runnable() {
+			public void run() {
+				long nanos = Math.max(1, System.nanoTime() - startTime);
+				long instructions = privilege.stats.userTicks / Stats.UserTick;
+
+				System.out.println("bench program: " + instructions
+						+ " instructions in " + (nanos / 1000000) + " ms, "
+						+ (instructions * 1000000000L / nanos)
+						+ " instructions/sec");
+			}
+		});
+
+		kernel.run();
+		kernel.terminate();
+	}
+
+	private void bench(String name, Benchmark benchmark) {
+		if (only != null && !only.equals(name))
+			return;
+
+		for (int i = 0; i < warmup; i++)
+			benchmark.run(ops);
+
+		long total = 0, best = Long.MAX_VALUE;
+		long startTicks = privilege.stats.totalTicks;
+
+		for (int i = 0; i < rounds; i++) {
+			long start = System.nanoTime();
+			benchmark.run(ops);
+			long elapsed = System.nanoTime() - start;
+
+			total += elapsed;
+			best = Math.min(best, elapsed);
+		}
+
+		long ticks = privilege.stats.totalTicks - startTicks;
+		long count = (long) ops * rounds;
+
+		System.out.println("bench " + name + ": " + format(total, count)
+				+ " ns/op (best " + format(best, ops) + "), "
+				+ format(ticks, count) + " ticks/op");
+	}
+
+	private static String format(long total, long count) {
+		long hundredths = total * 100 / count;
+		String fraction = "" + (hundredths % 100);
+
+		return (hundredths / 100) + "." + (fraction.length() < 2 ? "0" : "")
+				+ fraction;
+	}
+
+	/**
+	 * Schedule <i>n</i> interrupts spread over the next few thousand ticks,
+	 * then advance the clock until all of them have been handled.
+	 */
+	private void benchInterrupt(int n) {
+		final int[] handled = new int[1];
+
+		Runnable handler = new Runnable() {
+			public void run() {
+				handled[0]++;
+			}
+		};
+
+		for (int i = 0; i < n; i++)
+			privilege.interrupt.schedule(1 + (i * 7919) % 4096, "bench",
+					handler);
+
+		while (handled[0] < n)
+			privilege.interrupt.tick(true);
+	}
+
+	/**
+	 * Translate <i>n</i> addresses that are all mapped, through whichever of
+	 * the page table or the TLB the processor uses.
+	 */
+	private void benchTranslate(int n) {
+		Processor processor = Machine.processor();
+		int pages = processor.getNumPhysPages();
+
+		TranslationEntry[] pageTable = null;
+		TranslationEntry[] tlb = null;
+
+		if (processor.hasTLB()) {
+			pages = Math.min(pages, processor.getTLBSize());
+
+			tlb = new TranslationEntry[pages];
+			for (int i = 0; i < pages; i++) {
+				tlb[i] = processor.readTLBEntry(i);
+				processor.writeTLBEntry(i, new TranslationEntry(i, i, true,
+						false, false, false));
+			}
+		}
+		else {
+			pageTable = processor.getPageTable();
+
+			TranslationEntry[] table = new TranslationEntry[pages];
+			for (int i = 0; i < pages; i++)
+				table[i] = new TranslationEntry(i, i, true, false, false, false);
+			processor.setPageTable(table);
+		}
+
+		int range = pages * Processor.pageSize;
+		for (int i = 0; i < n; i++) {
+			int vaddr = ((i * 4099) % range) & ~3;
+			int paddr = privilege.processor.translate(vaddr, 4, i % 4 == 0);
+			Lib.assertTrue(paddr == vaddr);
+		}
+
+		if (tlb != null) {
+			for (int i = 0; i < tlb.length; i++)
+				processor.writeTLBEntry(i, tlb[i]);
+		}
+		else {
+			processor.setPageTable(pageTable);
+		}
+	}
+
+	/**
+	 * Two threads yield to each other <i>n</i> times between them, so that
+	 * each yield is a context switch.
+	 */
+	private void benchYield(final int n) {
+		Runnable yielder = new Runnable() {
+			public void run() {
+				for (int i = 0; i < n / 2; i++)
+					KThread.yield();
+			}
+		};
+
+		KThread ping = new KThread(yielder).setName("ping");
+		KThread pong = new KThread(yielder).setName("pong");
+		ping.fork();
+		pong.fork();
+		ping.join();
+		pong.join();
+	}
+
+	/**
+	 * Acquire and release an uncontended lock <i>n</i> times.
+	 */
+	private void benchLock(int n) {
+		Lock lock = new Lock();
+
+		for (int i = 0; i < n; i++) {
+			lock.acquire();
+			lock.release();
+		}
+	}
+
+	/**
+	 * Hand a semaphore back and forth between two threads <i>n</i> times, so
+	 * that every <tt>P()</tt> blocks and every <tt>V()</tt> wakes a thread.
+	 */
+	private void benchSemaphore(final int n) {
+		final Semaphore ping = new Semaphore(0);
+		final Semaphore pong = new Semaphore(0);
+
+		KThread partner = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < n / 2; i++) {
+					ping.P();
+					pong.V();
+				}
+			}
+		}).setName("semaphore partner");
+		partner.fork();
+
+		for (int i = 0; i < n / 2; i++) {
+			ping.V();
+			pong.P();
+		}
+
+		partner.join();
+	}
+
+	/**
+	 * Have <tt>alarmThreads</tt> threads call <tt>Alarm.waitUntil()</tt>
+	 * with varying delays, <i>n</i> times between them.
+	 */
+	private void benchAlarm(int n) {
+		final int waits = Math.max(1, n / alarmThreads);
+
+		KThread[] sleepers = new KThread[alarmThreads];
+		for (int i = 0; i < alarmThreads; i++) {
+			final int id = i;
+
+			sleepers[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < waits; j++)
+						ThreadedKernel.alarm
+								.waitUntil(1 + (id * 31 + j * 17) % 1000);
+				}
+			}).setName("sleeper " + i);
+			sleepers[i].fork();
+		}
+
+		for (int i = 0; i < alarmThreads; i++)
+			sleepers[i].join();
+	}
+
+	/**
+	 * Encode <i>n</i> mail messages into pooled packets, then parse each one
+	 * back out of its bytes and read its contents.
+	 */
+	private void benchMail(int n) {
+		int length = Math.min(16, MailMessage.maxContentsLength);
+
+		try {
+			for (int i = 0; i < n; i++) {
+				byte[] buffer = Packet.allocateBuffer();
+				for (int j = 0; j < length; j++)
+					buffer[MailMessage.contentsOffset + j] = (byte) (i + j);
+
+				MailMessage sent = new MailMessage(1, i % MailMessage.portLimit,
+						0, 1, buffer, length, true);
+
+				Packet packet = new Packet(sent.packet.packetBytes,
+						sent.packet.getLength(), true);
+				MailMessage received = new MailMessage(packet);
+
+				Lib.assertTrue(received.getContents().length == length);
+				received.free();
+			}
+		}
+		catch (MalformedPacketException e) {
+			Lib.assertNotReached();
+		}
+	}
+
+	/**
+	 * Enter and leave privileged code <i>n</i> times.
+	 */
+	private void benchPrivilege(int n) {
+		final int[] count = new int[1];
+
+		Runnable action = new Runnable() {
+			public void run() {
+				count[0]++;
+			}
+		};
+
+		for (int i = 0; i < n; i++)
+			privilege.doPrivileged(action);
+
+		Lib.assertTrue(count[0] == n);
+	}
+
+	/**
+	 * Construct <i>n</i> Java threads with privilege, without starting them.
+	 * This is the step of creating a <tt>KThread</tt> that the security
+	 * manager checks; starting the thread is left to the host.
+	 */
+	private void benchNewThread(int n) {
+		final Runnable nothing = new Runnable() {
+			public void run() {
+			}
+		};
+
+		Runnable construct = new Runnable() {
+			public void run() {
+				new Thread(nothing);
+			}
+		};
+
+		for (int i = 0; i < n; i++)
+			privilege.doPrivileged(construct);
+	}
+
+	/**
+	 * Fork and join <i>n</i> threads that do nothing, one at a time, so that
+	 * each creates and starts a Java thread.
+	 */
+	private void benchThread(int n) {
+		Runnable nothing = new Runnable() {
+			public void run() {
+			}
+		};
+
+		for (int i = 0; i < n; i++) {
+			KThread thread = new KThread(nothing).setName("bench thread");
+			thread.fork();
+			thread.join();
+		}
+	}
+
+	/**
+	 * Open and close a file in the stub file system <i>n</i> times.
+	 */
+	private void benchOpen(int n) {
+		FileSystem fileSystem = Machine.stubFileSystem();
+
+		OpenFile file = fileSystem.open(benchFileName, true);
+		Lib.assertTrue(file != null);
+		file.close();
+
+		for (int i = 0; i < n; i++) {
+			file = fileSystem.open(benchFileName, false);
+			Lib.assertTrue(file != null);
+			file.close();
+		}
+
+		fileSystem.remove(benchFileName);
+	}
+
+	/**
+	 * Run the sequential and random file benchmarks on one file system, named
+	 * after <i>backend</i>.
+	 */
+	private void benchFiles(String backend, final FileSystem fileSystem) {
+		bench(backend + "Sequential", new Benchmark() {
+			void run(int n) {
+				benchSequential(fileSystem, n);
+			}
+		});
+
+		if (only != null && !only.equals(backend + "Random"))
+			return;
+
+		final OpenFile file = fileSystem.open(benchFileName, true);
+		Lib.assertTrue(file != null);
+
+		byte[] block = new byte[sequentialBlockSize];
+		for (int i = 0; i < fileSize / sequentialBlockSize; i++)
+			writeBlock(file, i, block);
+
+		bench(backend + "Random", new Benchmark() {
+			void run(int n) {
+				benchRandom(file, n);
+			}
+		});
+
+		file.close();
+		fileSystem.remove(benchFileName);
+	}
+
+	/**
+	 * Write <i>n</i> large blocks to the end of a new file, one at a time,
+	 * wrapping around at <tt>fileSize</tt>, then read them back in the same
+	 * order.
+	 */
+	private void benchSequential(FileSystem fileSystem, int n) {
+		OpenFile file = fileSystem.open(benchFileName, true);
+		Lib.assertTrue(file != null);
+
+		int blocks = fileSize / sequentialBlockSize;
+
+		byte[] block = new byte[sequentialBlockSize];
+		for (int i = 0; i < n; i++) {
+			block[0] = (byte) i;
+			writeBlock(file, i % blocks, block);
+		}
+
+		for (int i = 0; i < n; i++)
+			readBlock(file, i % blocks, block);
+
+		file.close();
+		fileSystem.remove(benchFileName);
+	}
+
+	/**
+	 * Read or write, alternately, <i>n</i> small blocks scattered over a file
+	 * of <tt>fileSize</tt> bytes.
+	 */
+	private void benchRandom(OpenFile file, int n) {
+		int blocks = fileSize / randomBlockSize;
+
+		byte[] block = new byte[randomBlockSize];
+		for (int i = 0; i < n; i++) {
+			int blockNumber = (int) ((i * 7919L) % blocks);
+
+			if (i % 2 == 0)
+				readBlock(file, blockNumber, block);
+			else
+				writeBlock(file, blockNumber, block);
+		}
+	}
+
+	private static void readBlock(OpenFile file, int number, byte[] block) {
+		int amount = file.read(number * block.length, block, 0, block.length);
+		Lib.assertTrue(amount == block.length);
+	}
+
+	private static void writeBlock(OpenFile file, int number, byte[] block) {
+		int amount = file.write(number * block.length, block, 0, block.length);
+		Lib.assertTrue(amount == block.length);
+	}
+
+	/**
+	 * One benchmark, which performs a given number of operations each round.
+	 */
+	private abstract static class Benchmark {
+		abstract void run(int n);
+	}
+
+	private int ops, warmup, rounds, alarmThreads, fileSize;
+
+	private String only;
+
+	private boolean micro;
+
+	private static final String benchFileName = "bench.tmp";
+
+	private static final int sequentialBlockSize = 0x10000;
+
+	private static final int randomBlockSize = 1024;
+}
@@ -0,0 +1,217 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.network.*;
+import nachos.threads.*;
+
+/**
+ * An autograder that tests the network transport and the fragmenter, instead
+ * of running user programs. A server thread accepts a connection on one port
+ * of a server node, a client connects to it from the kernel's own transport,
+ * and the client streams a known byte pattern that the server checks as it
+ * arrives. It prints how many bytes arrived and how many ticks the transfer
+ * took, and fails if any byte was lost, duplicated or out of order.
+ *
+ * <p>
+ * If the machine has a second network link (<tt>NetworkFabric.links</tt> set
+ * to 2 or more), the server node is a post office, transport and fragmenter
+ * of the grader's own on that link, and every packet crosses the fabric
+ * between two addresses. Otherwise the server node is the kernel itself, and
+ * the packets loop back through its one link.
+ *
+ * <p>
+ * Then a sender thread sends datagrams through <tt>NetKernel.fragmenter</tt>
+ * to the next port of the server node, and they are received and checked. Datagrams are not
+ * retransmitted, so on an unreliable link some are lost, more of them the
+ * more fragments each takes; the grader prints how many arrived, and fails if
+ * none did or if one arrived damaged.
+ *
+ * <p>
+ * It needs the transport and fragmenter of a network kernel, so run it with
+ * <tt>Kernel.kernel</tt> set to <tt>nachos.network.NetKernel</tt> and
+ * <tt>Machine.networkLink</tt> set to <tt>true</tt>. Making the link
+ * unreliable, or setting <tt>NetworkLink.fabric</tt> and
+ * <tt>NetworkFabric.reorder</tt>, exercises retransmission and reordering.
+ *
+ * <p>
+ * The following <tt>-#</tt> arguments are recognized:
+ * <ul>
+ * <li><tt>bytes</tt>: the number of bytes to transfer (20000);
+ * <li><tt>port</tt>: the port the server accepts on (5);
+ * <li><tt>datagrams</tt>: the number of datagrams to send (20);
+ * <li><tt>datagramLength</tt>: the length of each datagram (200).
+ * </ul>
+ */
+public class NetworkGrader extends AutoGrader {
+	void init() {
+		bytes = hasArgument("bytes") ? getIntegerArgument("bytes") : 20000;
+		port = hasArgument("port") ? getIntegerArgument("port") : 5;
+		datagrams = hasArgument("datagrams") ? getIntegerArgument("datagrams")
+				: 20;
+		datagramLength = hasArgument("datagramLength") ? getIntegerArgument(
+				"datagramLength") : 200;
+
+		Lib.assertTrue(bytes >= 0 && port >= 0
+				&& port + 1 < MailMessage.portLimit);
+		Lib.assertTrue(datagrams >= 0 && datagramLength >= 0
+				&& datagramLength <= Fragmenter.maxDatagramLength);
+	}
+
+	void run() {
+		Lib.assertTrue(NetKernel.connections != null
+				&& NetKernel.fragmenter != null,
+				"NetworkGrader needs a NetKernel");
+
+		if (Machine.numNetworkLinks() > 1) {
+			PostOffice postOffice = new PostOffice(Machine.networkLink(1));
+			serverConnections = new ConnectionManager(postOffice);
+			serverFragmenter = new Fragmenter(postOffice);
+			serverLink = postOffice.getLinkAddress();
+		}
+		else {
+			serverConnections = NetKernel.connections;
+			serverFragmenter = NetKernel.fragmenter;
+			serverLink = Machine.networkLink().getLinkAddress();
+		}
+
+		System.out.println("network: link " + Machine.networkLink()
+				.getLinkAddress() + " to link " + serverLink);
+
+		transferStream();
+		transferDatagrams();
+
+		kernel.terminate();
+	}
+
+	/**
+	 * Stream <tt>bytes</tt> bytes through a connection to the server node.
+	 */
+	private void transferStream() {
+		KThread server = new KThread(new Runnable() {
+			public void run() {
+				serve();
+			}
+		}).setName("network grader server");
+		server.fork();
+
+		long startTime = Machine.timer().getTime();
+
+		Connection connection = NetKernel.connections.connect(serverLink,
+				port);
+		Lib.assertTrue(connection != null, "connect failed");
+
+		byte[] data = new byte[bytes];
+		for (int i = 0; i < bytes; i++)
+			data[i] = pattern(i);
+
+		int written = connection.write(data, 0, bytes);
+		connection.close();
+		Lib.assertTrue(written == bytes, "short write: " + written);
+
+		server.join();
+
+		System.out.println("network: transferred " + received + " of " + bytes
+				+ " bytes in " + (Machine.timer().getTime() - startTime)
+				+ " ticks");
+		Lib.assertTrue(received == bytes, "bytes lost");
+	}
+
+	/**
+	 * Accept one connection and read it to the end, checking every byte.
+	 */
+	private void serve() {
+		Connection connection;
+		while ((connection = serverConnections.accept(port)) == null)
+			ThreadedKernel.alarm.waitUntil(pollInterval);
+
+		byte[] buffer = new byte[1024];
+		int amount;
+
+		while ((amount = connection.read(buffer, 0, buffer.length)) != -1) {
+			if (amount == 0) {
+				ThreadedKernel.alarm.waitUntil(pollInterval);
+				continue;
+			}
+
+			for (int i = 0; i < amount; i++) {
+				Lib.assertTrue(buffer[i] == pattern(received + i),
+						"wrong byte at offset " + (received + i));
+			}
+			received += amount;
+		}
+
+		connection.close();
+	}
+
+	/**
+	 * Send <tt>datagrams</tt> datagrams to the server node and check the ones
+	 * that arrive.
+	 */
+	private void transferDatagrams() {
+		if (datagrams == 0)
+			return;
+
+		KThread sender = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < datagrams; i++) {
+					byte[] data = new byte[datagramLength];
+					for (int j = 0; j < datagramLength; j++)
+						data[j] = (byte) (i + j);
+
+					Lib.assertTrue(NetKernel.fragmenter.send(serverLink,
+							port + 1, port, data), "datagram send failed");
+				}
+			}
+		}).setName("network grader sender");
+
+		long startTime = Machine.timer().getTime();
+		sender.fork();
+
+		int arrived = 0;
+		Datagram datagram;
+
+		while (arrived < datagrams
+				&& (datagram = serverFragmenter.receive(port + 1,
+						datagramTimeout)) != null) {
+			Lib.assertTrue(datagram.data.length == datagramLength,
+					"datagram has the wrong length");
+
+			// datagram i counts up from i, so each byte follows the first
+			byte first = datagram.data.length > 0 ? datagram.data[0] : 0;
+			for (int j = 0; j < datagramLength; j++) {
+				Lib.assertTrue(datagram.data[j] == (byte) (first + j),
+						"datagram damaged at offset " + j);
+			}
+			arrived++;
+		}
+
+		sender.join();
+
+		System.out.println("network: received " + arrived + " of " + datagrams
+				+ " datagrams of " + datagramLength + " bytes in "
+				+ (Machine.timer().getTime() - startTime) + " ticks");
+		Lib.assertTrue(arrived > 0, "every datagram was lost");
+	}
+
+	private static byte pattern(int offset) {
+		return (byte) (offset * 7 + offset / 256);
+	}
+
+	private int bytes, port;
+
+	private int datagrams, datagramLength;
+
+	private int received = 0;
+
+	/** The server node's transport, fragmenter and link address. */
+	private ConnectionManager serverConnections;
+
+	private Fragmenter serverFragmenter;
+
+	private int serverLink;
+
+	private static final int pollInterval = 100;
+
+	/** Ticks to wait for the next datagram before giving up on the rest. */
+	private static final int datagramTimeout = 50000;
+}
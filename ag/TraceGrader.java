@@ -0,0 +1,552 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.WeakHashMap;
+
+/**
+ * An autograder that traces the kernel's scheduling and synchronization,
+ * instead of testing it. It runs the kernel as the default autograder does,
+ * and follows every thread through the <tt>readyThread()</tt>,
+ * <tt>runningThread()</tt> and <tt>finishingCurrentThread()</tt> hooks, and
+ * every lock, semaphore and <tt>Condition2</tt> through their hooks, all
+ * measured in simulated ticks. When the machine halts, it prints:
+ * <ul>
+ * <li>the ready-to-run latency, from a thread being made ready to it being
+ * run;
+ * <li>the length of each run quantum, from a thread being run to it giving up
+ * the CPU;
+ * <li>for each lock, how long threads waited to acquire it and how long they
+ * held it;
+ * <li>for each semaphore, how long threads waited in <tt>P()</tt>, and how
+ * often <tt>V()</tt> was called;
+ * <li>for each condition variable, how long threads slept on it before being
+ * woken, and how often it was woken.
+ * </ul>
+ *
+ * <p>
+ * It also writes the whole timeline as a Chrome trace-event file, which
+ * <tt>chrome://tracing</tt> and Perfetto can open. Each thread is a track in
+ * the <tt>threads</tt> process, showing when it ran, sat on the ready queue or
+ * was blocked; each lock is a track in the <tt>locks</tt> process, showing who
+ * held it and who waited for it, and semaphores and condition variables have
+ * processes of their own, showing who waited for them. One tick is shown as
+ * one microsecond.
+ *
+ * <p>
+ * The following <tt>-#</tt> arguments are recognized:
+ * <ul>
+ * <li><tt>trace</tt>: the host file to write the timeline to
+ * (<tt>trace.json</tt>);
+ * <li><tt>maxEvents</tt>: the most timeline events to keep (1000000). Later
+ * events are still counted in the summary;
+ * <li><tt>maxObjects</tt>: the most locks, semaphores and condition variables
+ * of each kind to report one by one (100). Later ones, such as the
+ * semaphores made for each disk request, are reported together;
+ * <li><tt>selfTest</tt>: if <tt>false</tt>, skip <tt>Kernel.selfTest()</tt>
+ * and only trace the kernel running.
+ * </ul>
+ */
+public class TraceGrader extends AutoGrader {
+	void init() {
+		fileName = hasArgument("trace") ? getStringArgument("trace")
+				: "trace.json";
+		maxEvents = hasArgument("maxEvents") ? getIntegerArgument("maxEvents")
+				: 1000000;
+		maxObjects = hasArgument("maxObjects") ? getIntegerArgument(
+				"maxObjects") : 100;
+
+		selfTest = hasArgument("selfTest") ? getBooleanArgument("selfTest")
+				: true;
+
+		Lib.assertTrue(maxEvents >= 0 && maxObjects >= 0);
+
+		locks = new SyncKind("lock", locksPid, "acquires", null);
+		semaphores = new SyncKind("semaphore", semaphoresPid, "P", "V");
+		conditions = new SyncKind("condition", conditionsPid, "sleeps",
+				"wakes");
+
+		privilege.addExitNotificationHandler(new Runnable() {
+			public void run() {
+				finish();
+			}
+		});
+	}
+
+	void run() {
+		if (selfTest)
+			kernel.selfTest();
+		kernel.run();
+		kernel.terminate();
+	}
+
+	public void setIdleThread(KThread idleThread) {
+		super.setIdleThread(idleThread);
+
+		this.idleThread = idleThread;
+	}
+
+	public void readyThread(KThread thread) {
+		super.readyThread(thread);
+
+		long now = getTime();
+		ThreadState state = state(thread);
+
+		// a thread that is yielding stays running until the switch
+		if (thread != running && state.blockedSince >= 0)
+			event('X', "blocked", state.blockedSince, now, threadsPid, state.tid);
+
+		state.blockedSince = -1;
+		state.readySince = now;
+	}
+
+	public void runningThread(KThread thread) {
+		super.runningThread(thread);
+
+		long now = getTime();
+
+		if (running != null) {
+			ThreadState previous = state(running);
+
+			quantum.add(now - previous.runningSince);
+			event('X', "running", previous.runningSince, now, threadsPid,
+					previous.tid);
+
+			if (previous.readySince < 0 && !previous.finished)
+				previous.blockedSince = now;
+		}
+
+		ThreadState state = state(thread);
+
+		if (state.readySince >= 0) {
+			if (thread != idleThread)
+				readyLatency.add(now - state.readySince);
+			event('X', "ready", state.readySince, now, threadsPid, state.tid);
+		}
+
+		state.readySince = -1;
+		state.runningSince = now;
+		running = thread;
+	}
+
+	public void finishingCurrentThread() {
+		super.finishingCurrentThread();
+
+		if (running != null)
+			state(running).finished = true;
+	}
+
+	public void waitingForLock(Lock lock) {
+		super.waitingForLock(lock);
+
+		beginWait(locks.state(lock));
+	}
+
+	public void acquiredLock(Lock lock) {
+		super.acquiredLock(lock);
+
+		SyncState state = locks.state(lock);
+
+		endWait(locks, state);
+		state.heldSince = getTime();
+	}
+
+	public void releasingLock(Lock lock) {
+		super.releasingLock(lock);
+
+		long now = getTime();
+		SyncState state = locks.state(lock);
+
+		state.hold.add(now - state.heldSince);
+		event('X', "held by " + state(running).name, state.heldSince, now,
+				locksPid, state.tid);
+	}
+
+	public void waitingForSemaphore(Semaphore semaphore) {
+		super.waitingForSemaphore(semaphore);
+
+		beginWait(semaphores.state(semaphore));
+	}
+
+	public void acquiredSemaphore(Semaphore semaphore) {
+		super.acquiredSemaphore(semaphore);
+
+		endWait(semaphores, semaphores.state(semaphore));
+	}
+
+	public void releasingSemaphore(Semaphore semaphore) {
+		super.releasingSemaphore(semaphore);
+
+		semaphores.state(semaphore).signals++;
+	}
+
+	public void sleepingOnCondition(Condition2 condition) {
+		super.sleepingOnCondition(condition);
+
+		beginWait(conditions.state(condition));
+	}
+
+	public void wokeOnCondition(Condition2 condition) {
+		super.wokeOnCondition(condition);
+
+		endWait(conditions, conditions.state(condition));
+	}
+
+	public void wakingCondition(Condition2 condition) {
+		super.wakingCondition(condition);
+
+		conditions.state(condition).signals++;
+	}
+
+	/**
+	 * Note that the running thread must wait for a synchronization object.
+	 */
+	private void beginWait(SyncState state) {
+		state.contended++;
+		state(running).waitingSince = getTime();
+	}
+
+	/**
+	 * Note that the running thread has got past a synchronization object,
+	 * recording how long it waited, if it waited at all.
+	 */
+	private void endWait(SyncKind kind, SyncState state) {
+		long now = getTime();
+		ThreadState thread = state(running);
+
+		if (thread.waitingSince >= 0) {
+			state.wait.add(now - thread.waitingSince);
+
+			if (events.size() + 2 <= maxEvents) {
+				long id = waits++;
+				events.add(new Event('b', "wait " + thread.name,
+						thread.waitingSince, 0, kind.pid, state.tid, id));
+				events.add(new Event('e', "wait " + thread.name, now, 0,
+						kind.pid, state.tid, id));
+			}
+			else {
+				droppedEvents += 2;
+			}
+
+			thread.waitingSince = -1;
+		}
+		else {
+			state.wait.add(0);
+		}
+	}
+
+	private ThreadState state(KThread thread) {
+		ThreadState state = threads.get(thread);
+		if (state == null) {
+			state = new ThreadState(threads.size(), thread.getName());
+			threads.put(thread, state);
+		}
+
+		return state;
+	}
+
+	private void event(char phase, String name, long start, long end, int pid,
+			int tid) {
+		if (events.size() < maxEvents)
+			events.add(new Event(phase, name, start, end - start, pid, tid, 0));
+		else
+			droppedEvents++;
+	}
+
+	/**
+	 * Print the summary and write the timeline. Called when the machine
+	 * halts.
+	 */
+	private void finish() {
+		if (running != null) {
+			ThreadState state = state(running);
+			event('X', "running", state.runningSince, getTime(), threadsPid,
+					state.tid);
+		}
+
+		System.out.println("trace: " + threads.size() + " threads, "
+				+ locks.count + " locks, " + semaphores.count + " semaphores, "
+				+ conditions.count + " conditions, " + getTime() + " ticks");
+		System.out.println("\tready latency: " + readyLatency);
+		System.out.println("\trun quantum:   " + quantum);
+
+		locks.print();
+		semaphores.print();
+		conditions.print();
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					writeTrace();
+				}
+				catch (IOException e) {
+					System.out.println("trace: cannot write " + fileName + ": "
+							+ e);
+				}
+			}
+		});
+	}
+
+	private void writeTrace() throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(fileName));
+
+		out.println("{\"traceEvents\": [");
+
+		out.print(metadata("process_name", threadsPid, 0, "threads"));
+		out.println(",");
+		out.print(metadata("process_name", locksPid, 0, "locks"));
+		out.println(",");
+		out.print(metadata("process_name", semaphoresPid, 0, "semaphores"));
+		out.println(",");
+		out.print(metadata("process_name", conditionsPid, 0, "conditions"));
+
+		for (ThreadState state : threads.values()) {
+			out.println(",");
+			out.print(metadata("thread_name", threadsPid, state.tid, state.name
+					+ " #" + state.tid));
+		}
+		locks.printMetadata(out);
+		semaphores.printMetadata(out);
+		conditions.printMetadata(out);
+
+		for (Event event : events) {
+			out.println(",");
+			out.print(event);
+		}
+
+		out.println();
+		out.println("]}");
+		out.close();
+
+		System.out.println("trace: wrote " + events.size() + " events to "
+				+ fileName + (droppedEvents > 0 ? " (" + droppedEvents
+						+ " dropped)" : ""));
+	}
+
+	private static String metadata(String kind, int pid, int tid, String name) {
+		return "{\"name\": \"" + kind + "\", \"ph\": \"M\", \"pid\": " + pid
+				+ ", \"tid\": " + tid + ", \"args\": {\"name\": "
+				+ quote(name) + "}}";
+	}
+
+	private static String quote(String s) {
+		StringBuffer buf = new StringBuffer("\"");
+
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+
+			if (c == '"' || c == '\\')
+				buf.append('\\').append(c);
+			else if (c < ' ')
+				buf.append(' ');
+			else
+				buf.append(c);
+		}
+
+		return buf.append('"').toString();
+	}
+
+	/**
+	 * One timeline event: a complete slice (<tt>X</tt>), or the beginning or
+	 * end of a wait (<tt>b</tt> or <tt>e</tt>), which may overlap other waits
+	 * for the same object.
+	 */
+	private static class Event {
+		Event(char phase, String name, long time, long duration, int pid,
+				int tid, long id) {
+			this.phase = phase;
+			this.name = name;
+			this.time = time;
+			this.duration = duration;
+			this.pid = pid;
+			this.tid = tid;
+			this.id = id;
+		}
+
+		public String toString() {
+			String s = "{\"name\": " + quote(name) + ", \"ph\": \"" + phase
+					+ "\", \"ts\": " + time + ", \"pid\": " + pid
+					+ ", \"tid\": " + tid;
+
+			if (phase == 'X')
+				s += ", \"dur\": " + duration;
+			else
+				s += ", \"cat\": \"wait\", \"id\": " + id;
+
+			return s + "}";
+		}
+
+		char phase;
+
+		String name;
+
+		long time, duration, id;
+
+		int pid, tid;
+	}
+
+	/**
+	 * A count, total and maximum of some durations, in ticks.
+	 */
+	private static class Durations {
+		void add(long ticks) {
+			count++;
+			total += ticks;
+			max = Math.max(max, ticks);
+		}
+
+		public String toString() {
+			return count + " samples, mean "
+					+ (count > 0 ? total / count : 0) + ", max " + max
+					+ ", total " + total + " ticks";
+		}
+
+		long count = 0, total = 0, max = 0;
+	}
+
+	/**
+	 * What the tracer knows about one thread. A time of -1 means the thread
+	 * is not in that state.
+	 */
+	private static class ThreadState {
+		ThreadState(int tid, String name) {
+			this.tid = tid;
+			this.name = name;
+		}
+
+		int tid;
+
+		String name;
+
+		long readySince = -1, runningSince = -1, blockedSince = -1,
+				waitingSince = -1;
+
+		boolean finished = false;
+	}
+
+	/**
+	 * What the tracer knows about one lock, semaphore or condition variable.
+	 * A lock is held; a semaphore or condition variable is signalled.
+	 */
+	private static class SyncState {
+		SyncState(int tid) {
+			this.tid = tid;
+		}
+
+		int tid;
+
+		long heldSince = 0, contended = 0, signals = 0;
+
+		Durations wait = new Durations(), hold = new Durations();
+	}
+
+	/**
+	 * The synchronization objects of one kind. The first
+	 * <tt>maxObjects</tt> are tracked one by one, and the rest share one
+	 * state, so that objects made for every request do not grow the report
+	 * without bound.
+	 */
+	private class SyncKind {
+		SyncKind(String name, int pid, String enter, String signal) {
+			this.name = name;
+			this.pid = pid;
+			this.enter = enter;
+			this.signal = signal;
+		}
+
+		SyncState state(Object object) {
+			SyncState state = objects.get(object);
+			if (state != null)
+				return state;
+
+			if (objects.size() == maxObjects) {
+				if (rest == null)
+					rest = new SyncState(maxObjects);
+				if (restSeen.put(object, Boolean.TRUE) == null)
+					count++;
+				return rest;
+			}
+
+			count++;
+
+			state = new SyncState(objects.size());
+			objects.put(object, state);
+			return state;
+		}
+
+		String label(SyncState state) {
+			return (state == rest) ? "other " + name + "s" : name + " "
+					+ state.tid;
+		}
+
+		void print() {
+			for (SyncState state : objects.values())
+				print(state);
+			if (rest != null)
+				print(rest);
+		}
+
+		private void print(SyncState state) {
+			System.out.println("\t" + label(state) + ": " + state.wait.count
+					+ " " + enter + ", " + state.contended + " contended"
+					+ (signal != null ? ", " + state.signals + " " + signal
+							: ""));
+			System.out.println("\t\twait: " + state.wait);
+			if (state.hold.count > 0)
+				System.out.println("\t\thold: " + state.hold);
+		}
+
+		void printMetadata(PrintWriter out) {
+			for (SyncState state : objects.values()) {
+				out.println(",");
+				out.print(metadata("thread_name", pid, state.tid,
+						label(state)));
+			}
+			if (rest != null) {
+				out.println(",");
+				out.print(metadata("thread_name", pid, rest.tid, label(rest)));
+			}
+		}
+
+		String name, enter, signal;
+
+		int pid;
+
+		/** The number of objects of this kind seen, including the rest. */
+		int count = 0;
+
+		private LinkedHashMap<Object, SyncState> objects = new LinkedHashMap<Object, SyncState>();
+
+		private SyncState rest = null;
+
+		/** The live objects in the rest, so each is counted once. */
+		private WeakHashMap<Object, Boolean> restSeen = new WeakHashMap<Object, Boolean>();
+	}
+
+	private String fileName;
+
+	private int maxEvents, maxObjects;
+
+	private boolean selfTest;
+
+	private long droppedEvents = 0, waits = 0;
+
+	private KThread idleThread = null, running = null;
+
+	private LinkedHashMap<KThread, ThreadState> threads = new LinkedHashMap<KThread, ThreadState>();
+
+	private SyncKind locks, semaphores, conditions;
+
+	private ArrayList<Event> events = new ArrayList<Event>();
+
+	private Durations readyLatency = new Durations(), quantum = new Durations();
+
+	private static final int threadsPid = 1, locksPid = 2, semaphoresPid = 3,
+			conditionsPid = 4;
+}
@@ -0,0 +1,854 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+
+/**
+ * A file system stored on the simulated disk.
+ *
+ * <p>
+ * The disk is laid out as follows:
+ * <ul>
+ * <li>sector 0 holds the superblock, which identifies a formatted disk;
+ * <li>the next <tt>bitmapSectors</tt> sectors hold the free-sector bitmap;
+ * <li>the next <tt>directorySectors</tt> sectors hold the directory, a flat
+ * hash table of <tt>numDirectoryEntries</tt> entries, each a file name and the
+ * sector of the file's inode, probed linearly from the name's hash;
+ * <li>the remaining sectors hold inodes and file data.
+ * </ul>
+ *
+ * <p>
+ * An inode records a file's length and the extents (runs of consecutive
+ * sectors) holding its data. An inode that needs more than
+ * <tt>extentsPerInode</tt> extents continues in another sector. When a file
+ * grows, the allocator first extends its last extent in place and otherwise
+ * looks for a free run long enough for the whole write, so files written
+ * sequentially usually occupy one extent. Each contiguous piece of a read or
+ * write is transferred with a single multi-sector disk request.
+ *
+ * <p>
+ * Setting <tt>DiskFileSystem.extents</tt> to <tt>false</tt> selects a naive
+ * layout for comparison, in which every sector is allocated and transferred
+ * on its own. <tt>DiskFileSystem.format</tt> forces the disk to be formatted at
+ * startup, and <tt>DiskFileSystem.import</tt>, a quoted list of names
+ * separated by spaces, lists files to copy from the stub file system into a
+ * freshly formatted disk.
+ */
+public class DiskFileSystem implements FileSystem {
+	/**
+	 * Allocate a new file system on the machine's disk.
+	 */
+	public DiskFileSystem() {
+		this(new SynchDisk(Machine.disk()));
+	}
+
+	/**
+	 * Allocate a new file system on the specified disk, formatting the disk if
+	 * it does not already hold a file system. Must be called from a thread.
+	 *
+	 * @param disk the disk to use.
+	 */
+	public DiskFileSystem(SynchDisk disk) {
+		this.disk = disk;
+
+		useExtents = Config.getBoolean("DiskFileSystem.extents", true);
+
+		byte[] superblock = new byte[Disk.sectorSize];
+		disk.readSectors(superblockSector, 1, superblock, 0);
+
+		if (Config.getBoolean("DiskFileSystem.format", false)
+				|| Lib.bytesToInt(superblock, 0) != magic
+				|| Lib.bytesToInt(superblock, 4) != Disk.numSectors) {
+			format();
+		}
+		else {
+			disk.readSectors(bitmapSector, bitmapSectors, bitmap, 0);
+			disk.readSectors(directorySector, directorySectors, directory, 0);
+		}
+	}
+
+	private void format() {
+		Lib.debug(dbgFS, "formatting disk");
+
+		for (int i = 0; i < dataSector; i++)
+			setUsed(i, true);
+		flushBitmap();
+
+		disk.writeSectors(directorySector, directorySectors, directory, 0);
+
+		byte[] superblock = new byte[Disk.sectorSize];
+		Lib.bytesFromInt(superblock, 0, magic);
+		Lib.bytesFromInt(superblock, 4, Disk.numSectors);
+		disk.writeSectors(superblockSector, 1, superblock, 0);
+
+		String names = Config.getString("DiskFileSystem.import");
+		if (names != null && Machine.stubFileSystem() != null) {
+			StringTokenizer st = new StringTokenizer(names);
+			while (st.hasMoreTokens())
+				importFile(st.nextToken());
+		}
+	}
+
+	private void importFile(String name) {
+		OpenFile src = Machine.stubFileSystem().open(name, false);
+		if (src == null)
+			return;
+
+		OpenFile dst = open(name, true);
+		if (dst != null) {
+			byte[] buf = new byte[1024];
+			int amount;
+			while ((amount = src.read(buf, 0, buf.length)) > 0)
+				dst.write(buf, 0, amount);
+			dst.close();
+		}
+
+		src.close();
+	}
+
+	public OpenFile open(String name, boolean create) {
+		if (!checkName(name))
+			return null;
+
+		lock.acquire();
+
+		DiskFile file = null;
+		int entry = findEntry(name);
+
+		if (entry != -1) {
+			file = getFile(directoryInode(entry));
+		}
+		else if (create) {
+			file = createFile(name);
+			create = false;
+		}
+
+		lock.release();
+
+		if (file == null)
+			return null;
+
+		if (create)
+			truncate(file);
+
+		return new DiskOpenFile(name, file);
+	}
+
+	public boolean remove(String name) {
+		if (!checkName(name))
+			return false;
+
+		lock.acquire();
+
+		int entry = findEntry(name);
+		if (entry == -1) {
+			lock.release();
+			return false;
+		}
+
+		int inode = directoryInode(entry);
+		setDirectoryEntry(entry, deletedEntry, "");
+
+		DiskFile file = openFiles.get(inode);
+		if (file != null)
+			file.removed = true;
+		else
+			freeFile(readInode(inode));
+
+		flushBitmap();
+		lock.release();
+
+		return true;
+	}
+
+	/**
+	 * Return the shared state of the file with the specified inode, reading
+	 * the inode if the file is not already open. The caller must hold
+	 * <tt>lock</tt>.
+	 */
+	private DiskFile getFile(int inode) {
+		DiskFile file = openFiles.get(inode);
+
+		if (file == null) {
+			file = readInode(inode);
+			openFiles.put(inode, file);
+		}
+
+		file.references++;
+
+		return file;
+	}
+
+	private DiskFile createFile(String name) {
+		int inode = findFreeSector(1);
+		if (inode == -1)
+			return null;
+
+		int entry = addDirectoryEntry(name, inode);
+		if (entry == -1)
+			return null;
+
+		setUsed(inode, true);
+		flushBitmap();
+
+		DiskFile file = new DiskFile();
+		file.inodeSectors.add(inode);
+		writeInode(file);
+
+		openFiles.put(inode, file);
+		file.references++;
+
+		return file;
+	}
+
+	/**
+	 * Discard the contents of a file.
+	 */
+	private void truncate(DiskFile file) {
+		file.lock.acquire();
+		lock.acquire();
+
+		for (int[] extent : file.extents) {
+			for (int i = 0; i < extent[1]; i++)
+				setUsed(extent[0] + i, false);
+		}
+		file.extents.clear();
+		file.length = 0;
+
+		writeInode(file);
+		flushBitmap();
+
+		lock.release();
+		file.lock.release();
+	}
+
+	/**
+	 * Free every sector of a file, including its inode. The caller must hold
+	 * <tt>lock</tt>.
+	 */
+	private void freeFile(DiskFile file) {
+		for (int[] extent : file.extents) {
+			for (int i = 0; i < extent[1]; i++)
+				setUsed(extent[0] + i, false);
+		}
+
+		for (int sector : file.inodeSectors)
+			setUsed(sector, false);
+	}
+
+	/**
+	 * Write the inode of every open file that has changed, and the bitmap.
+	 * Called when the kernel halts, since open files are otherwise only
+	 * written back when they are closed.
+	 */
+	public void flush() {
+		lock.acquire();
+
+		for (DiskFile file : openFiles.values()) {
+			if (file.inodeDirty)
+				writeInode(file);
+		}
+
+		flushBitmap();
+		lock.release();
+	}
+
+	private void close(DiskFile file) {
+		lock.acquire();
+
+		file.references--;
+		if (file.references == 0) {
+			openFiles.remove(file.inodeSectors.get(0));
+
+			if (file.removed)
+				freeFile(file);
+			else if (file.inodeDirty)
+				writeInode(file);
+
+			flushBitmap();
+		}
+
+		lock.release();
+	}
+
+	private DiskFile readInode(int inode) {
+		DiskFile file = new DiskFile();
+		byte[] data = new byte[Disk.sectorSize];
+
+		for (int sector = inode; sector != 0;) {
+			disk.readSectors(sector, 1, data, 0);
+			file.inodeSectors.add(sector);
+
+			if (sector == inode)
+				file.length = Lib.bytesToInt(data, 0);
+
+			int numExtents = Lib.bytesToInt(data, 8);
+			for (int i = 0; i < numExtents; i++) {
+				int offset = inodeHeaderSize + i * 8;
+				file.extents.add(new int[] { Lib.bytesToInt(data, offset),
+						Lib.bytesToInt(data, offset + 4) });
+			}
+
+			sector = Lib.bytesToInt(data, 4);
+		}
+
+		return file;
+	}
+
+	/**
+	 * Return the number of inode sectors needed to hold a file's extents.
+	 */
+	private static int inodeSectorsNeeded(DiskFile file) {
+		return Math.max(1, Lib.divRoundUp(file.extents.size(), extentsPerInode));
+	}
+
+	/**
+	 * Give a file enough inode sectors to hold its extents. The caller must
+	 * hold <tt>lock</tt>.
+	 *
+	 * @return <tt>true</tt> if there was room for them.
+	 */
+	private boolean growInode(DiskFile file) {
+		while (file.inodeSectors.size() < inodeSectorsNeeded(file)) {
+			int sector = findFreeSector(1);
+			if (sector == -1)
+				return false;
+
+			setUsed(sector, true);
+			file.inodeSectors.add(sector);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Write a file's inode, shrinking its chain of inode sectors to fit its
+	 * extents. The chain must already be long enough, which
+	 * <tt>growInode()</tt> ensures whenever extents are added. The caller
+	 * must hold <tt>lock</tt>.
+	 */
+	private void writeInode(DiskFile file) {
+		int needed = inodeSectorsNeeded(file);
+
+		Lib.assertTrue(file.inodeSectors.size() >= needed);
+		while (file.inodeSectors.size() > needed)
+			setUsed(file.inodeSectors.remove(file.inodeSectors.size() - 1),
+					false);
+
+		byte[] data = new byte[Disk.sectorSize];
+
+		for (int s = 0; s < needed; s++) {
+			Arrays.fill(data, (byte) 0);
+
+			int first = s * extentsPerInode;
+			int numExtents = Math.min(extentsPerInode, file.extents.size()
+					- first);
+
+			Lib.bytesFromInt(data, 0, file.length);
+			Lib.bytesFromInt(data, 4, s + 1 < needed ? file.inodeSectors
+					.get(s + 1) : 0);
+			Lib.bytesFromInt(data, 8, numExtents);
+
+			for (int i = 0; i < numExtents; i++) {
+				int[] extent = file.extents.get(first + i);
+				Lib.bytesFromInt(data, inodeHeaderSize + i * 8, extent[0]);
+				Lib.bytesFromInt(data, inodeHeaderSize + i * 8 + 4, extent[1]);
+			}
+
+			disk.writeSectors(file.inodeSectors.get(s), 1, data, 0);
+		}
+
+		file.inodeDirty = false;
+	}
+
+	/**
+	 * Give a file <i>count</i> more sectors. The caller must hold
+	 * <tt>lock</tt>.
+	 *
+	 * @return <tt>true</tt> if every sector was allocated.
+	 */
+	private boolean allocate(DiskFile file, int count) {
+		while (count > 0) {
+			if (useExtents && !file.extents.isEmpty()) {
+				int[] last = file.extents.get(file.extents.size() - 1);
+
+				// grow the last extent in place while the next sector is free
+				while (count > 0 && last[0] + last[1] < Disk.numSectors
+						&& !isUsed(last[0] + last[1])) {
+					setUsed(last[0] + last[1], true);
+					last[1]++;
+					count--;
+				}
+
+				if (count == 0)
+					break;
+			}
+
+			int length = useExtents ? count : 1;
+			int start = findFreeSector(length);
+
+			if (start == -1)
+				return false;
+
+			int run = 0;
+			while (run < length && !isUsed(start + run)) {
+				setUsed(start + run, true);
+				run++;
+			}
+
+			file.extents.add(new int[] { start, run });
+			count -= run;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Take back the last <i>count</i> sectors given to a file. The caller
+	 * must hold <tt>lock</tt>.
+	 */
+	private void release(DiskFile file, int count) {
+		while (count > 0) {
+			int[] last = file.extents.get(file.extents.size() - 1);
+
+			for (; count > 0 && last[1] > 0; count--) {
+				last[1]--;
+				setUsed(last[0] + last[1], false);
+			}
+
+			if (last[1] == 0)
+				file.extents.remove(file.extents.size() - 1);
+		}
+	}
+
+	/**
+	 * Find the first run of at least <i>length</i> free sectors, or, failing
+	 * that, the start of the longest free run.
+	 *
+	 * @return the first sector of the run, or -1 if the disk is full.
+	 */
+	private int findFreeSector(int length) {
+		int best = -1, bestLength = 0;
+
+		for (int sector = dataSector; sector < Disk.numSectors;) {
+			if (isUsed(sector)) {
+				sector++;
+				continue;
+			}
+
+			int run = 0;
+			while (sector + run < Disk.numSectors && !isUsed(sector + run)
+					&& run < length)
+				run++;
+
+			if (run == length)
+				return sector;
+
+			if (run > bestLength) {
+				best = sector;
+				bestLength = run;
+			}
+
+			sector += run;
+		}
+
+		return best;
+	}
+
+	/**
+	 * Test a request's position and its part of the buffer, using
+	 * <tt>long</tt> arithmetic so that a huge request cannot wrap around.
+	 */
+	private static boolean inRange(int pos, byte[] buf, int offset, int length) {
+		return pos >= 0 && length >= 0 && offset >= 0
+				&& (long) offset + length <= buf.length;
+	}
+
+	private int read(DiskFile file, int pos, byte[] buf, int offset, int length) {
+		if (!inRange(pos, buf, offset, length))
+			return -1;
+
+		// a concurrent write may be growing the file
+		file.lock.acquire();
+
+		int amount = Math.max(0, Math.min(length, file.length - pos));
+		if (amount > 0)
+			transfer(file, false, pos, buf, offset, amount);
+
+		file.lock.release();
+
+		return amount;
+	}
+
+	private int write(DiskFile file, int pos, byte[] buf, int offset, int length) {
+		if (!inRange(pos, buf, offset, length))
+			return -1;
+
+		// no file can be larger than the data area of the disk
+		if (pos > maxFileLength - length)
+			return -1;
+
+		file.lock.acquire();
+
+		int allocated = file.numSectors();
+		int needed = Lib.divRoundUp(pos + length, Disk.sectorSize);
+
+		if (needed > allocated) {
+			lock.acquire();
+			allocate(file, needed - allocated);
+
+			// without room for the inode, the new sectors cannot be recorded
+			if (!growInode(file))
+				release(file, file.numSectors() - allocated);
+
+			flushBitmap();
+			lock.release();
+
+			file.inodeDirty = true;
+
+			// the disk may have filled up part way
+			length = Math.min(length, file.numSectors() * Disk.sectorSize
+					- pos);
+			if (length <= 0) {
+				file.lock.release();
+				return -1;
+			}
+		}
+
+		// zero the whole sectors between the end of the file and the write,
+		// which may hold the data of a file that was removed
+		int gapEnd = pos / Disk.sectorSize * Disk.sectorSize;
+		if (gapEnd > file.length) {
+			byte[] zeros = new byte[Disk.sectorSize];
+			for (int gap = file.length; gap < gapEnd;) {
+				int amount = Math.min(gapEnd - gap, Disk.sectorSize - gap
+						% Disk.sectorSize);
+				transfer(file, true, gap, zeros, 0, amount);
+				gap += amount;
+			}
+		}
+
+		if (length > 0) {
+			transfer(file, true, pos, buf, offset, length);
+
+			if (pos + length > file.length) {
+				file.length = pos + length;
+				file.inodeDirty = true;
+			}
+		}
+
+		file.lock.release();
+
+		return length;
+	}
+
+	/**
+	 * Move bytes between a buffer and a file's sectors, which must already be
+	 * allocated. Each contiguous run of sectors is transferred with one disk
+	 * request; partial sectors at either end of a write are read first.
+	 */
+	private void transfer(DiskFile file, boolean writing, int pos, byte[] buf,
+			int offset, int length) {
+		int first = pos / Disk.sectorSize;
+		int last = (pos + length - 1) / Disk.sectorSize;
+
+		// index loop: the extent list may grow while this thread is blocked
+		int index = 0;
+		for (int e = 0; e < file.extents.size() && index <= last; e++) {
+			int[] extent = file.extents.get(e);
+			int lo = Math.max(first, index);
+			int hi = Math.min(last, index + extent[1] - 1);
+
+			if (lo <= hi) {
+				int sector = extent[0] + lo - index;
+				int count = hi - lo + 1;
+				byte[] data = new byte[count * Disk.sectorSize];
+
+				// the bytes of the file that this run covers
+				int runStart = Math.max(pos, lo * Disk.sectorSize);
+				int runEnd = Math.min(pos + length, (hi + 1) * Disk.sectorSize);
+				int dataOffset = runStart - lo * Disk.sectorSize;
+
+				if (writing) {
+					if (runStart % Disk.sectorSize != 0
+							&& lo * Disk.sectorSize < file.length)
+						disk.readSectors(sector, 1, data, 0);
+
+					if (runEnd % Disk.sectorSize != 0
+							&& hi * Disk.sectorSize < file.length
+							&& (hi != lo || runStart % Disk.sectorSize == 0))
+						disk.readSectors(sector + count - 1, 1, data,
+								(count - 1) * Disk.sectorSize);
+
+					System.arraycopy(buf, offset + runStart - pos, data,
+							dataOffset, runEnd - runStart);
+					disk.writeSectors(sector, count, data, 0);
+				}
+				else {
+					disk.readSectors(sector, count, data, 0);
+					System.arraycopy(data, dataOffset, buf, offset + runStart
+							- pos, runEnd - runStart);
+				}
+			}
+
+			index += extent[1];
+		}
+	}
+
+	private int findEntry(String name) {
+		int entry = hash(name);
+
+		for (int i = 0; i < numDirectoryEntries; i++) {
+			int inode = directoryInode(entry);
+
+			if (inode == freeEntry)
+				return -1;
+			if (inode != deletedEntry && directoryName(entry).equals(name))
+				return entry;
+
+			entry = (entry + 1) % numDirectoryEntries;
+		}
+
+		return -1;
+	}
+
+	private int addDirectoryEntry(String name, int inode) {
+		int entry = hash(name);
+
+		for (int i = 0; i < numDirectoryEntries; i++) {
+			int current = directoryInode(entry);
+
+			if (current == freeEntry || current == deletedEntry) {
+				setDirectoryEntry(entry, inode, name);
+				return entry;
+			}
+
+			entry = (entry + 1) % numDirectoryEntries;
+		}
+
+		return -1;
+	}
+
+	private void setDirectoryEntry(int entry, int inode, String name) {
+		int offset = entry * directoryEntrySize;
+
+		Arrays.fill(directory, offset, offset + directoryEntrySize,
+				(byte) 0);
+		Lib.bytesFromInt(directory, offset, inode);
+		byte[] nameBytes = name.getBytes();
+		System.arraycopy(nameBytes, 0, directory, offset + 4, nameBytes.length);
+
+		int sector = offset / Disk.sectorSize;
+		disk.writeSectors(directorySector + sector, 1, directory, sector
+				* Disk.sectorSize);
+	}
+
+	private int directoryInode(int entry) {
+		return Lib.bytesToInt(directory, entry * directoryEntrySize);
+	}
+
+	private String directoryName(int entry) {
+		return Lib.bytesToString(directory, entry * directoryEntrySize + 4,
+				maxNameLength);
+	}
+
+	private static int hash(String name) {
+		return (name.hashCode() & 0x7FFFFFFF) % numDirectoryEntries;
+	}
+
+	private static boolean checkName(String name) {
+		return name.length() > 0 && name.getBytes().length <= maxNameLength
+				&& name.indexOf('\0') == -1;
+	}
+
+	private boolean isUsed(int sector) {
+		return (bitmap[sector / 8] & (1 << (sector % 8))) != 0;
+	}
+
+	private void setUsed(int sector, boolean used) {
+		if (used)
+			bitmap[sector / 8] |= (1 << (sector % 8));
+		else
+			bitmap[sector / 8] &= ~(1 << (sector % 8));
+
+		bitmapDirty[sector / 8 / Disk.sectorSize] = true;
+	}
+
+	/**
+	 * Write the bitmap sectors that have changed. The caller must hold
+	 * <tt>lock</tt>.
+	 */
+	private void flushBitmap() {
+		for (int i = 0; i < bitmapSectors; i++) {
+			if (bitmapDirty[i]) {
+				disk.writeSectors(bitmapSector + i, 1, bitmap, i
+						* Disk.sectorSize);
+				bitmapDirty[i] = false;
+			}
+		}
+	}
+
+	/**
+	 * Time sequential and random access to a large file and print the results,
+	 * to compare the extent-based layout with the naive one.
+	 */
+	public void selfTest() {
+		final int fileSize = 32 * 1024, chunkSize = 1024, randomReads = 64;
+
+		OpenFile file = open("fstest", true);
+		Lib.assertTrue(file != null);
+
+		byte[] buf = new byte[chunkSize];
+
+		long start = Machine.timer().getTime();
+		for (int pos = 0; pos < fileSize; pos += chunkSize) {
+			Lib.bytesFromInt(buf, 0, pos);
+			Lib.assertTrue(file.write(pos, buf, 0, chunkSize) == chunkSize);
+		}
+
+		long written = Machine.timer().getTime();
+		for (int pos = 0; pos < fileSize; pos += chunkSize) {
+			Lib.assertTrue(file.read(pos, buf, 0, chunkSize) == chunkSize);
+			Lib.assertTrue(Lib.bytesToInt(buf, 0) == pos);
+		}
+
+		long read = Machine.timer().getTime();
+		for (int i = 0; i < randomReads; i++) {
+			int pos = Lib.random(fileSize / Disk.sectorSize) * Disk.sectorSize;
+			Lib.assertTrue(file.read(pos, buf, 0, Disk.sectorSize) == Disk.sectorSize);
+		}
+
+		long end = Machine.timer().getTime();
+
+		file.close();
+		Lib.assertTrue(remove("fstest"));
+
+		System.out.println("DiskFileSystem (" + (useExtents ? "extents" : "naive")
+				+ "): sequential write " + (written - start)
+				+ " ticks, sequential read " + (read - written)
+				+ " ticks, random read " + (end - read) + " ticks");
+
+		disk.selfTest();
+	}
+
+	/**
+	 * The state of an open file, shared by all of its <tt>OpenFile</tt>s.
+	 */
+	private class DiskFile {
+		int numSectors() {
+			int count = 0;
+			for (int i = 0; i < extents.size(); i++)
+				count += extents.get(i)[1];
+			return count;
+		}
+
+		int length = 0;
+
+		/** Each extent is a first sector and a sector count. */
+		ArrayList<int[]> extents = new ArrayList<int[]>();
+
+		/** The sectors holding the inode; the first identifies the file. */
+		ArrayList<Integer> inodeSectors = new ArrayList<Integer>();
+
+		boolean inodeDirty = false;
+
+		boolean removed = false;
+
+		int references = 0;
+
+		/** Serializes writes, which may allocate sectors. */
+		Lock lock = new Lock();
+	}
+
+	private class DiskOpenFile extends OpenFileWithPosition {
+		DiskOpenFile(String name, DiskFile file) {
+			super(DiskFileSystem.this, name);
+
+			this.file = file;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (file == null)
+				return -1;
+
+			return DiskFileSystem.this.read(file, pos, buf, offset, length);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (file == null)
+				return -1;
+
+			return DiskFileSystem.this.write(file, pos, buf, offset, length);
+		}
+
+		public int length() {
+			if (file == null)
+				return -1;
+
+			return file.length;
+		}
+
+		public void close() {
+			if (file != null) {
+				DiskFileSystem.this.close(file);
+				file = null;
+			}
+		}
+
+		private DiskFile file;
+	}
+
+	private SynchDisk disk;
+
+	private boolean useExtents;
+
+	private Lock lock = new Lock();
+
+	private HashMap<Integer, DiskFile> openFiles = new HashMap<Integer, DiskFile>();
+
+	private static final int magic = 0x4E414348;
+
+	private static final int superblockSector = 0;
+
+	private static final int bitmapSector = 1;
+
+	private static final int bitmapSectors = Lib.divRoundUp(Disk.numSectors,
+			8 * Disk.sectorSize);
+
+	private byte[] bitmap = new byte[bitmapSectors * Disk.sectorSize];
+
+	private boolean[] bitmapDirty = new boolean[bitmapSectors];
+
+	private static final int maxNameLength = 28;
+
+	private static final int directoryEntrySize = 4 + maxNameLength;
+
+	private static final int numDirectoryEntries = 128;
+
+	private static final int directorySector = bitmapSector + bitmapSectors;
+
+	private static final int directorySectors = numDirectoryEntries
+			* directoryEntrySize / Disk.sectorSize;
+
+	private byte[] directory = new byte[directorySectors * Disk.sectorSize];
+
+	private static final int freeEntry = 0, deletedEntry = -1;
+
+	private static final int dataSector = directorySector + directorySectors;
+
+	/** The size of the data area, which bounds the length of any file. */
+	private static final int maxFileLength = (Disk.numSectors - dataSector)
+			* Disk.sectorSize;
+
+	/** An inode sector holds the length, the next sector, and a count. */
+	private static final int inodeHeaderSize = 12;
+
+	private static final int extentsPerInode = (Disk.sectorSize - inodeHeaderSize) / 8;
+
+	private static final char dbgFS = 'F';
+}
@@ -0,0 +1,219 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+
+/**
+ * A synchronous interface to the machine's disk. Any number of threads may
+ * issue requests at once; each blocks until its own request completes. Waiting
+ * requests are queued, and the disk interrupt handler starts the next one as
+ * soon as the disk becomes free.
+ *
+ * <p>
+ * The order in which queued requests are served is taken from
+ * <tt>SynchDisk.policy</tt> in <tt>nachos.conf</tt>:
+ * <ul>
+ * <li><tt>fcfs</tt>: in the order they were issued;
+ * <li><tt>sstf</tt>: the request closest to the head first;
+ * <li><tt>clook</tt> (the default): sweep the head towards higher tracks,
+ * serving requests as it reaches them, then jump back to the lowest waiting
+ * request and sweep again.
+ * </ul>
+ */
+public class SynchDisk {
+	/**
+	 * Allocate a new synchronous disk.
+	 *
+	 * @param disk the underlying disk to use.
+	 */
+	public SynchDisk(Disk disk) {
+		this.disk = disk;
+
+		String policyName = Config.getString("SynchDisk.policy", "clook");
+		if (policyName.equals("fcfs"))
+			policy = policyFCFS;
+		else if (policyName.equals("sstf"))
+			policy = policySSTF;
+		else if (policyName.equals("clook"))
+			policy = policyCLOOK;
+		else
+			Lib.assertNotReached("unknown disk scheduling policy: "
+					+ policyName);
+
+		disk.setInterruptHandler(new Runnable() {
+			public void run() {
+				requestDone();
+			}
+		});
+	}
+
+	/**
+	 * Read <i>count</i> consecutive sectors into <i>data</i>, blocking until
+	 * they have been read.
+	 *
+	 * @param sector the first sector to read.
+	 * @param count the number of sectors to read.
+	 * @param data the buffer to read into.
+	 * @param offset the offset in <i>data</i> of the first byte to read into.
+	 */
+	public void readSectors(int sector, int count, byte[] data, int offset) {
+		request(new Request(false, sector, count, data, offset));
+	}
+
+	/**
+	 * Write <i>count</i> consecutive sectors from <i>data</i>, blocking until
+	 * they have been written.
+	 *
+	 * @param sector the first sector to write.
+	 * @param count the number of sectors to write.
+	 * @param data the buffer to write from.
+	 * @param offset the offset in <i>data</i> of the first byte to write.
+	 */
+	public void writeSectors(int sector, int count, byte[] data, int offset) {
+		request(new Request(true, sector, count, data, offset));
+	}
+
+	private void request(Request request) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		request.issueTime = Machine.timer().getTime();
+
+		if (current == null)
+			start(request);
+		else
+			pending.add(request);
+
+		Machine.interrupt().restore(intStatus);
+
+		request.done.P();
+	}
+
+	private void start(Request request) {
+		current = request;
+		headTrack = Disk.sectorToTrack(request.sector + request.count - 1);
+
+		if (request.writing)
+			disk.writeSectors(request.sector, request.count, request.data,
+					request.offset);
+		else
+			disk.readSectors(request.sector, request.count, request.data,
+					request.offset);
+	}
+
+	/**
+	 * Called by the disk interrupt handler when the current request completes.
+	 */
+	private void requestDone() {
+		Stats.addSample(responseTime, Machine.timer().getTime()
+				- current.issueTime);
+		current.done.V();
+		current = null;
+
+		if (!pending.isEmpty())
+			start(pending.remove(nextRequest()));
+	}
+
+	/**
+	 * Choose the next pending request to serve, according to the policy.
+	 *
+	 * @return the index of the chosen request in <tt>pending</tt>.
+	 */
+	private int nextRequest() {
+		if (policy == policyFCFS)
+			return 0;
+
+		int best = -1;
+		int bestKey = 0;
+
+		for (int i = 0; i < pending.size(); i++) {
+			int track = Disk.sectorToTrack(pending.get(i).sector);
+			int key;
+
+			if (policy == policySSTF)
+				key = Math.abs(track - headTrack);
+			else if (track >= headTrack)
+				key = track - headTrack;
+			else
+				key = track + Disk.numTracks;
+
+			// ties go to the request issued first
+			if (best == -1 || key < bestKey) {
+				best = i;
+				bestKey = key;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * Print a histogram of the time requests took from being issued to
+	 * completing, including the time spent waiting in the queue.
+	 */
+	public void printStats() {
+		System.out.println("Disk response time: "
+				+ Stats.histogramToString(responseTime));
+	}
+
+	/**
+	 * Issue random reads from several threads at once and print the response
+	 * times, to compare scheduling policies.
+	 */
+	public void selfTest() {
+		final int numThreads = 8, numRequests = 16;
+		final Semaphore finished = new Semaphore(0);
+
+		for (int i = 0; i < numThreads; i++) {
+			new KThread(new Runnable() {
+				public void run() {
+					byte[] data = new byte[Disk.sectorSize];
+					for (int j = 0; j < numRequests; j++)
+						readSectors(Lib.random(Disk.numSectors), 1, data, 0);
+					finished.V();
+				}
+			}).setName("disk test " + i).fork();
+		}
+
+		for (int i = 0; i < numThreads; i++)
+			finished.P();
+
+		printStats();
+	}
+
+	private class Request {
+		Request(boolean writing, int sector, int count, byte[] data, int offset) {
+			this.writing = writing;
+			this.sector = sector;
+			this.count = count;
+			this.data = data;
+			this.offset = offset;
+		}
+
+		boolean writing;
+
+		int sector, count, offset;
+
+		byte[] data;
+
+		long issueTime;
+
+		Semaphore done = new Semaphore(0);
+	}
+
+	private Disk disk;
+
+	private int policy;
+
+	private Request current = null;
+
+	private ArrayList<Request> pending = new ArrayList<Request>();
+
+	/** The track the head is on once the current request completes. */
+	private int headTrack = 0;
+
+	private long[] responseTime = new long[Stats.histogramBuckets];
+
+	private static final int policyFCFS = 0, policySSTF = 1, policyCLOOK = 2;
+}
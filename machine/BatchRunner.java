@@ -0,0 +1,380 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a batch of independent simulations concurrently in one JVM, instead of
+ * starting a JVM for each. The batch file lists one simulation per line, as
+ * the arguments that would be given to <tt>nachos</tt>, for example
+ * <tt>-s 3 -x matmult.coff -[] nachos.conf</tt>; blank lines and lines
+ * starting with <tt>#</tt> are ignored.
+ *
+ * <p>
+ * The machine, the kernel and the autograder all keep their state in static
+ * fields, so each simulation loads its own copy of every class on the class
+ * path, through a class loader of its own, and runs through
+ * <tt>Machine.runBatch()</tt>. The JVM, the JDK classes and the host's file
+ * cache are shared and stay warm, but each simulation's own classes are
+ * loaded, and compiled by the JIT, afresh.
+ *
+ * <p>
+ * Because there is one JVM, the simulations run without the Nachos security
+ * manager, and none of them can read <tt>System.in</tt>. A run that needs
+ * console input, such as one whose kernel self test waits for typed
+ * characters, must replay it from a log recorded with
+ * <tt>Machine.record</tt>, or it waits forever. The output of each run is
+ * kept apart from the others and discarded, unless <tt>-o</tt> names a
+ * directory to save it in. Simulations that use the network should attach it
+ * to the <tt>NetworkFabric</tt>, of which each has its own, so simulations
+ * in a batch never exchange packets. A simulation that needs several nodes
+ * gives its machine several links with <tt>NetworkFabric.links</tt>.
+ *
+ * <p>
+ * Every simulation shares the one test directory, and nothing keeps their
+ * files apart. Runs that write the same file there, such as the
+ * <tt>ckpt.txt</tt> and <tt>ckpt.img</tt> of the checkpoint test, or the
+ * files named by <tt>Metrics.csv</tt> and <tt>Metrics.json</tt>, overwrite
+ * one another when they run at once. Give such runs their own file names
+ * with <tt>-D</tt> where the names are configurable, or run them with
+ * <tt>-j 1</tt>.
+ *
+ * <p>
+ * Usage: <tt>java nachos.machine.BatchRunner [-j threads] [-r repeat]
+ * [-o directory] batchfile</tt>, where <tt>-j</tt> is the number of
+ * simulations to run at once (the number of processors), and <tt>-r</tt>
+ * runs the whole batch that many times (once).
+ */
+public final class BatchRunner {
+	/**
+	 * Prevent instantiation.
+	 */
+	private BatchRunner() {
+	}
+
+	/**
+	 * Run a batch of simulations, printing a summary of each and of the whole
+	 * batch.
+	 *
+	 * @param args the command line arguments.
+	 */
+	public static void main(String[] args) throws IOException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int repeat = 1;
+		File outputDirectory = null;
+		String batchFileName = null;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-j") && i + 1 < args.length)
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-r") && i + 1 < args.length)
+				repeat = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-o") && i + 1 < args.length)
+				outputDirectory = new File(args[++i]);
+			else
+				batchFileName = args[i];
+		}
+
+		if (batchFileName == null || threads < 1 || repeat < 1) {
+			System.err.println("usage: java nachos.machine.BatchRunner "
+					+ "[-j threads] [-r repeat] [-o directory] batchfile");
+			System.exit(1);
+		}
+
+		ArrayList<String[]> runs = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(
+				batchFileName));
+		for (String line; (line = reader.readLine()) != null;) {
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#"))
+				continue;
+
+			StringTokenizer st = new StringTokenizer(line);
+			String[] runArgs = new String[st.countTokens()];
+			for (int i = 0; i < runArgs.length; i++)
+				runArgs[i] = st.nextToken();
+
+			for (int i = 0; i < repeat; i++)
+				runs.add(runArgs);
+		}
+		reader.close();
+
+		new BatchRunner().runAll(runs, threads, outputDirectory);
+	}
+
+	private void runAll(ArrayList<String[]> runs, int threads,
+			File outputDirectory) {
+		PrintStream out = System.out;
+
+		System.setOut(new PrintStream(new RoutingStream(System.out), true));
+		System.setErr(new PrintStream(new RoutingStream(System.err), true));
+		System.setIn(new ByteArrayInputStream(new byte[0]));
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		ArrayList<Future<Result>> futures = new ArrayList<Future<Result>>();
+
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < runs.size(); i++) {
+			final int number = i;
+			final String[] args = runs.get(i);
+
+			futures.add(pool.submit(new Callable<Result>() {
+				public Result call() {
+					return run(number, args);
+				}
+			}));
+		}
+
+		long instructions = 0;
+		int failures = 0;
+
+		for (int i = 0; i < futures.size(); i++) {
+			Result result;
+			try {
+				result = futures.get(i).get();
+			}
+			catch (InterruptedException e) {
+				Lib.assertNotReached();
+				return;
+			}
+			catch (ExecutionException e) {
+				Lib.assertNotReached("batch runner failed: " + e.getCause());
+				return;
+			}
+
+			out.println(result);
+
+			if (result.stats == null)
+				failures++;
+			else
+				instructions += stat(result.stats, "userTicks") / Stats.UserTick;
+
+			if (outputDirectory != null)
+				save(result, new File(outputDirectory, "run-" + i + ".out"));
+		}
+
+		pool.shutdown();
+
+		long nanos = Math.max(1, System.nanoTime() - startTime);
+
+		out.println("batch: " + runs.size() + " runs (" + failures
+				+ " failed) in " + (nanos / 1000000) + " ms on " + threads
+				+ " threads, " + (runs.size() * 1000000000L / nanos)
+				+ " runs/sec, " + (instructions * 1000000000L / nanos)
+				+ " instructions/sec");
+	}
+
+	/**
+	 * Run one simulation in a thread group and class loader of its own, and
+	 * wait for it to halt.
+	 */
+	private Result run(int number, final String[] args) {
+		final Result result = new Result(number, args);
+		final URLClassLoader loader = new URLClassLoader(classPath,
+				parentLoader);
+
+		ThreadGroup group = new ThreadGroup("nachos run " + number);
+		outputs.put(group, result.output);
+
+		Thread thread = new Thread(group, new Runnable() {
+			@SuppressWarnings("unchecked")
+			public void run() {
+				Thread.currentThread().setContextClassLoader(loader);
+
+				try {
+					Class<?> machine = loader.loadClass("nachos.machine.Machine");
+					result.stats = (Map<String, Long>) machine.getMethod(
+							"runBatch", String[].class).invoke(null,
+							(Object) args);
+				}
+				catch (Throwable e) {
+					result.failure = e;
+				}
+			}
+		}, "nachos run " + number);
+
+		long startTime = System.nanoTime();
+
+		try {
+			thread.start();
+			while (true) {
+				try {
+					thread.join();
+					break;
+				}
+				catch (InterruptedException e) {
+				}
+			}
+		}
+		finally {
+			// release the class path's open jar files
+			try {
+				loader.close();
+			}
+			catch (IOException e) {
+			}
+		}
+
+		result.nanos = System.nanoTime() - startTime;
+		outputs.remove(group);
+
+		return result;
+	}
+
+	private static long stat(Map<String, Long> stats, String name) {
+		Long value = stats.get(name);
+		return (value == null) ? 0 : value.longValue();
+	}
+
+	private static void save(Result result, File file) {
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			result.output.writeTo(out);
+			out.close();
+		}
+		catch (IOException e) {
+			System.err.println("cannot write " + file + ": " + e);
+		}
+	}
+
+	/**
+	 * The outcome of one simulation.
+	 */
+	private static class Result {
+		Result(int number, String[] args) {
+			this.number = number;
+			this.args = args;
+		}
+
+		public String toString() {
+			StringBuffer buf = new StringBuffer("run " + number + " [");
+			for (int i = 0; i < args.length; i++)
+				buf.append((i > 0 ? " " : "") + args[i]);
+			buf.append("]: ");
+
+			if (stats == null) {
+				Throwable cause = failure;
+				while (cause != null && cause.getCause() != null)
+					cause = cause.getCause();
+				return buf.append("failed: " + cause).toString();
+			}
+
+			return buf.append("exit " + stat(stats, "exitStatus") + ", "
+					+ (nanos / 1000000) + " ms, ticks "
+					+ stat(stats, "totalTicks") + " (kernel "
+					+ stat(stats, "kernelTicks") + ", user "
+					+ stat(stats, "userTicks") + "), console "
+					+ stat(stats, "numConsoleReads") + "/"
+					+ stat(stats, "numConsoleWrites") + ", disk "
+					+ stat(stats, "numDiskReads") + "/"
+					+ stat(stats, "numDiskWrites") + ", faults "
+					+ stat(stats, "numPageFaults") + "/"
+					+ stat(stats, "numTLBMisses") + ", packets "
+					+ stat(stats, "numPacketsReceived") + "/"
+					+ stat(stats, "numPacketsSent")).toString();
+		}
+
+		int number;
+
+		String[] args;
+
+		Map<String, Long> stats = null;
+
+		Throwable failure = null;
+
+		long nanos;
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+	}
+
+	/**
+	 * An output stream that sends what each simulation writes to that
+	 * simulation's own buffer, found from the writing thread's group. Every
+	 * thread a simulation starts is in its group. Anything else goes to the
+	 * original stream.
+	 */
+	private class RoutingStream extends OutputStream {
+		RoutingStream(OutputStream original) {
+			this.original = original;
+		}
+
+		private OutputStream target() {
+			ThreadGroup group = Thread.currentThread().getThreadGroup();
+
+			for (; group != null; group = group.getParent()) {
+				OutputStream output = outputs.get(group);
+				if (output != null)
+					return output;
+			}
+
+			return original;
+		}
+
+		public void write(int b) throws IOException {
+			OutputStream target = target();
+			synchronized (target) {
+				target.write(b);
+			}
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			OutputStream target = target();
+			synchronized (target) {
+				target.write(b, off, len);
+			}
+		}
+
+		public void flush() throws IOException {
+			original.flush();
+		}
+
+		private OutputStream original;
+	}
+
+	/** The output buffer of each simulation that is running. */
+	private ConcurrentHashMap<ThreadGroup, OutputStream> outputs =
+			new ConcurrentHashMap<ThreadGroup, OutputStream>();
+
+	/** The class path, for each simulation's class loader to load from. */
+	private static final URL[] classPath;
+
+	/** The loader of the JDK classes, which the simulations share. */
+	private static final ClassLoader parentLoader = BatchRunner.class
+			.getClassLoader().getParent();
+
+	static {
+		StringTokenizer st = new StringTokenizer(System
+				.getProperty("java.class.path"), File.pathSeparator);
+		classPath = new URL[st.countTokens()];
+
+		for (int i = 0; i < classPath.length; i++) {
+			try {
+				classPath[i] = new File(st.nextToken()).toURI().toURL();
+			}
+			catch (MalformedURLException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+	}
+}
@@ -127,6 +127,21 @@ public class Coff {
 		return entryPoint;
 	}
 
+	/**
+	 * Return the procedures of this executable, reading its symbol table the
+	 * first time this is called. Must be called before <tt>close()</tt>.
+	 * 
+	 * @return the symbol table, which is empty if the executable has none.
+	 */
+	public CoffSymbolTable getSymbolTable() {
+		Lib.assertTrue(file != null && sections != null);
+
+		if (symbolTable == null)
+			symbolTable = new CoffSymbolTable(file);
+
+		return symbolTable;
+	}
+
 	/**
 	 * Close the executable file and release any resources allocated by this
 	 * loader.
@@ -139,6 +154,8 @@ public class Coff {
 
 	private OpenFile file;
 
+	private CoffSymbolTable symbolTable = null;
+
 	/** The virtual address of the first instruction of the program. */
 	protected int entryPoint;
 
@@ -0,0 +1,204 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The procedures of a COFF executable, read from its MIPS symbolic debugging
+ * information (the part of the file the COFF header's symbol table pointer
+ * refers to). The test programs are linked with <tt>-s</tt>, which drops the
+ * external symbols but keeps each source file's local symbols and procedure
+ * descriptors, so every function can still be found by address.
+ *
+ * <p>
+ * A procedure descriptor also records how the procedure lays out its stack
+ * frame, which is enough to find a caller's return address without frame
+ * pointers.
+ */
+public class CoffSymbolTable {
+	/**
+	 * Read the symbol table of an executable. Any information that cannot be
+	 * parsed is ignored, leaving the table empty.
+	 *
+	 * @param file the executable.
+	 */
+	public CoffSymbolTable(OpenFile file) {
+		byte[] bytes = new byte[Math.max(0, file.length())];
+
+		if (file.read(0, bytes, 0, bytes.length) == bytes.length) {
+			try {
+				parse(bytes);
+			}
+			catch (ArrayIndexOutOfBoundsException e) {
+				Lib.debug(dbgCoff, "\tbad symbol table");
+			}
+		}
+
+		if (procedures == null)
+			procedures = new Procedure[0];
+
+		starts = new int[procedures.length];
+		for (int i = 0; i < procedures.length; i++)
+			starts[i] = procedures[i].start;
+	}
+
+	private void parse(byte[] bytes) {
+		int symbolicHeader = Lib.bytesToInt(bytes, 8);
+		if (symbolicHeader <= 0
+				|| Lib.bytesToUnsignedShort(bytes, symbolicHeader) != 0x7009) {
+			Lib.debug(dbgCoff, "\tno symbol table");
+			return;
+		}
+
+		int pdOffset = Lib.bytesToInt(bytes, symbolicHeader + 28);
+		int symOffset = Lib.bytesToInt(bytes, symbolicHeader + 36);
+		int ssOffset = Lib.bytesToInt(bytes, symbolicHeader + 60);
+		int fdCount = Lib.bytesToInt(bytes, symbolicHeader + 72);
+		int fdOffset = Lib.bytesToInt(bytes, symbolicHeader + 76);
+
+		HashMap<Integer, Procedure> found = new HashMap<Integer, Procedure>();
+
+		for (int f = 0; f < fdCount; f++) {
+			int fd = fdOffset + f * fdLength;
+
+			int address = Lib.bytesToInt(bytes, fd + 0);
+			int issBase = Lib.bytesToInt(bytes, fd + 8);
+			int isymBase = Lib.bytesToInt(bytes, fd + 16);
+			int symCount = Lib.bytesToInt(bytes, fd + 20);
+			int pdFirst = Lib.bytesToUnsignedShort(bytes, fd + 40);
+			int pdCount = Lib.bytesToUnsignedShort(bytes, fd + 42);
+
+			// the procedure symbols give each procedure's name and extent
+			for (int s = 0; s < symCount; s++) {
+				int sym = symOffset + (isymBase + s) * symLength;
+				int type = Lib.bytesToInt(bytes, sym + 8) & 0x3F;
+
+				if (type != stProc && type != stStaticProc)
+					continue;
+
+				String name = readString(bytes, ssOffset + issBase
+						+ Lib.bytesToInt(bytes, sym + 0));
+				int start = Lib.bytesToInt(bytes, sym + 4);
+				int end = start;
+
+				// the matching end symbol holds the procedure's length
+				for (int e = s + 1; e < symCount; e++) {
+					int endSym = symOffset + (isymBase + e) * symLength;
+					if ((Lib.bytesToInt(bytes, endSym + 8) & 0x3F) == stEnd
+							&& readString(bytes, ssOffset + issBase
+									+ Lib.bytesToInt(bytes, endSym + 0))
+									.equals(name)) {
+						end = start + Lib.bytesToInt(bytes, endSym + 4);
+						break;
+					}
+				}
+
+				found.put(start, new Procedure(name, start, end));
+			}
+
+			// the procedure descriptors describe each stack frame
+			for (int p = 0; p < pdCount; p++) {
+				int pd = pdOffset + (pdFirst + p) * pdLength;
+
+				Procedure procedure = found.get(address
+						+ Lib.bytesToInt(bytes, pd + 0));
+				if (procedure == null)
+					continue;
+
+				int regMask = Lib.bytesToInt(bytes, pd + 12);
+
+				procedure.savesReturnAddress =
+						(regMask & (1 << Processor.regRA)) != 0;
+				procedure.returnAddressOffset = Lib.bytesToInt(bytes, pd + 16);
+				procedure.frameSize = Lib.bytesToInt(bytes, pd + 32);
+				procedure.frameRegister = Lib.bytesToUnsignedShort(bytes,
+						pd + 36);
+			}
+		}
+
+		procedures = found.values().toArray(new Procedure[0]);
+		Arrays.sort(procedures);
+	}
+
+	private static String readString(byte[] bytes, int offset) {
+		return Lib.bytesToString(bytes, offset, bytes.length - offset);
+	}
+
+	/**
+	 * Return the number of procedures in this table.
+	 *
+	 * @return the number of procedures.
+	 */
+	public int getNumProcedures() {
+		return procedures.length;
+	}
+
+	/**
+	 * Find the procedure containing an address.
+	 *
+	 * @param address the virtual address of an instruction.
+	 * @return the procedure, or <tt>null</tt> if no procedure contains it.
+	 */
+	public Procedure find(int address) {
+		int i = Arrays.binarySearch(starts, address);
+		if (i < 0)
+			i = -i - 2;
+
+		if (i < 0 || address >= procedures[i].end)
+			return null;
+
+		return procedures[i];
+	}
+
+	/**
+	 * A procedure, and the layout of its stack frame.
+	 */
+	public static class Procedure implements Comparable<Procedure> {
+		Procedure(String name, int start, int end) {
+			this.name = name;
+			this.start = start;
+			this.end = end;
+		}
+
+		public int compareTo(Procedure procedure) {
+			return (start < procedure.start) ? -1
+					: (start > procedure.start) ? 1 : 0;
+		}
+
+		/** The name of the procedure. */
+		public final String name;
+
+		/** The address of the first instruction. */
+		public final int start;
+
+		/** The address just past the last instruction. */
+		public final int end;
+
+		/**
+		 * The size of the stack frame. The frame's top, the caller's stack
+		 * pointer, is <tt>frameRegister</tt> plus this.
+		 */
+		public int frameSize = 0;
+
+		/** The register the frame size is measured from, usually SP. */
+		public int frameRegister = Processor.regSP;
+
+		/** <tt>true</tt> if the procedure saves RA in its frame. */
+		public boolean savesReturnAddress = false;
+
+		/** Where RA is saved, relative to the top of the frame. */
+		public int returnAddressOffset = 0;
+	}
+
+	private Procedure[] procedures;
+
+	private int[] starts;
+
+	private static final int fdLength = 72, symLength = 12, pdLength = 52;
+
+	private static final int stProc = 6, stEnd = 8, stStaticProc = 14;
+
+	private static final char dbgCoff = 'c';
+}
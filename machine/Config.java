@@ -3,6 +3,7 @@
 package nachos.machine;
 
 import java.util.HashMap;
+import java.util.Map;
 import java.io.File;
 import java.io.FileReader;
 import java.io.Reader;
@@ -10,6 +11,22 @@ import java.io.StreamTokenizer;
 
 /**
  * Provides routines to access the Nachos configuration.
+ *
+ * <p>
+ * The configuration is read once, when Nachos starts, and every value is
+ * parsed then as an integer, a double and a boolean, as far as it can be. So
+ * the typed accessors cost one table lookup and allocate nothing. The values
+ * of the keys the machine itself uses are also checked then, so that a bad one
+ * is reported before the simulation starts.
+ *
+ * <p>
+ * A line of the form <tt>include = </tt><i>file</i> reads another
+ * configuration file at that point, named relative to the file that includes
+ * it. A key may be set only once in each file; one set in a file overrides the
+ * value set by a file it included earlier, so a file can include a base
+ * configuration and then change part of it. Finally, any key may be set on
+ * the command line with <tt>-D </tt><i>key</i><tt>=</tt><i>value</i>,
+ * which overrides every file.
  */
 public final class Config {
 	/**
@@ -19,17 +36,43 @@ public final class Config {
 	 * @param fileName the name of the file containing the configuration to use.
 	 */
 	public static void load(String fileName) {
+		load(fileName, new HashMap<String, String>());
+	}
+
+	/**
+	 * Load configuration information from the specified file, then apply the
+	 * specified overrides. Must be called before the Nachos security manager is
+	 * installed.
+	 * 
+	 * @param fileName the name of the file containing the configuration to use.
+	 * @param overrides keys to set, whatever the file sets them to.
+	 */
+	public static void load(String fileName, Map<String, String> overrides) {
 		System.out.print(" config");
 
 		Lib.assertTrue(!loaded);
 		loaded = true;
 
 		configFile = fileName;
+		config = new HashMap<String, Value>();
 
-		try {
-			config = new HashMap<String, String>();
+		loadFile(new File(fileName), 0);
 
-			File file = new File(configFile);
+		for (Map.Entry<String, String> override : overrides.entrySet())
+			config.put(override.getKey(), new Value(override.getValue(), "-D",
+					0));
+
+		for (Map.Entry<String, Value> entry : config.entrySet())
+			validate(entry.getKey(), entry.getValue());
+	}
+
+	private static void loadFile(File file, int depth) {
+		String fileName = file.getPath();
+
+		// keys set by this file, as opposed to files it includes
+		HashMap<String, Value> keys = new HashMap<String, Value>();
+
+		try {
 			Reader reader = new FileReader(file);
 			StreamTokenizer s = new StreamTokenizer(reader);
 
@@ -55,16 +98,16 @@ public final class Config {
 				}
 
 				if (s.ttype != StreamTokenizer.TT_WORD)
-					loadError(line);
+					loadError(fileName, line);
 
 				String key = s.sval;
 
 				if (s.nextToken() != StreamTokenizer.TT_WORD
 						|| !s.sval.equals("="))
-					loadError(line);
+					loadError(fileName, line);
 
 				if (s.nextToken() != StreamTokenizer.TT_WORD && s.ttype != '"')
-					loadError(line);
+					loadError(fileName, line);
 
 				String value = s.sval;
 
@@ -73,27 +116,73 @@ public final class Config {
 						&& s.ttype != StreamTokenizer.TT_EOF)
 					;
 
-				if (config.get(key) != null)
-					loadError(line);
+				if (key.equals("include")) {
+					if (depth == maxIncludeDepth)
+						loadError(fileName, line);
 
-				config.put(key, value);
-				line++;
+					File included = new File(value);
+					if (!included.isAbsolute())
+						included = new File(file.getAbsoluteFile()
+								.getParentFile(), value);
+
+					loadFile(included, depth + 1);
+				}
+				else {
+					if (keys.get(key) != null)
+						loadError(fileName, line);
+
+					Value v = new Value(value, fileName, line);
+					keys.put(key, v);
+					config.put(key, v);
+				}
 			}
+
+			reader.close();
 		}
 		catch (Throwable e) {
-			System.err.println("Error loading " + configFile);
+			System.err.println("Error loading " + fileName);
 			System.exit(1);
 		}
 	}
 
-	private static void loadError(int line) {
-		System.err.println("Error in " + configFile + " line " + line);
+	/**
+	 * Check the value of a key that the machine uses, if this is one.
+	 */
+	private static void validate(String key, Value value) {
+		for (int i = 0; i < schema.length; i += 2) {
+			String name = schema[i];
+
+			// a name ending in a dot stands for every key that starts with it
+			if (name.endsWith(".") ? !key.startsWith(name) : !key.equals(name))
+				continue;
+
+			String type = schema[i + 1];
+
+			if (type.equals("integer"))
+				value.getInteger(key);
+			else if (type.equals("double"))
+				value.getDouble(key);
+			else
+				value.getBoolean(key);
+
+			return;
+		}
+	}
+
+	private static void loadError(String fileName, int line) {
+		System.err.println("Error in " + fileName + " line " + line);
 		System.exit(1);
 	}
 
-	private static void configError(String message) {
+	private static void configError(String message, Value value) {
 		System.err.println("");
-		System.err.println("Error in " + configFile + ": " + message);
+		if (value == null)
+			System.err.println("Error in " + configFile + ": " + message);
+		else if (value.line == 0)
+			System.err.println("Error in " + value.source + ": " + message);
+		else
+			System.err.println("Error in " + value.source + " line "
+					+ value.line + ": " + message);
 		System.exit(1);
 	}
 
@@ -105,7 +194,8 @@ public final class Config {
 	 * present.
 	 */
 	public static String getString(String key) {
-		return (String) config.get(key);
+		Value value = config.get(key);
+		return (value == null) ? null : value.string;
 	}
 
 	/**
@@ -126,22 +216,6 @@ public final class Config {
 		return result;
 	}
 
-	private static Integer requestInteger(String key) {
-		try {
-			String value = getString(key);
-			if (value == null)
-				return null;
-
-			return new Integer(value);
-		}
-		catch (NumberFormatException e) {
-			configError(key + " should be an integer");
-
-			Lib.assertNotReached();
-			return null;
-		}
-	}
-
 	/**
 	 * Get the value of an integer key in <tt>nachos.conf</tt>.
 	 * 
@@ -149,12 +223,12 @@ public final class Config {
 	 * @return the value of the specified key.
 	 */
 	public static int getInteger(String key) {
-		Integer result = requestInteger(key);
+		Value value = config.get(key);
 
-		if (result == null)
-			configError("missing int " + key);
+		if (value == null)
+			configError("missing int " + key, null);
 
-		return result.intValue();
+		return value.getInteger(key);
 	}
 
 	/**
@@ -167,28 +241,12 @@ public final class Config {
 	 * key does not exist.
 	 */
 	public static int getInteger(String key, int defaultValue) {
-		Integer result = requestInteger(key);
+		Value value = config.get(key);
 
-		if (result == null)
+		if (value == null)
 			return defaultValue;
 
-		return result.intValue();
-	}
-
-	private static Double requestDouble(String key) {
-		try {
-			String value = getString(key);
-			if (value == null)
-				return null;
-
-			return new Double(value);
-		}
-		catch (NumberFormatException e) {
-			configError(key + " should be a double");
-
-			Lib.assertNotReached();
-			return null;
-		}
+		return value.getInteger(key);
 	}
 
 	/**
@@ -198,12 +256,12 @@ public final class Config {
 	 * @return the value of the specified key.
 	 */
 	public static double getDouble(String key) {
-		Double result = requestDouble(key);
+		Value value = config.get(key);
 
-		if (result == null)
-			configError("missing double " + key);
+		if (value == null)
+			configError("missing double " + key, null);
 
-		return result.doubleValue();
+		return value.getDouble(key);
 	}
 
 	/**
@@ -216,32 +274,12 @@ public final class Config {
 	 * key does not exist.
 	 */
 	public static double getDouble(String key, double defaultValue) {
-		Double result = requestDouble(key);
-
-		if (result == null)
-			return defaultValue;
-
-		return result.doubleValue();
-	}
-
-	private static Boolean requestBoolean(String key) {
-		String value = getString(key);
+		Value value = config.get(key);
 
 		if (value == null)
-			return null;
-
-		if (value.equals("1") || value.toLowerCase().equals("true")) {
-			return Boolean.TRUE;
-		}
-		else if (value.equals("0") || value.toLowerCase().equals("false")) {
-			return Boolean.FALSE;
-		}
-		else {
-			configError(key + " should be a boolean");
+			return defaultValue;
 
-			Lib.assertNotReached();
-			return null;
-		}
+		return value.getDouble(key);
 	}
 
 	/**
@@ -251,12 +289,12 @@ public final class Config {
 	 * @return the value of the specified key.
 	 */
 	public static boolean getBoolean(String key) {
-		Boolean result = requestBoolean(key);
+		Value value = config.get(key);
 
-		if (result == null)
-			configError("missing boolean " + key);
+		if (value == null)
+			configError("missing boolean " + key, null);
 
-		return result.booleanValue();
+		return value.getBoolean(key);
 	}
 
 	/**
@@ -269,17 +307,129 @@ public final class Config {
 	 * key does not exist.
 	 */
 	public static boolean getBoolean(String key, boolean defaultValue) {
-		Boolean result = requestBoolean(key);
+		Value value = config.get(key);
 
-		if (result == null)
+		if (value == null)
 			return defaultValue;
 
-		return result.booleanValue();
+		return value.getBoolean(key);
+	}
+
+	/**
+	 * The value of one key, parsed as every type it can be, and where it was
+	 * set.
+	 */
+	private static class Value {
+		Value(String string, String source, int line) {
+			this.string = string;
+			this.source = source;
+			this.line = line;
+
+			try {
+				integer = Integer.parseInt(string);
+				isInteger = true;
+			}
+			catch (NumberFormatException e) {
+			}
+
+			try {
+				real = Double.parseDouble(string);
+				isDouble = true;
+			}
+			catch (NumberFormatException e) {
+			}
+
+			String lower = string.toLowerCase();
+
+			if (string.equals("1") || lower.equals("true")) {
+				bool = true;
+				isBoolean = true;
+			}
+			else if (string.equals("0") || lower.equals("false")) {
+				bool = false;
+				isBoolean = true;
+			}
+		}
+
+		int getInteger(String key) {
+			if (!isInteger)
+				configError(key + " should be an integer", this);
+
+			return integer;
+		}
+
+		double getDouble(String key) {
+			if (!isDouble)
+				configError(key + " should be a double", this);
+
+			return real;
+		}
+
+		boolean getBoolean(String key) {
+			if (!isBoolean)
+				configError(key + " should be a boolean", this);
+
+			return bool;
+		}
+
+		String string;
+
+		String source;
+
+		int line;
+
+		int integer;
+
+		double real;
+
+		boolean bool;
+
+		boolean isInteger = false, isDouble = false, isBoolean = false;
 	}
 
 	private static boolean loaded = false;
 
 	private static String configFile;
 
-	private static HashMap<String, String> config;
+	private static HashMap<String, Value> config;
+
+	/** How deeply configuration files may include one another. */
+	private static final int maxIncludeDepth = 8;
+
+	/**
+	 * The type of each key the machine uses, checked when the configuration is
+	 * loaded. The kernel's keys are checked when they are first read.
+	 */
+	private static final String[] schema = {
+			"Machine.stubFileSystem", "boolean",
+			"Machine.processor", "boolean",
+			"Machine.console", "boolean",
+			"Machine.disk", "boolean",
+			"Machine.bank", "boolean",
+			"Machine.networkLink", "boolean",
+			"NachosSecurityManager.fullySecure", "boolean",
+			"NachosSecurityManager.trusted", "boolean",
+			"ElevatorBank.allowElevatorGUI", "boolean",
+			"StandardConsole.bulkTransfer", "boolean",
+			"StubFileSystem.mapped", "boolean",
+			"Processor.numPhysPages", "integer",
+			"Lib.traceBuffer", "integer",
+			"NetworkLink.reliability", "double",
+			"NetworkLink.fabric", "boolean",
+			"NetworkLink.ringSize", "integer",
+			"NetworkLink.mtu", "integer",
+			"NetworkFabric.reliability", "double",
+			"NetworkFabric.reorder", "double",
+			"NetworkFabric.latency", "integer",
+			"NetworkFabric.jitter", "integer",
+			"NetworkFabric.ticksPerByte", "integer",
+			"NetworkFabric.links", "integer",
+			"NetworkFabric.reliability.", "double",
+			"NetworkFabric.reorder.", "double",
+			"NetworkFabric.latency.", "integer",
+			"NetworkFabric.jitter.", "integer",
+			"NetworkFabric.ticksPerByte.", "integer",
+			"Metrics.enabled", "boolean",
+			"Metrics.snapshotInterval", "integer",
+			"Metrics.maxSnapshots", "integer", };
 }
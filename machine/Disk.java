@@ -0,0 +1,259 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+
+/**
+ * A simulated disk, stored in an image file on the host. The disk has
+ * <tt>numTracks</tt> tracks of <tt>sectorsPerTrack</tt> sectors each, and
+ * performs one request at a time. A request covers one or more consecutive
+ * sectors; when it completes, the disk calls its interrupt handler.
+ *
+ * <p>
+ * The time a request takes is the sum of three parts:
+ * <ul>
+ * <li>the seek, which is proportional to the number of tracks the head moves,
+ * so that moving across the whole disk takes <tt>Stats.SeekTime</tt>;
+ * <li>the rotational delay until the first sector passes under the head, where
+ * one revolution takes <tt>Stats.RotationTime</tt>;
+ * <li>the transfer, one sector's worth of rotation per sector, plus a one-track
+ * seek for each track boundary crossed.
+ * </ul>
+ * The disk rotates continuously with simulated time, so the rotational delay
+ * depends on when the request is issued.
+ *
+ * <p>
+ * The image file is named by <tt>Disk.image</tt> in <tt>nachos.conf</tt>. It is
+ * created, zero-filled, if it does not exist.
+ */
+public final class Disk {
+	/**
+	 * Allocate a new disk.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 */
+	public Disk(Privilege privilege) {
+		System.out.print(" disk");
+
+		this.privilege = privilege;
+
+		final File f = new File(Config.getString("Disk.image", "nachos.disk"));
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				openImage(f);
+			}
+		});
+
+		if (image == null) {
+			System.out.println("");
+			System.out.println("Unable to open disk image " + f + "!");
+			Lib.assertNotReached();
+		}
+
+		completionInterrupt = new Runnable() {
+			public void run() {
+				completionInterrupt();
+			}
+		};
+	}
+
+	private void openImage(File f) {
+		try {
+			image = new RandomAccessFile(f, "rw");
+			if (image.length() < numSectors * sectorSize)
+				image.setLength(numSectors * sectorSize);
+		}
+		catch (IOException e) {
+			image = null;
+		}
+	}
+
+	/**
+	 * Set this disk's interrupt handler. The handler is called each time a
+	 * request completes, after which another request can be issued.
+	 *
+	 * @param handler the callback to call when a request completes.
+	 */
+	public void setInterruptHandler(Runnable handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Test whether the disk is working on a request.
+	 *
+	 * @return <tt>true</tt> if a request has been issued but has not yet
+	 * completed.
+	 */
+	public boolean isBusy() {
+		return busy;
+	}
+
+	/**
+	 * Start reading <i>count</i> consecutive sectors into <i>data</i>. The data
+	 * is not valid until the interrupt handler is called. The disk must not be
+	 * busy.
+	 *
+	 * @param sector the first sector to read.
+	 * @param count the number of sectors to read.
+	 * @param data the buffer to read into.
+	 * @param offset the offset in <i>data</i> of the first byte to read into.
+	 */
+	public void readSectors(int sector, int count, byte[] data, int offset) {
+		startRequest(false, sector, count, data, offset);
+	}
+
+	/**
+	 * Start writing <i>count</i> consecutive sectors from <i>data</i>. The
+	 * buffer must not be modified until the interrupt handler is called. The
+	 * disk must not be busy.
+	 *
+	 * @param sector the first sector to write.
+	 * @param count the number of sectors to write.
+	 * @param data the buffer to write from.
+	 * @param offset the offset in <i>data</i> of the first byte to write.
+	 */
+	public void writeSectors(int sector, int count, byte[] data, int offset) {
+		startRequest(true, sector, count, data, offset);
+	}
+
+	private void startRequest(boolean writing, int sector, int count,
+			byte[] data, int offset) {
+		Lib.assertTrue(!busy);
+		Lib.assertTrue(count > 0 && sector >= 0 && sector + count <= numSectors);
+		Lib.assertTrue(offset >= 0 && offset + count * sectorSize <= data.length);
+
+		busy = true;
+		requestWriting = writing;
+		requestSector = sector;
+		requestCount = count;
+		requestData = data;
+		requestOffset = offset;
+
+		int track = sectorToTrack(sector);
+		int lastTrack = sectorToTrack(sector + count - 1);
+
+		long seek = seekTime(Math.abs(track - headTrack));
+
+		// wait for the first sector to rotate under the head
+		long angle = (Machine.timer().getTime() + seek) % Stats.RotationTime;
+		long start = (long) (sector % sectorsPerTrack) * Stats.RotationTime
+				/ sectorsPerTrack;
+		long rotation = (start - angle + Stats.RotationTime)
+				% Stats.RotationTime;
+
+		long transfer = ((long) count * Stats.RotationTime + sectorsPerTrack - 1)
+				/ sectorsPerTrack + (lastTrack - track) * seekTime(1);
+
+		requestLatency = seek + rotation + transfer;
+		headTrack = lastTrack;
+
+		if (Lib.test(dbgDisk))
+			Lib.debug(dbgDisk,
+					"%s sectors %d-%d: seek %d, rotation %d, transfer %d",
+					writing ? "write" : "read", sector, sector + count - 1,
+					seek, rotation, transfer);
+
+		privilege.interrupt.schedule(requestLatency, "disk",
+				completionInterrupt);
+	}
+
+	private void completionInterrupt() {
+		Lib.assertTrue(busy);
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				transfer();
+			}
+		});
+
+		if (requestWriting)
+			privilege.stats.numDiskWrites += requestCount;
+		else
+			privilege.stats.numDiskReads += requestCount;
+
+		Stats.addSample(privilege.stats.diskLatency, requestLatency);
+
+		requestData = null;
+		busy = false;
+
+		if (handler != null)
+			handler.run();
+	}
+
+	private void transfer() {
+		int length = requestCount * sectorSize;
+
+		try {
+			image.seek((long) requestSector * sectorSize);
+
+			if (requestWriting)
+				image.write(requestData, requestOffset, length);
+			else
+				image.readFully(requestData, requestOffset, length);
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("disk image I/O failed: " + e);
+		}
+	}
+
+	/**
+	 * Return the simulated time needed to move the head across the specified
+	 * number of tracks.
+	 *
+	 * @param distance the number of tracks to move.
+	 * @return the seek time, in ticks.
+	 */
+	public static long seekTime(int distance) {
+		return ((long) distance * Stats.SeekTime + numTracks - 1) / numTracks;
+	}
+
+	/**
+	 * Return the track containing a sector.
+	 *
+	 * @param sector the sector number.
+	 * @return the track number.
+	 */
+	public static int sectorToTrack(int sector) {
+		return sector / sectorsPerTrack;
+	}
+
+	/** The number of bytes in a sector. */
+	public static final int sectorSize = 128;
+
+	/** The number of sectors in a track. */
+	public static final int sectorsPerTrack = 32;
+
+	/** The number of tracks on the disk. */
+	public static final int numTracks = 64;
+
+	/** The number of sectors on the disk. */
+	public static final int numSectors = sectorsPerTrack * numTracks;
+
+	private Privilege privilege;
+
+	private RandomAccessFile image = null;
+
+	private Runnable completionInterrupt;
+
+	private Runnable handler = null;
+
+	private int headTrack = 0;
+
+	private boolean busy = false;
+
+	private boolean requestWriting;
+
+	private int requestSector, requestCount, requestOffset;
+
+	private byte[] requestData;
+
+	private long requestLatency;
+
+	private static final char dbgDisk = 'd';
+}
@@ -0,0 +1,324 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A log of the inputs that come from outside the simulation, which is
+ * otherwise deterministic for a given random seed. These are the bytes typed
+ * at the console, the datagrams received by a network link over UDP, and the
+ * link address the link was able to bind. Each is stamped with the simulated
+ * time at which it entered the simulation.
+ *
+ * <p>
+ * If the <tt>nachos.conf</tt> key <tt>Machine.record</tt> names a file, every
+ * input is written to it. If <tt>Machine.replay</tt> names a file recorded
+ * that way, the console and the network link take their inputs from the log
+ * instead, each at the tick it was recorded, so the run repeats the recorded
+ * one exactly. The replay must use the same random seed, configuration and
+ * program as the recording. While replaying, nothing is read from
+ * <tt>System.in</tt> or from the network, and packets sent are not put on
+ * the wire.
+ *
+ * <p>
+ * The log is compressed. Each entry holds its kind, the ticks since the
+ * previous entry as a variable-length number, and its data.
+ */
+final class InputLog {
+	/**
+	 * Prevent instantiation.
+	 */
+	private InputLog() {
+	}
+
+	/**
+	 * Open the log named in <tt>nachos.conf</tt>, if any. Called by
+	 * <tt>Machine.main()</tt> before the devices are created.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param randomSeed the seed the random number generator was given.
+	 */
+	static void initialize(Privilege privilege, long randomSeed) {
+		String recordName = Config.getString("Machine.record");
+		String replayName = Config.getString("Machine.replay");
+
+		Lib.assertTrue(recordName == null || replayName == null,
+				"cannot record and replay at once");
+
+		try {
+			if (recordName != null)
+				startRecording(privilege, recordName, randomSeed);
+			else if (replayName != null)
+				startReplaying(replayName, randomSeed);
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("input log: " + e);
+		}
+	}
+
+	private static void startRecording(Privilege privilege, String fileName,
+			long randomSeed) throws IOException {
+		FileOutputStream file = new FileOutputStream(fileName);
+		DataOutputStream header = new DataOutputStream(file);
+		header.writeInt(magic);
+		header.writeInt(version);
+		header.writeLong(randomSeed);
+		header.flush();
+
+		log = new DataOutputStream(new BufferedOutputStream(
+				new DeflaterOutputStream(file)));
+
+		privilege.addExitNotificationHandler(new Runnable() {
+			public void run() {
+				stopRecording();
+			}
+		});
+	}
+
+	private static synchronized void stopRecording() {
+		try {
+			log.close();
+		}
+		catch (IOException e) {
+			System.out.println("input log: " + e);
+		}
+		log = null;
+	}
+
+	private static void startReplaying(String fileName, long randomSeed)
+			throws IOException {
+		FileInputStream file = new FileInputStream(fileName);
+		DataInputStream header = new DataInputStream(file);
+
+		if (header.readInt() != magic || header.readInt() != version)
+			throw new IOException(fileName + " is not an input log");
+
+		long recordedSeed = header.readLong();
+		Lib.assertTrue(recordedSeed == randomSeed, "input log was recorded "
+				+ "with -s " + recordedSeed);
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new InflaterInputStream(file)));
+
+		consoleBytes = new LinkedList<Entry>();
+		packets = new LinkedList<Entry>();
+		linkAddresses = new LinkedList<Entry>();
+
+		long time = 0;
+
+		try {
+			while (true) {
+				int kind = in.read();
+				if (kind == -1)
+					break;
+
+				time += readVarLong(in);
+
+				byte[] data;
+				if (kind == kindPacket) {
+					data = new byte[in.readUnsignedShort()];
+					in.readFully(data);
+				}
+				else {
+					data = new byte[] { in.readByte() };
+				}
+
+				Entry entry = new Entry(time, data);
+
+				if (kind == kindConsole)
+					consoleBytes.add(entry);
+				else if (kind == kindPacket)
+					packets.add(entry);
+				else if (kind == kindLinkAddress)
+					linkAddresses.add(entry);
+				else
+					throw new IOException("bad entry in " + fileName);
+			}
+		}
+		catch (EOFException e) {
+			// a recording cut short still replays up to where it stops
+		}
+
+		in.close();
+		replaying = true;
+	}
+
+	/**
+	 * Test whether inputs are being replayed from a log.
+	 *
+	 * @return <tt>true</tt> if <tt>Machine.replay</tt> is set.
+	 */
+	static boolean replaying() {
+		return replaying;
+	}
+
+	/**
+	 * Record a byte read from the console, if recording.
+	 *
+	 * @param value the byte read, or -1 if none was available.
+	 */
+	static void recordConsoleByte(int value) {
+		if (value != -1)
+			record(kindConsole, new byte[] { (byte) value }, 1);
+	}
+
+	/**
+	 * Return the byte the console read at the current time in the recorded
+	 * run.
+	 *
+	 * @return the byte, or -1 if none was read at this time.
+	 */
+	static int replayConsoleByte() {
+		Entry entry = next(consoleBytes);
+		return (entry == null) ? -1 : (entry.data[0] & 0xFF);
+	}
+
+	/**
+	 * Record a datagram received by the network link, if recording.
+	 *
+	 * @param packetBytes the contents of the datagram.
+	 * @param length the length of the datagram.
+	 */
+	static void recordPacket(byte[] packetBytes, int length) {
+		record(kindPacket, packetBytes, length);
+	}
+
+	/**
+	 * Return the next datagram the network link received at the current time
+	 * in the recorded run, in a buffer from the packet pool.
+	 *
+	 * @param length receives the length of the datagram.
+	 * @return the datagram, or <tt>null</tt> if no more were received at this
+	 * time.
+	 */
+	static byte[] replayPacket(int[] length) {
+		Entry entry = next(packets);
+		if (entry == null)
+			return null;
+
+		byte[] packetBytes = Packet.allocateBuffer();
+		System.arraycopy(entry.data, 0, packetBytes, 0, entry.data.length);
+		length[0] = entry.data.length;
+
+		return packetBytes;
+	}
+
+	/**
+	 * Record the address the network link bound, if recording.
+	 *
+	 * @param linkAddress the link address.
+	 */
+	static void recordLinkAddress(int linkAddress) {
+		record(kindLinkAddress, new byte[] { (byte) linkAddress }, 1);
+	}
+
+	/**
+	 * Return the address the network link bound in the recorded run.
+	 *
+	 * @return the link address.
+	 */
+	static int replayLinkAddress() {
+		Entry entry = next(linkAddresses);
+		Lib.assertTrue(entry != null, "input log has no link address");
+		return entry.data[0];
+	}
+
+	private static synchronized void record(int kind, byte[] data, int length) {
+		if (log == null)
+			return;
+
+		long time = Machine.stats.totalTicks;
+
+		try {
+			log.write(kind);
+			writeVarLong(log, time - lastTime);
+			if (kind == kindPacket)
+				log.writeShort(length);
+			log.write(data, 0, length);
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("input log: " + e);
+		}
+
+		lastTime = time;
+	}
+
+	/**
+	 * Remove and return the first entry of a replay queue if it is due now.
+	 * An entry that is overdue means the replay has diverged from the
+	 * recording.
+	 */
+	private static Entry next(LinkedList<Entry> entries) {
+		long time = Machine.stats.totalTicks;
+		Entry entry = entries.peek();
+
+		if (entry == null || entry.time > time)
+			return null;
+
+		Lib.assertTrue(entry.time == time, "replay diverged: input recorded "
+				+ "at tick " + entry.time + " is due at tick " + time);
+
+		return entries.poll();
+	}
+
+	private static void writeVarLong(DataOutputStream out, long value)
+			throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+
+		for (int shift = 0;; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+	}
+
+	/**
+	 * One recorded input.
+	 */
+	private static class Entry {
+		Entry(long time, byte[] data) {
+			this.time = time;
+			this.data = data;
+		}
+
+		long time;
+
+		byte[] data;
+	}
+
+	private static DataOutputStream log = null;
+
+	private static long lastTime = 0;
+
+	private static boolean replaying = false;
+
+	private static LinkedList<Entry> consoleBytes, packets, linkAddresses;
+
+	private static final int kindConsole = 0, kindPacket = 1,
+			kindLinkAddress = 2;
+
+	/** "NRPL", followed by the format version. */
+	private static final int magic = 0x4E52504C, version = 1;
+}
@@ -125,8 +125,10 @@ public final class Interrupt {
 		long time = privilege.stats.totalTicks + when;
 		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		if (Lib.test(dbgInt))
+			Lib.debug(dbgInt,
+					"Scheduling the %s interrupt handler at time = %d", type,
+					time);
 
 		pending.add(toOccur);
 	}
@@ -165,7 +167,8 @@ public final class Interrupt {
 		if (((PendingInterrupt) pending.first()).time > time)
 			return;
 
-		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+		if (Lib.test(dbgInt))
+			Lib.debug(dbgInt, "Invoking interrupt handlers at time = %d", time);
 
 		while (!pending.isEmpty()
 				&& ((PendingInterrupt) pending.first()).time <= time) {
@@ -177,7 +180,8 @@ public final class Interrupt {
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			if (Lib.test(dbgInt))
+				Lib.debug(dbgInt, "  %s", next.type);
 
 			next.handler.run();
 		}
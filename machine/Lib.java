@@ -7,6 +7,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.security.PrivilegedAction;
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -121,12 +122,52 @@ public final class Lib {
 	 * Nachos uses several debugging flags already, but you are encouraged to
 	 * add your own.
 	 * 
+	 * <p>
+	 * The message is built before this method is called, even if the flag is
+	 * not set. On a frequently executed path, use the form of
+	 * <tt>debug()</tt> that takes a format string instead, or test the flag
+	 * first with <tt>test()</tt>.
+	 * 
 	 * @param flag the debug flag that must be set to print this message.
 	 * @param message the debug message.
 	 */
 	public static void debug(char flag, String message) {
 		if (test(flag))
-			System.out.println(message);
+			emit(flag, message, null);
+	}
+
+	/**
+	 * Print a message if <i>flag</i> was enabled on the command line. The
+	 * message is built from <i>format</i> and <i>args</i> as by
+	 * <tt>String.format()</tt>, but only if the flag is set. The argument
+	 * array is still allocated, and primitive arguments boxed, on every call,
+	 * so on a frequently executed path test the flag first:
+	 * 
+	 * <pre>
+	 * if (Lib.test(dbgInt))
+	 * 	Lib.debug(dbgInt, &quot;Scheduling the %s interrupt handler at time = %d&quot;,
+	 * 			type, time);
+	 * </pre>
+	 * 
+	 * @param flag the debug flag that must be set to print this message.
+	 * @param format the format string.
+	 * @param args the arguments referenced by <i>format</i>.
+	 */
+	public static void debug(char flag, String format, Object... args) {
+		if (test(flag))
+			emit(flag, format, args);
+	}
+
+	private static void emit(char flag, String format, Object[] args) {
+		if (traceBuffer != null) {
+			Timer timer = Machine.timer();
+			traceBuffer.record(timer != null ? timer.getTime() : 0, flag,
+					format, args);
+		}
+		else {
+			System.out.println(args == null ? format : String.format(format,
+					args));
+		}
 	}
 
 	/**
@@ -137,35 +178,57 @@ public final class Lib {
 	 * @return <tt>true</tt> if this flag was enabled on the command line.
 	 */
 	public static boolean test(char flag) {
-		if (debugFlags == null)
-			return false;
-		else if (debugFlags[(int) '+'])
-			return true;
-		else if (flag >= 0 && flag < 0x80 && debugFlags[(int) flag])
-			return true;
+		// '+' sets every entry, so one load answers the common case
+		if (flag < 0x80)
+			return debugFlags[flag];
 		else
-			return false;
+			return debugFlags['+'];
 	}
 
 	/**
-	 * Enable all the debug flags in <i>flagsString</i>.
+	 * Enable all the debug flags in <i>flagsString</i>. The flag <tt>+</tt>
+	 * enables every flag.
 	 * 
 	 * @param flagsString the flags to enable.
 	 */
 	public static void enableDebugFlags(String flagsString) {
-		if (debugFlags == null)
-			debugFlags = new boolean[0x80];
-
 		char[] newFlags = flagsString.toCharArray();
 		for (int i = 0; i < newFlags.length; i++) {
 			char c = newFlags[i];
-			if (c >= 0 && c < 0x80)
-				debugFlags[(int) c] = true;
+			if (c == '+')
+				Arrays.fill(debugFlags, true);
+			else if (c < 0x80)
+				debugFlags[c] = true;
 		}
 	}
 
+	/**
+	 * Record debug messages in a ring of <i>size</i> entries instead of
+	 * printing them. A recorded message is not formatted until the ring is
+	 * dumped, so tracing costs little more than storing a few references, and
+	 * only the most recent <i>size</i> messages are kept. Since formatting is
+	 * deferred, an argument whose <tt>toString()</tt> changes over time shows
+	 * its value at the time of the dump.
+	 * 
+	 * @param size the number of messages to keep.
+	 */
+	public static void enableTraceBuffer(int size) {
+		assertTrue(size > 0);
+		traceBuffer = new TraceBuffer(size);
+	}
+
+	/**
+	 * Print the messages in the trace buffer, oldest first, if there is one.
+	 */
+	public static void dumpTraceBuffer() {
+		if (traceBuffer != null)
+			traceBuffer.dump(System.out);
+	}
+
 	/** Debug flags specified on the command line. */
-	private static boolean debugFlags[];
+	private static final boolean debugFlags[] = new boolean[0x80];
+
+	private static TraceBuffer traceBuffer = null;
 
 	/**
 	 * Read a file, verifying that the requested number of bytes is read, and
@@ -472,7 +535,7 @@ public final class Lib {
 	 */
 	public static Class tryLoadClass(String className) {
 		try {
-			return ClassLoader.getSystemClassLoader().loadClass(className);
+			return Lib.class.getClassLoader().loadClass(className);
 		}
 		catch (Throwable e) {
 			return null;
@@ -486,8 +549,10 @@ public final class Lib {
 	 * @return the loaded class.
 	 */
 	public static Class loadClass(String className) {
+		// the loader of the machine itself, which is the system class loader
+		// except in a batch run by BatchRunner
 		try {
-			return ClassLoader.getSystemClassLoader().loadClass(className);
+			return Lib.class.getClassLoader().loadClass(className);
 		}
 		catch (Throwable e) {
 			Machine.terminate(e);
@@ -24,7 +24,8 @@ public final class Machine {
 		Machine.args = args;
 		processArgs();
 
-		Config.load(configFileName);
+		Config.load(configFileName, configOverrides);
+		Metrics.initialize();
 
 		// get the current directory (.)
 		baseDirectory = new File(new File("").getAbsolutePath());
@@ -47,13 +48,47 @@ public final class Machine {
 
 		privilege.machine = new MachinePrivilege();
 
+		int traceBufferSize = Config.getInteger("Lib.traceBuffer", 0);
+		if (traceBufferSize > 0) {
+			Lib.enableTraceBuffer(traceBufferSize);
+			privilege.addExitNotificationHandler(new Runnable() {
+				public void run() {
+					Lib.dumpTraceBuffer();
+				}
+			});
+		}
+
+		InputLog.initialize(privilege, randomSeed);
+
 		TCB.givePrivilege(privilege);
 		privilege.stats = stats;
 
-		securityManager.enable();
+		String checkpointName = Config.getString("Machine.checkpoint");
+		if (checkpointName != null) {
+			if (numPhysPages == -1)
+				numPhysPages = Config.getInteger("Processor.numPhysPages");
+			checkpoint = MachineState.load(new File(testDirectory,
+					checkpointName), numPhysPages, stats);
+		}
+
+		// mapping files needs a class loader the first few times, and any
+		// stub file system may be mapped, as BenchGrader does
+		if (Config.getBoolean("Machine.stubFileSystem"))
+			MappedFileSystem.prepareHost();
+
+		if (batch)
+			securityManager.enableBatch();
+		else
+			securityManager.enable();
 		createDevices();
 		checkUserClasses();
 
+		if (checkpoint != null) {
+			Lib.assertTrue(processor != null,
+					"cannot restore a checkpoint without a processor");
+			checkpoint.restoreMemory(processor);
+		}
+
 		autoGrader = (AutoGrader) Lib.constructObject(autoGraderClassName);
 
 		new TCB().start(new Runnable() {
@@ -95,8 +130,18 @@ public final class Machine {
 	 * Print stats, and terminate Nachos.
 	 */
 	public static void halt() {
+		if (console instanceof StandardConsole)
+			((StandardConsole) console).flush();
+
 		System.out.print("Machine halting!\n\n");
 		stats.print();
+
+		// the export files are written with the machine's privilege
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				Metrics.export(stats);
+			}
+		});
 		terminate();
 	}
 
@@ -121,6 +166,14 @@ public final class Machine {
 					Lib.assertTrue(i < args.length, "switch without argument");
 					Lib.enableDebugFlags(args[i++]);
 				}
+				else if (arg.equals("-D")) {
+					Lib.assertTrue(i < args.length, "switch without argument");
+					String setting = args[i++];
+					int equals = setting.indexOf('=');
+					Lib.assertTrue(equals > 0, "bad value for -D switch");
+					configOverrides.put(setting.substring(0, equals), setting
+							.substring(equals + 1));
+				}
 				else if (arg.equals("-h")) {
 					System.out.print(help);
 					System.exit(1);
@@ -182,11 +235,29 @@ public final class Machine {
 		if (Config.getBoolean("Machine.console"))
 			console = new StandardConsole(privilege);
 
-		if (Config.getBoolean("Machine.stubFileSystem"))
-			stubFileSystem = new StubFileSystem(privilege, testDirectory);
+		if (Config.getBoolean("Machine.stubFileSystem")) {
+			if (Config.getBoolean("StubFileSystem.mapped", false))
+				stubFileSystem = new MappedFileSystem(privilege, testDirectory);
+			else
+				stubFileSystem = new StubFileSystem(privilege, testDirectory);
+		}
+
+		if (Config.getBoolean("Machine.disk"))
+			disk = new Disk(privilege);
+
+		if (Config.getBoolean("Machine.networkLink")) {
+			// several links are several nodes, which only the fabric connects
+			int numLinks = 1;
+			if (Config.getBoolean("NetworkLink.fabric", false))
+				numLinks = Config.getInteger("NetworkFabric.links", 1);
+			Lib.assertTrue(numLinks >= 1 && numLinks <= Packet.linkAddressLimit);
 
-		if (Config.getBoolean("Machine.networkLink"))
-			networkLink = new NetworkLink(privilege);
+			networkLinks = new NetworkLink[numLinks];
+			for (int i = 0; i < numLinks; i++)
+				networkLinks[i] = new NetworkLink(privilege);
+
+			networkLink = networkLinks[0];
+		}
 	}
 
 	private static void checkUserClasses() {
@@ -348,6 +419,24 @@ public final class Machine {
 		return stubFileSystem;
 	}
 
+	/**
+	 * Return the directory that the stub file system keeps its files in.
+	 * 
+	 * @return the test directory.
+	 */
+	public static File testDirectory() {
+		return testDirectory;
+	}
+
+	/**
+	 * Return the disk.
+	 * 
+	 * @return the disk, or <tt>null</tt> if it is not present.
+	 */
+	public static Disk disk() {
+		return disk;
+	}
+
 	/**
 	 * Return the network link.
 	 * 
@@ -357,6 +446,29 @@ public final class Machine {
 		return networkLink;
 	}
 
+	/**
+	 * Return the number of network links. A machine attached to the
+	 * <tt>NetworkFabric</tt> has <tt>NetworkFabric.links</tt> of them, each
+	 * with its own address, so that one simulation can hold several nodes.
+	 *
+	 * @return the number of network links, or 0 if there is no network.
+	 */
+	public static int numNetworkLinks() {
+		return (networkLinks == null) ? 0 : networkLinks.length;
+	}
+
+	/**
+	 * Return one of the network links. Link 0 is the one returned by
+	 * <tt>networkLink()</tt>.
+	 *
+	 * @param i the number of the link, less than <tt>numNetworkLinks()</tt>.
+	 * @return the network link.
+	 */
+	public static NetworkLink networkLink(int i) {
+		Lib.assertTrue(i >= 0 && i < numNetworkLinks());
+		return networkLinks[i];
+	}
+
 	/**
 	 * Return the autograder.
 	 * 
@@ -378,8 +490,12 @@ public final class Machine {
 
 	private static FileSystem stubFileSystem = null;
 
+	private static Disk disk = null;
+
 	private static NetworkLink networkLink = null;
 
+	private static NetworkLink[] networkLinks = null;
+
 	private static AutoGrader autoGrader = null;
 
 	private static String autoGraderClassName = "nachos.ag.AutoGrader";
@@ -401,6 +517,92 @@ public final class Machine {
 
 	private static String shellProgramName = null;
 
+	/**
+	 * Return the checkpoint the machine was restored from. The counters and
+	 * main memory have already been restored; the kernel must restore the
+	 * registers and its own state.
+	 * 
+	 * @return the checkpoint named by <tt>Machine.checkpoint</tt>, or
+	 * <tt>null</tt> if the machine was started afresh.
+	 */
+	public static MachineState getCheckpoint() {
+		return checkpoint;
+	}
+
+	private static MachineState checkpoint = null;
+
+	/**
+	 * Run one simulation as part of a batch, in a JVM shared with other
+	 * simulations. This copy of the machine must have been loaded by a class
+	 * loader of its own, so that its static state is its own. The security
+	 * manager is not installed, and halting the machine ends only this
+	 * simulation instead of exiting the JVM.
+	 * 
+	 * @param args the command line arguments, as for <tt>main()</tt>.
+	 * @return the exit status under <tt>exitStatus</tt>, and the counters in
+	 * <tt>Stats</tt> under their field names.
+	 * @see nachos.machine.BatchRunner
+	 */
+	public static Map<String, Long> runBatch(String[] args) {
+		batch = true;
+
+		main(args);
+
+		// main() returns when its thread finishes, which may be before halting
+		synchronized (batchLock) {
+			while (batchStatus == null) {
+				try {
+					batchLock.wait();
+				}
+				catch (InterruptedException e) {
+				}
+			}
+		}
+
+		TreeMap<String, Long> result = new TreeMap<String, Long>();
+		result.put("exitStatus", (long) batchStatus.intValue());
+		result.put("totalTicks", stats.totalTicks);
+		result.put("kernelTicks", stats.kernelTicks);
+		result.put("userTicks", stats.userTicks);
+		result.put("numDiskReads", stats.numDiskReads);
+		result.put("numDiskWrites", stats.numDiskWrites);
+		result.put("numConsoleReads", stats.numConsoleReads);
+		result.put("numConsoleWrites", stats.numConsoleWrites);
+		result.put("numPageFaults", stats.numPageFaults);
+		result.put("numTLBMisses", stats.numTLBMisses);
+		result.put("numPacketsSent", stats.numPacketsSent);
+		result.put("numPacketsReceived", stats.numPacketsReceived);
+
+		return result;
+	}
+
+	/**
+	 * End a simulation run by <tt>runBatch()</tt>. Called by the security
+	 * manager in place of <tt>System.exit()</tt>, once the exit notification
+	 * handlers have run. Stops every Nachos thread, and never returns.
+	 * 
+	 * @param exitStatus the exit status of the simulation.
+	 */
+	public static void exitBatch(int exitStatus) {
+		Lib.assertTrue(batch);
+
+		TCB.stopAll();
+
+		synchronized (batchLock) {
+			if (batchStatus == null)
+				batchStatus = exitStatus;
+			batchLock.notifyAll();
+		}
+
+		throw new ThreadDeath();
+	}
+
+	private static boolean batch = false;
+
+	private static Object batchLock = new Object();
+
+	private static Integer batchStatus = null;
+
 	/**
 	 * Return the name of the process class that the kernel should use. In the
 	 * multi-programming project, returns <tt>nachos.userprog.UserProcess</tt>.
@@ -430,7 +632,7 @@ public final class Machine {
 
 	private static String[] args = null;
 
-	private static Stats stats = new Stats();
+	static Stats stats = new Stats();
 
 	private static int numPhysPages = -1;
 
@@ -440,12 +642,19 @@ public final class Machine {
 
 	private static String configFileName = "nachos.conf";
 
+	private static HashMap<String, String> configOverrides =
+			new HashMap<String, String>();
+
 	private static final String help = "\n"
 			+ "Options:\n"
 			+ "\n"
 			+ "\t-d <debug flags>\n"
 			+ "\t\tEnable some debug flags, e.g. -d ti\n"
 			+ "\n"
+			+ "\t-D <key>=<value>\n"
+			+ "\t\tSet a configuration variable, overriding the config file,\n"
+			+ "\t\te.g. -D Processor.numPhysPages=32\n"
+			+ "\n"
 			+ "\t-h\n"
 			+ "\t\tPrint this help message.\n"
 			+ "\n"
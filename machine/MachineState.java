@@ -0,0 +1,323 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A checkpoint of the simulated machine: the processor's registers, main
+ * memory, and the counters in <tt>Stats</tt>, along with an opaque block of
+ * state that the kernel saves and interprets itself. Only the pages of main
+ * memory that are not all zero are saved, and the whole checkpoint is
+ * compressed.
+ *
+ * <p>
+ * A checkpoint is restored when the machine starts, if the
+ * <tt>nachos.conf</tt> key <tt>Machine.checkpoint</tt> names a file in the
+ * test directory. The counters are restored before any device is created, so
+ * the clock carries on from where the checkpoint was taken, and main memory
+ * is restored once the processor exists. The registers and the kernel's state
+ * are left for the kernel to restore, through <tt>Machine.getCheckpoint()</tt>.
+ *
+ * <p>
+ * Pending interrupts are not saved. Their handlers belong to the devices and
+ * the kernel, which schedule them afresh when they are created.
+ */
+public final class MachineState {
+	private MachineState() {
+	}
+
+	/**
+	 * Capture the state of the machine. Must be called by the thread whose
+	 * registers are loaded in the processor.
+	 *
+	 * @return the current state of the machine.
+	 */
+	public static MachineState capture() {
+		Processor processor = Machine.processor();
+		MachineState state = new MachineState();
+
+		state.registers = new int[Processor.numUserRegisters];
+		for (int i = 0; i < Processor.numUserRegisters; i++)
+			state.registers[i] = processor.readRegister(i);
+
+		state.memory = processor.getMemory().clone();
+		state.stats = copy(Machine.stats, new Stats());
+
+		return state;
+	}
+
+	/**
+	 * Return the saved registers. The array belongs to this checkpoint, so
+	 * changing it changes the registers that will be restored.
+	 *
+	 * @return the registers, indexed as by <tt>Processor.readRegister()</tt>.
+	 */
+	public int[] getRegisters() {
+		return registers;
+	}
+
+	/**
+	 * Return the kernel's saved state.
+	 *
+	 * @return the kernel's state, or <tt>null</tt> if it saved none.
+	 */
+	public byte[] getKernelState() {
+		return kernelState;
+	}
+
+	/**
+	 * Set the kernel's state, to be saved along with the machine's.
+	 *
+	 * @param kernelState the kernel's state.
+	 */
+	public void setKernelState(byte[] kernelState) {
+		this.kernelState = kernelState;
+	}
+
+	/**
+	 * Encode this checkpoint.
+	 *
+	 * @return the encoded checkpoint.
+	 */
+	public byte[] toBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		try {
+			DataOutputStream header = new DataOutputStream(bytes);
+			header.writeInt(magic);
+			header.writeInt(version);
+			header.flush();
+
+			DataOutputStream out = new DataOutputStream(
+					new DeflaterOutputStream(bytes));
+
+			out.writeInt(registers.length);
+			for (int i = 0; i < registers.length; i++)
+				out.writeInt(registers[i]);
+
+			writeStats(out);
+
+			int numPages = memory.length / Processor.pageSize;
+			out.writeInt(numPages);
+			for (int ppn = 0; ppn < numPages; ppn++) {
+				if (!isZero(ppn)) {
+					out.writeInt(ppn);
+					out.write(memory, ppn * Processor.pageSize,
+							Processor.pageSize);
+				}
+			}
+			out.writeInt(-1);
+
+			out.writeInt(kernelState == null ? -1 : kernelState.length);
+			if (kernelState != null)
+				out.write(kernelState);
+
+			out.close();
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("cannot encode checkpoint: " + e);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decode a checkpoint encoded by <tt>toBytes()</tt>. The sizes in the
+	 * checkpoint are not trusted: it may have at most <i>numPhysPages</i>
+	 * pages of memory, and the kernel's state is read as it arrives rather
+	 * than allocated up front, so a damaged file cannot make the machine
+	 * allocate more than it holds.
+	 *
+	 * @param bytes the encoded checkpoint.
+	 * @param numPhysPages the number of pages of physical memory of the
+	 * machine that will restore it.
+	 * @return the checkpoint.
+	 * @throws IOException if the bytes are not a checkpoint.
+	 */
+	public static MachineState fromBytes(byte[] bytes, int numPhysPages)
+			throws IOException {
+		ByteArrayInputStream source = new ByteArrayInputStream(bytes);
+
+		DataInputStream header = new DataInputStream(source);
+		if (header.readInt() != magic || header.readInt() != version)
+			throw new IOException("not a checkpoint");
+
+		DataInputStream in = new DataInputStream(new InflaterInputStream(
+				source));
+		MachineState state = new MachineState();
+
+		int numRegisters = in.readInt();
+		if (numRegisters != Processor.numUserRegisters)
+			throw new IOException("wrong number of registers");
+
+		state.registers = new int[numRegisters];
+		for (int i = 0; i < numRegisters; i++)
+			state.registers[i] = in.readInt();
+
+		state.readStats(in);
+
+		int numPages = in.readInt();
+		if (numPages <= 0 || numPages > numPhysPages)
+			throw new IOException("bad memory size");
+
+		state.memory = new byte[numPages * Processor.pageSize];
+		for (int ppn = in.readInt(); ppn != -1; ppn = in.readInt()) {
+			if (ppn < 0 || ppn >= numPages)
+				throw new IOException("bad page number");
+			in.readFully(state.memory, ppn * Processor.pageSize,
+					Processor.pageSize);
+		}
+
+		int kernelLength = in.readInt();
+		if (kernelLength < -1)
+			throw new IOException("bad kernel state length");
+		if (kernelLength >= 0)
+			state.kernelState = readBytes(in, kernelLength);
+
+		return state;
+	}
+
+	/**
+	 * Read exactly <i>length</i> bytes, growing the buffer only as they
+	 * arrive.
+	 */
+	private static byte[] readBytes(DataInputStream in, int length)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] chunk = new byte[Math.min(length, Processor.pageSize)];
+
+		while (bytes.size() < length) {
+			int amount = in.read(chunk, 0, Math.min(chunk.length, length
+					- bytes.size()));
+			if (amount == -1)
+				throw new EOFException();
+
+			bytes.write(chunk, 0, amount);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Read a checkpoint from a host file and restore the counters. Called by
+	 * <tt>Machine.main()</tt> before the devices are created.
+	 */
+	static MachineState load(File file, int numPhysPages, Stats stats) {
+		byte[] bytes = new byte[(int) file.length()];
+
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				new DataInputStream(in).readFully(bytes);
+			}
+			finally {
+				in.close();
+			}
+
+			MachineState state = fromBytes(bytes, numPhysPages);
+			copy(state.stats, stats);
+			return state;
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("cannot restore checkpoint " + file + ": "
+					+ e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Copy the saved memory into the processor. Called by
+	 * <tt>Machine.main()</tt> once the processor exists.
+	 */
+	void restoreMemory(Processor processor) {
+		byte[] mainMemory = processor.getMemory();
+
+		Lib.assertTrue(mainMemory.length == memory.length,
+				"checkpoint was taken with a different amount of memory");
+
+		System.arraycopy(memory, 0, mainMemory, 0, memory.length);
+	}
+
+	private boolean isZero(int ppn) {
+		int end = (ppn + 1) * Processor.pageSize;
+		for (int i = ppn * Processor.pageSize; i < end; i++) {
+			if (memory[i] != 0)
+				return false;
+		}
+
+		return true;
+	}
+
+	private static Stats copy(Stats from, Stats to) {
+		to.totalTicks = from.totalTicks;
+		to.kernelTicks = from.kernelTicks;
+		to.userTicks = from.userTicks;
+		to.numDiskReads = from.numDiskReads;
+		to.numDiskWrites = from.numDiskWrites;
+		System.arraycopy(from.diskLatency, 0, to.diskLatency, 0,
+				Stats.histogramBuckets);
+		to.numConsoleReads = from.numConsoleReads;
+		to.numConsoleWrites = from.numConsoleWrites;
+		to.numPageFaults = from.numPageFaults;
+		to.numTLBMisses = from.numTLBMisses;
+		to.numPacketsSent = from.numPacketsSent;
+		to.numPacketsReceived = from.numPacketsReceived;
+
+		return to;
+	}
+
+	private void writeStats(DataOutputStream out) throws IOException {
+		out.writeLong(stats.totalTicks);
+		out.writeLong(stats.kernelTicks);
+		out.writeLong(stats.userTicks);
+		out.writeLong(stats.numDiskReads);
+		out.writeLong(stats.numDiskWrites);
+		for (int i = 0; i < Stats.histogramBuckets; i++)
+			out.writeLong(stats.diskLatency[i]);
+		out.writeLong(stats.numConsoleReads);
+		out.writeLong(stats.numConsoleWrites);
+		out.writeLong(stats.numPageFaults);
+		out.writeLong(stats.numTLBMisses);
+		out.writeLong(stats.numPacketsSent);
+		out.writeLong(stats.numPacketsReceived);
+	}
+
+	private void readStats(DataInputStream in) throws IOException {
+		stats = new Stats();
+
+		stats.totalTicks = in.readLong();
+		stats.kernelTicks = in.readLong();
+		stats.userTicks = in.readLong();
+		stats.numDiskReads = in.readLong();
+		stats.numDiskWrites = in.readLong();
+		for (int i = 0; i < Stats.histogramBuckets; i++)
+			stats.diskLatency[i] = in.readLong();
+		stats.numConsoleReads = in.readLong();
+		stats.numConsoleWrites = in.readLong();
+		stats.numPageFaults = in.readLong();
+		stats.numTLBMisses = in.readLong();
+		stats.numPacketsSent = in.readLong();
+		stats.numPacketsReceived = in.readLong();
+	}
+
+	private int[] registers;
+
+	private byte[] memory;
+
+	private Stats stats;
+
+	private byte[] kernelState = null;
+
+	/** "NCKP", followed by the format version. */
+	private static final int magic = 0x4E434B50, version = 1;
+}
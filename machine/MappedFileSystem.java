@@ -0,0 +1,293 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * A stub file system that maps host files into memory instead of seeking and
+ * reading through a <tt>RandomAccessFile</tt> on every request. Reads and
+ * writes become copies to and from a <tt>MappedByteBuffer</tt>. A file that
+ * grows past its mapping is remapped in <tt>chunkSize</tt> increments, and is
+ * truncated back to its logical length when its last open instance is closed.
+ * Open instances of the same file share one mapping.
+ * 
+ * <p>
+ * The simulated delay is the same as that of <tt>StubFileSystem</tt>; only the
+ * cost on the host changes. Selected by setting
+ * <tt>StubFileSystem.mapped</tt> in <tt>nachos.conf</tt>.
+ */
+public class MappedFileSystem extends StubFileSystem {
+	/**
+	 * Allocate a new mapped stub file system.
+	 * 
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param directory the root directory of the stub file system.
+	 */
+	public MappedFileSystem(Privilege privilege, File directory) {
+		super(privilege, directory);
+	}
+
+	/**
+	 * Get the host ready to map files, by mapping a scratch file a few dozen
+	 * times. The host builds each mapped buffer through reflection, and after
+	 * the first few it generates an accessor class in a new class loader.
+	 * Creating class loaders is always denied once the security manager is
+	 * enabled, so this must be called before that.
+	 */
+	static void prepareHost() {
+		try {
+			File f = File.createTempFile("nachos", ".map");
+			RandomAccessFile file = new RandomAccessFile(f, "rw");
+
+			try {
+				FileChannel channel = file.getChannel();
+				for (int i = 0; i < hostMappings; i++)
+					channel.map(FileChannel.MapMode.READ_WRITE, 0, 1);
+			}
+			finally {
+				file.close();
+				f.delete();
+			}
+		}
+		catch (IOException e) {
+		}
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		File hostFile = getHostFile(name);
+		if (hostFile == null || !reserveOpenFile())
+			return null;
+
+		MappedFile file = files.get(name);
+
+		if (file == null) {
+			file = new MappedFile(hostFile, truncate);
+			if (file.channel == null) {
+				releaseOpenFile();
+				return null;
+			}
+
+			files.put(name, file);
+		}
+		else if (truncate) {
+			file.length = 0;
+		}
+
+		file.references++;
+
+		return new MappedOpenFile(name, file);
+	}
+
+	public boolean remove(String name) {
+		files.remove(name);
+
+		return super.remove(name);
+	}
+
+	/**
+	 * The mapping of a host file, shared by every open instance of the file so
+	 * that they agree on its length.
+	 */
+	private class MappedFile {
+		MappedFile(final File f, final boolean truncate) {
+			doPrivileged(new Runnable() {
+				public void run() {
+					getChannel(f, truncate);
+				}
+			});
+		}
+
+		private void getChannel(File f, boolean truncate) {
+			if (!truncate && !f.exists())
+				return;
+
+			RandomAccessFile file = null;
+
+			try {
+				file = new RandomAccessFile(f, "rw");
+
+				if (truncate)
+					file.setLength(0);
+
+				channel = file.getChannel();
+				length = (int) channel.size();
+				map(length);
+			}
+			catch (IOException e) {
+				channel = null;
+
+				// closing the file closes its channel too
+				if (file != null) {
+					try {
+						file.close();
+					}
+					catch (IOException e2) {
+					}
+				}
+			}
+		}
+
+		/**
+		 * Map at least <i>size</i> bytes of the file, rounded up to a multiple
+		 * of <tt>chunkSize</tt>. Mapping past the end of the file extends it.
+		 */
+		void map(int size) throws IOException {
+			long capacity = ((long) size + chunkSize - 1) / chunkSize * chunkSize;
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(
+					capacity, Integer.MAX_VALUE));
+		}
+
+		/**
+		 * Map at least <i>size</i> bytes of the file from a write. Mapping
+		 * needs privilege, as the host may create a class loader to build the
+		 * buffer.
+		 *
+		 * @return <tt>true</tt> if the file was mapped.
+		 */
+		private boolean remap(final int size) {
+			final boolean[] mapped = new boolean[1];
+
+			doPrivileged(new Runnable() {
+				public void run() {
+					try {
+						map(size);
+						mapped[0] = true;
+					}
+					catch (IOException e) {
+					}
+				}
+			});
+
+			return mapped[0];
+		}
+
+		int read(int pos, byte[] buf, int offset, int length) {
+			int amount = Math.max(0, Math.min(length, this.length - pos));
+			if (amount > 0) {
+				buffer.position(pos);
+				buffer.get(buf, offset, amount);
+			}
+
+			return amount;
+		}
+
+		int write(int pos, byte[] buf, int offset, int length) {
+			// a file cannot grow past the largest mapping
+			long end = (long) pos + length;
+			if (end > Integer.MAX_VALUE)
+				return -1;
+
+			if (end > buffer.capacity() && !remap((int) end))
+				return -1;
+
+			buffer.position(pos);
+			buffer.put(buf, offset, length);
+			this.length = Math.max(this.length, pos + length);
+
+			return length;
+		}
+
+		/**
+		 * Drop one reference. The last one writes the mapping back and trims the
+		 * host file to its logical length.
+		 */
+		void release(String name) {
+			if (--references > 0)
+				return;
+
+			if (files.get(name) == this)
+				files.remove(name);
+
+			try {
+				buffer.force();
+				buffer = null;
+				channel.truncate(length);
+				channel.close();
+			}
+			catch (IOException e) {
+			}
+
+			channel = null;
+		}
+
+		FileChannel channel = null;
+
+		MappedByteBuffer buffer = null;
+
+		/** The logical length of the file; the mapping may extend past it. */
+		int length;
+
+		int references = 0;
+	}
+
+	private class MappedOpenFile extends OpenFileWithPosition {
+		MappedOpenFile(String name, MappedFile file) {
+			super(MappedFileSystem.this, name);
+
+			this.file = file;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (file == null || !inRange(pos, buf, offset, length))
+				return -1;
+
+			delayRequest();
+
+			return file.read(pos, buf, offset, length);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (file == null || !inRange(pos, buf, offset, length))
+				return -1;
+
+			delayRequest();
+
+			return file.write(pos, buf, offset, length);
+		}
+
+		public int length() {
+			if (file == null)
+				return -1;
+
+			return file.length;
+		}
+
+		public void close() {
+			if (file != null) {
+				file.release(getName());
+				file = null;
+				releaseOpenFile();
+			}
+		}
+
+		private MappedFile file;
+	}
+
+	/**
+	 * Test a request's position and its part of the buffer, using
+	 * <tt>long</tt> arithmetic so that a huge request cannot wrap around.
+	 */
+	private static boolean inRange(int pos, byte[] buf, int offset, int length) {
+		return pos >= 0 && offset >= 0 && length >= 0
+				&& (long) offset + length <= buf.length;
+	}
+
+	private HashMap<String, MappedFile> files = new HashMap<String, MappedFile>();
+
+	/**
+	 * More than the calls the host makes through reflection before it
+	 * generates an accessor.
+	 */
+	private static final int hostMappings = 32;
+
+	/** The granularity with which growing files are remapped. */
+	private static final int chunkSize = 0x10000;
+}
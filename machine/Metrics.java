@@ -0,0 +1,446 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A registry of named runtime metrics, kept alongside the fixed counters in
+ * <tt>Stats</tt>. There are three kinds of metric:
+ * <ul>
+ * <li>a <tt>Counter</tt>, which only grows, such as the number of times a
+ * thread has been switched to;
+ * <li>a <tt>Gauge</tt>, which holds the latest value of something, such as
+ * the number of live processes;
+ * <li>a <tt>Histogram</tt>, which records latencies both in simulated ticks
+ * and in wall-clock nanoseconds, using the power-of-two buckets of
+ * <tt>Stats.addSample()</tt>.
+ * </ul>
+ * Names are dotted paths, for example <tt>thread.main.switches</tt> or
+ * <tt>syscall.6.latency</tt>. Asking for the same name twice returns the
+ * same metric.
+ *
+ * <p>
+ * Metrics are only collected if the <tt>nachos.conf</tt> key
+ * <tt>Metrics.enabled</tt> is <tt>true</tt>; code that records them should
+ * test <tt>enabled()</tt> first. If <tt>Metrics.snapshotInterval</tt> is set,
+ * the value of every counter and gauge, and of the <tt>Stats</tt> counters, is
+ * copied roughly that many ticks apart. Only the last
+ * <tt>Metrics.maxSnapshots</tt> snapshots (1000 by default) are kept. When the
+ * machine halts, everything is written to the file named by
+ * <tt>Metrics.csv</tt>, as rows of <tt>time,metric,value</tt>, and to the file
+ * named by <tt>Metrics.json</tt>. A name containing a comma or a quote is
+ * quoted in the CSV file, and every name is escaped in the JSON file.
+ */
+public final class Metrics {
+	/**
+	 * Prevent instantiation.
+	 */
+	private Metrics() {
+	}
+
+	/**
+	 * Read the configuration. Called by <tt>Machine.main()</tt> once
+	 * <tt>nachos.conf</tt> has been loaded.
+	 */
+	static void initialize() {
+		enabled = Config.getBoolean("Metrics.enabled", false);
+		snapshotInterval = Config.getInteger("Metrics.snapshotInterval", 0);
+		maxSnapshots = Config.getInteger("Metrics.maxSnapshots", 1000);
+		csvFileName = Config.getString("Metrics.csv");
+		jsonFileName = Config.getString("Metrics.json");
+
+		Lib.assertTrue(snapshotInterval >= 0 && maxSnapshots > 0);
+	}
+
+	/**
+	 * Test whether metrics are being collected.
+	 *
+	 * @return <tt>true</tt> if <tt>Metrics.enabled</tt> is set.
+	 */
+	public static boolean enabled() {
+		return enabled;
+	}
+
+	/**
+	 * Return the counter with the specified name, creating it if necessary.
+	 *
+	 * @param name the name of the counter.
+	 * @return the counter.
+	 */
+	public static synchronized Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			counter = new Counter();
+			counters.put(name, counter);
+		}
+
+		return counter;
+	}
+
+	/**
+	 * Return the gauge with the specified name, creating it if necessary.
+	 *
+	 * @param name the name of the gauge.
+	 * @return the gauge.
+	 */
+	public static synchronized Gauge gauge(String name) {
+		Gauge gauge = gauges.get(name);
+		if (gauge == null) {
+			gauge = new Gauge();
+			gauges.put(name, gauge);
+		}
+
+		return gauge;
+	}
+
+	/**
+	 * Return the histogram with the specified name, creating it if necessary.
+	 *
+	 * @param name the name of the histogram.
+	 * @return the histogram.
+	 */
+	public static synchronized Histogram histogram(String name) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histogram = new Histogram();
+			histograms.put(name, histogram);
+		}
+
+		return histogram;
+	}
+
+	/**
+	 * Take a snapshot if one is due. Called on every timer interrupt.
+	 *
+	 * @param stats the machine's statistics.
+	 */
+	static void tick(Stats stats) {
+		if (!enabled || snapshotInterval == 0
+				|| stats.totalTicks < nextSnapshot)
+			return;
+
+		nextSnapshot = stats.totalTicks + snapshotInterval;
+
+		// keep only the latest snapshots, like the trace buffer
+		if (snapshots.size() == maxSnapshots)
+			snapshots.removeFirst();
+		snapshots.add(new Snapshot(stats.totalTicks, values(stats)));
+	}
+
+	/**
+	 * Write every metric to the files named in <tt>nachos.conf</tt>. Called
+	 * by <tt>Machine.halt()</tt>.
+	 *
+	 * @param stats the machine's statistics.
+	 */
+	static synchronized void export(Stats stats) {
+		if (!enabled)
+			return;
+
+		Snapshot last = new Snapshot(stats.totalTicks, values(stats));
+
+		try {
+			if (csvFileName != null)
+				exportCSV(csvFileName, last);
+			if (jsonFileName != null)
+				exportJSON(jsonFileName, last, stats);
+		}
+		catch (IOException e) {
+			System.out.println("metrics export failed: " + e);
+		}
+	}
+
+	private static TreeMap<String, Long> values(Stats stats) {
+		TreeMap<String, Long> values = new TreeMap<String, Long>();
+
+		values.put("stats.totalTicks", stats.totalTicks);
+		values.put("stats.kernelTicks", stats.kernelTicks);
+		values.put("stats.userTicks", stats.userTicks);
+		values.put("stats.numDiskReads", stats.numDiskReads);
+		values.put("stats.numDiskWrites", stats.numDiskWrites);
+		values.put("stats.numConsoleReads", stats.numConsoleReads);
+		values.put("stats.numConsoleWrites", stats.numConsoleWrites);
+		values.put("stats.numPageFaults", stats.numPageFaults);
+		values.put("stats.numTLBMisses", stats.numTLBMisses);
+		values.put("stats.numPacketsSent", stats.numPacketsSent);
+		values.put("stats.numPacketsReceived", stats.numPacketsReceived);
+
+		for (Map.Entry<String, Counter> e : counters.entrySet())
+			values.put(e.getKey(), e.getValue().value);
+		for (Map.Entry<String, Gauge> e : gauges.entrySet())
+			values.put(e.getKey(), e.getValue().value);
+
+		return values;
+	}
+
+	private static void exportCSV(String fileName, Snapshot last)
+			throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(fileName));
+
+		out.println("time,metric,value");
+
+		for (Snapshot snapshot : snapshots)
+			printCSV(out, snapshot);
+		printCSV(out, last);
+
+		for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+			Histogram h = e.getValue();
+			String name = e.getKey();
+
+			printCSV(out, last.time, name + ".count", h.count);
+			printCSV(out, last.time, name + ".totalTicks", h.totalTicks);
+			printCSV(out, last.time, name + ".totalNanos", h.totalNanos);
+
+			for (int i = 0; i < Stats.histogramBuckets; i++) {
+				if (h.ticks[i] != 0)
+					printCSV(out, last.time, name + ".ticks." + bucketName(i),
+							h.ticks[i]);
+			}
+			for (int i = 0; i < Stats.histogramBuckets; i++) {
+				if (h.nanos[i] != 0)
+					printCSV(out, last.time, name + ".nanos." + bucketName(i),
+							h.nanos[i]);
+			}
+		}
+
+		out.close();
+	}
+
+	private static void printCSV(PrintWriter out, Snapshot snapshot) {
+		for (Map.Entry<String, Long> e : snapshot.values.entrySet())
+			printCSV(out, snapshot.time, e.getKey(), e.getValue());
+	}
+
+	/**
+	 * Print one CSV row, quoting the metric name if it contains a comma, a
+	 * quote or a line break.
+	 */
+	private static void printCSV(PrintWriter out, long time, String name,
+			long value) {
+		if (name.indexOf(',') >= 0 || name.indexOf('"') >= 0
+				|| name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0)
+			name = "\"" + name.replace("\"", "\"\"") + "\"";
+
+		out.println(time + "," + name + "," + value);
+	}
+
+	/**
+	 * Name a power-of-two bucket by its exclusive upper bound, or by its lower
+	 * bound for the last bucket.
+	 */
+	private static String bucketName(int i) {
+		if (i == Stats.histogramBuckets - 1)
+			return "ge" + (1L << i);
+		else
+			return "lt" + (1L << (i + 1));
+	}
+
+	private static void exportJSON(String fileName, Snapshot last, Stats stats)
+			throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(fileName));
+
+		out.println("{");
+		out.println("  \"time\": " + last.time + ",");
+		out.print("  \"values\": ");
+		printJSON(out, last.values);
+		out.println(",");
+
+		out.println("  \"histograms\": {");
+		for (Iterator<Map.Entry<String, Histogram>> i = histograms.entrySet()
+				.iterator(); i.hasNext();) {
+			Map.Entry<String, Histogram> e = i.next();
+			Histogram h = e.getValue();
+
+			out.print("    " + jsonString(e.getKey()) + ": {\"count\": "
+					+ h.count + ", \"totalTicks\": " + h.totalTicks
+					+ ", \"totalNanos\": " + h.totalNanos + ", \"ticks\": "
+					+ arrayToJSON(h.ticks) + ", \"nanos\": "
+					+ arrayToJSON(h.nanos) + "}");
+			out.println(i.hasNext() ? "," : "");
+		}
+		out.println("  },");
+
+		out.println("  \"snapshots\": [");
+		for (Iterator<Snapshot> i = snapshots.iterator(); i.hasNext();) {
+			Snapshot snapshot = i.next();
+
+			out.print("    {\"time\": " + snapshot.time + ", \"values\": ");
+			printJSON(out, snapshot.values);
+			out.println(i.hasNext() ? "}," : "}");
+		}
+		out.println("  ]");
+		out.println("}");
+
+		out.close();
+	}
+
+	private static void printJSON(PrintWriter out, TreeMap<String, Long> values) {
+		out.print("{");
+		for (Iterator<Map.Entry<String, Long>> i = values.entrySet()
+				.iterator(); i.hasNext();) {
+			Map.Entry<String, Long> e = i.next();
+			out.print(jsonString(e.getKey()) + ": " + e.getValue()
+					+ (i.hasNext() ? ", " : ""));
+		}
+		out.print("}");
+	}
+
+	/**
+	 * Quote a string for JSON, escaping quotes, backslashes and control
+	 * characters. Metric names include thread names, which may hold anything.
+	 */
+	private static String jsonString(String s) {
+		StringBuffer buf = new StringBuffer("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				buf.append('\\').append(c);
+			else if (c < 0x20)
+				buf.append(String.format("\\u%04x", (int) c));
+			else
+				buf.append(c);
+		}
+		return buf.append('"').toString();
+	}
+
+	private static String arrayToJSON(long[] array) {
+		StringBuffer buf = new StringBuffer("[");
+		for (int i = 0; i < array.length; i++)
+			buf.append((i > 0 ? ", " : "") + array[i]);
+		return buf.append("]").toString();
+	}
+
+	/**
+	 * A count that only grows.
+	 */
+	public static final class Counter {
+		private Counter() {
+		}
+
+		/**
+		 * Add to this counter.
+		 *
+		 * @param amount the amount to add.
+		 */
+		public void add(long amount) {
+			value += amount;
+		}
+
+		/**
+		 * Return the value of this counter.
+		 *
+		 * @return the value.
+		 */
+		public long get() {
+			return value;
+		}
+
+		private long value = 0;
+	}
+
+	/**
+	 * A value that can go up and down.
+	 */
+	public static final class Gauge {
+		private Gauge() {
+		}
+
+		/**
+		 * Set the value of this gauge.
+		 *
+		 * @param value the new value.
+		 */
+		public void set(long value) {
+			this.value = value;
+		}
+
+		/**
+		 * Return the value of this gauge.
+		 *
+		 * @return the value.
+		 */
+		public long get() {
+			return value;
+		}
+
+		private long value = 0;
+	}
+
+	/**
+	 * A latency distribution, in both simulated ticks and wall-clock
+	 * nanoseconds.
+	 */
+	public static final class Histogram {
+		private Histogram() {
+		}
+
+		/**
+		 * Add a sample to this histogram.
+		 *
+		 * @param ticks the latency in simulated ticks.
+		 * @param nanos the latency in wall-clock nanoseconds.
+		 */
+		public void addSample(long ticks, long nanos) {
+			count++;
+			totalTicks += ticks;
+			totalNanos += nanos;
+
+			Stats.addSample(this.ticks, ticks);
+			Stats.addSample(this.nanos, nanos);
+		}
+
+		/**
+		 * Return the number of samples in this histogram.
+		 *
+		 * @return the number of samples.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		private long count = 0, totalTicks = 0, totalNanos = 0;
+
+		private long[] ticks = new long[Stats.histogramBuckets];
+
+		private long[] nanos = new long[Stats.histogramBuckets];
+	}
+
+	/**
+	 * The values of every counter and gauge at one time.
+	 */
+	private static class Snapshot {
+		Snapshot(long time, TreeMap<String, Long> values) {
+			this.time = time;
+			this.values = values;
+		}
+
+		long time;
+
+		TreeMap<String, Long> values;
+	}
+
+	private static boolean enabled = false;
+
+	private static int snapshotInterval;
+
+	private static int maxSnapshots;
+
+	private static long nextSnapshot = 0;
+
+	private static String csvFileName, jsonFileName;
+
+	private static TreeMap<String, Counter> counters = new TreeMap<String, Counter>();
+
+	private static TreeMap<String, Gauge> gauges = new TreeMap<String, Gauge>();
+
+	private static TreeMap<String, Histogram> histograms = new TreeMap<String, Histogram>();
+
+	private static LinkedList<Snapshot> snapshots = new LinkedList<Snapshot>();
+}
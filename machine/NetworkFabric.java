@@ -0,0 +1,148 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A simulated switch connecting the network links of one simulation, used
+ * instead of UDP sockets when the <tt>nachos.conf</tt> key
+ * <tt>NetworkLink.fabric</tt> is <tt>true</tt>. Packets never leave the
+ * simulation, and their timing and loss are decided entirely by simulated
+ * time and <tt>Lib.random()</tt>, so a run is reproducible for a given random
+ * seed.
+ *
+ * <p>
+ * The fabric, like the rest of the machine, is static, so it connects only
+ * the links of its own simulation; the simulations of a
+ * <tt>BatchRunner</tt> batch each have their own. To simulate several nodes,
+ * set <tt>NetworkFabric.links</tt>, and the machine attaches that many links,
+ * each with its own address; see <tt>Machine.networkLink(int)</tt>.
+ *
+ * <p>
+ * Each packet leaving a link is delayed by three things:
+ * <ul>
+ * <li>serialization: <tt>NetworkFabric.ticksPerByte</tt> ticks per byte, with
+ * packets from the same link sent one after another;
+ * <li>propagation: <tt>NetworkFabric.latency</tt> ticks;
+ * <li>with probability <tt>NetworkFabric.reorder</tt>, up to
+ * <tt>NetworkFabric.jitter</tt> extra ticks, which lets it arrive after
+ * packets sent later.
+ * </ul>
+ * It is dropped with probability <tt>1 - NetworkFabric.reliability</tt>,
+ * which defaults to <tt>NetworkLink.reliability</tt>. Each of these keys can be
+ * overridden for packets sent by one link by appending <tt>.</tt><i>link</i>,
+ * for example <tt>NetworkFabric.latency.3</tt>.
+ */
+public final class NetworkFabric {
+	/**
+	 * Return the fabric shared by every network link in this simulation,
+	 * creating it on first use.
+	 *
+	 * @return the fabric.
+	 */
+	public static synchronized NetworkFabric getFabric() {
+		if (fabric == null)
+			fabric = new NetworkFabric();
+
+		return fabric;
+	}
+
+	private NetworkFabric() {
+		defaultLatency = Config.getInteger("NetworkFabric.latency",
+				Stats.NetworkTime);
+		defaultTicksPerByte = Config.getInteger("NetworkFabric.ticksPerByte", 0);
+		defaultReliability = Config.getDouble("NetworkFabric.reliability",
+				Config.getDouble("NetworkLink.reliability"));
+		defaultReorder = Config.getDouble("NetworkFabric.reorder", 0.0);
+		defaultJitter = Config.getInteger("NetworkFabric.jitter",
+				Stats.NetworkTime);
+	}
+
+	/**
+	 * Attach a link to this fabric, giving it the lowest unused address.
+	 *
+	 * @param link the link to attach.
+	 * @return the link's address, or -1 if every address is in use.
+	 */
+	synchronized int attach(NetworkLink link) {
+		for (int address = 0; address < links.length; address++) {
+			if (links[address] == null) {
+				links[address] = link;
+				configure(address);
+				return address;
+			}
+		}
+
+		return -1;
+	}
+
+	private void configure(int address) {
+		latency[address] = Config.getInteger("NetworkFabric.latency."
+				+ address, defaultLatency);
+		ticksPerByte[address] = Config.getInteger("NetworkFabric.ticksPerByte."
+				+ address, defaultTicksPerByte);
+		reliability[address] = Config.getDouble("NetworkFabric.reliability."
+				+ address, defaultReliability);
+		reorder[address] = Config.getDouble("NetworkFabric.reorder." + address,
+				defaultReorder);
+		jitter[address] = Config.getInteger("NetworkFabric.jitter." + address,
+				defaultJitter);
+
+		Lib.assertTrue(latency[address] >= 0 && ticksPerByte[address] >= 0
+				&& jitter[address] >= 0);
+		Lib.assertTrue(reliability[address] > 0 && reliability[address] <= 1.0);
+
+		busyUntil[address] = 0;
+	}
+
+	/**
+	 * Carry a packet from one link to another. The bytes are copied, so the
+	 * caller may reuse its buffer at once.
+	 *
+	 * @param packet the packet, whose <tt>srcLink</tt> is the sending link.
+	 * @return <tt>true</tt> if the packet will be delivered.
+	 */
+	synchronized boolean transmit(Packet packet) {
+		int src = packet.srcLink;
+		int dst = packet.dstLink;
+		int length = packet.getLength();
+
+		if (Lib.random() >= reliability[src] || links[dst] == null)
+			return false;
+
+		long now = Machine.timer().getTime();
+
+		long start = Math.max(now, busyUntil[src]);
+		busyUntil[src] = start + (long) length * ticksPerByte[src];
+
+		long delay = busyUntil[src] - now + latency[src];
+		if (reorder[src] > 0 && Lib.random() < reorder[src])
+			delay += Lib.random(jitter[src] + 1);
+
+		byte[] packetBytes = Packet.allocateBuffer();
+		System.arraycopy(packet.packetBytes, 0, packetBytes, 0, length);
+
+		links[dst].arrive(packetBytes, length, Math.max(1, delay));
+		return true;
+	}
+
+	private static NetworkFabric fabric = null;
+
+	private NetworkLink[] links = new NetworkLink[Packet.linkAddressLimit];
+
+	private int defaultLatency, defaultTicksPerByte, defaultJitter;
+
+	private double defaultReliability, defaultReorder;
+
+	private int[] latency = new int[Packet.linkAddressLimit];
+
+	private int[] ticksPerByte = new int[Packet.linkAddressLimit];
+
+	private int[] jitter = new int[Packet.linkAddressLimit];
+
+	private double[] reliability = new double[Packet.linkAddressLimit];
+
+	private double[] reorder = new double[Packet.linkAddressLimit];
+
+	/** The time at which each link finishes serializing its last packet. */
+	private long[] busyUntil = new long[Packet.linkAddressLimit];
+}
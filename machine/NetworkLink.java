@@ -5,11 +5,16 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.LinkedList;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A full-duplex network link. Provides ordered, unreliable delivery of
@@ -57,6 +62,27 @@ import java.net.SocketException;
  * network layer in Nachos. This should simplify your design for the
  * session/transport layer, since you can assume packets never arrive out of
  * order.
+ * 
+ * <p>
+ * The link receives datagrams on a non-blocking channel, using a background
+ * Java thread that waits on a selector. That thread drains every datagram
+ * that is ready into a single-producer, single-consumer ring of
+ * <tt>NetworkLink.ringSize</tt> packets (256 by default), so a burst of
+ * packets is not lost while Nachos is busy. At each receive interrupt, every
+ * packet waiting in the ring is handed to the simulation at once.
+ * 
+ * <p>
+ * If <tt>NetworkLink.fabric</tt> is <tt>true</tt>, the link is attached to the
+ * simulation's <tt>NetworkFabric</tt> instead, and no sockets are used.
+ * Packets then arrive at the simulated time the fabric decides, and the
+ * fabric, rather than the link, decides which packets are lost. A machine
+ * may then have several links; see <tt>NetworkFabric.links</tt>.
+ *
+ * <p>
+ * The datagrams received over UDP, and the link address, are the inputs that
+ * <tt>InputLog</tt> records and replays. A replayed link opens no channel.
+ *
+ * @see nachos.machine.NetworkFabric
  */
 public class NetworkLink {
 	/**
@@ -86,18 +112,66 @@ public class NetworkLink {
 		reliability = Config.getDouble("NetworkLink.reliability");
 		Lib.assertTrue(reliability > 0 && reliability <= 1.0);
 
-		socket = null;
+		receiveInterrupt = new Runnable() {
+			public void run() {
+				receiveInterrupt();
+			}
+		};
+
+		sendInterrupt = new Runnable() {
+			public void run() {
+				sendInterrupt();
+			}
+		};
+
+		if (Config.getBoolean("NetworkLink.fabric", false)) {
+			fabric = NetworkFabric.getFabric();
+
+			int address = fabric.attach(this);
+			if (address == -1) {
+				System.out.println("");
+				System.out.println("Unable to acquire a link address!");
+				Lib.assertNotReached();
+			}
+
+			linkAddress = (byte) address;
+			System.out.print("(" + linkAddress + ", fabric)");
+			return;
+		}
+
+		if (InputLog.replaying()) {
+			linkAddress = (byte) InputLog.replayLinkAddress();
+			System.out.print("(" + linkAddress + ", replay)");
+
+			scheduleReceiveInterrupt();
+			return;
+		}
+
+		int ringSize = Config.getInteger("NetworkLink.ringSize", 256);
+		Lib.assertTrue(ringSize > 0);
+		ring = new byte[ringSize][];
+		ringLengths = new int[ringSize];
+
+		channel = null;
 
 		for (linkAddress = 0; linkAddress < Packet.linkAddressLimit; linkAddress++) {
 			try {
-				socket = new DatagramSocket(portBase + linkAddress, localHost);
+				channel = DatagramChannel.open();
+				channel.bind(new InetSocketAddress(localHost, portBase
+						+ linkAddress));
 				break;
 			}
-			catch (SocketException e) {
+			catch (IOException e) {
+				try {
+					channel.close();
+				}
+				catch (IOException e2) {
+				}
+				channel = null;
 			}
 		}
 
-		if (socket == null) {
+		if (channel == null) {
 			System.out.println("");
 			System.out.println("Unable to acquire a link address!");
 			Lib.assertNotReached();
@@ -105,26 +179,30 @@ public class NetworkLink {
 
 		System.out.print("(" + linkAddress + ")");
 
-		receiveInterrupt = new Runnable() {
-			public void run() {
-				receiveInterrupt();
-			}
-		};
+		InputLog.recordLinkAddress(linkAddress);
 
-		sendInterrupt = new Runnable() {
-			public void run() {
-				sendInterrupt();
-			}
-		};
+		try {
+			// leave room in the host's buffer for bursts while the ring is full
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, socketBufferSize);
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("unable to set up network channel: " + e);
+		}
+
+		destinations = new InetSocketAddress[Packet.linkAddressLimit];
 
 		scheduleReceiveInterrupt();
 
-		Thread receiveThread = new Thread(new Runnable() {
+		receiveThread = new Thread(new Runnable() {
 			public void run() {
 				receiveLoop();
 			}
 		});
 
+		receiveThread.setDaemon(true);
 		receiveThread.start();
 	}
 
@@ -161,86 +239,152 @@ public class NetworkLink {
 	}
 
 	private void scheduleReceiveInterrupt() {
+		if (receiveScheduled)
+			return;
+
+		receiveScheduled = true;
 		privilege.interrupt.schedule(Stats.NetworkTime, "network recv",
 				receiveInterrupt);
 	}
 
-	private synchronized void receiveInterrupt() {
-		Lib.assertTrue(incomingPacket == null);
+	private void receiveInterrupt() {
+		receiveScheduled = false;
 
-		if (incomingBytes != null) {
-			if (Machine.autoGrader().canReceivePacket(privilege)) {
-				try {
-					incomingPacket = new Packet(incomingBytes);
+		if (InputLog.replaying()) {
+			// take what arrived at this poll in the recorded run
+			int[] length = new int[1];
+			byte[] packetBytes;
+			while ((packetBytes = InputLog.replayPacket(length)) != null)
+				accept(packetBytes, length[0]);
+		}
+		else {
+			// take everything the receive thread has queued since the last poll
+			boolean wasFull = ringTail - ringHead == ring.length;
+
+			while (ringHead != ringTail) {
+				int slot = (int) (ringHead % ring.length);
+				byte[] packetBytes = ring[slot];
+				int length = ringLengths[slot];
+				ring[slot] = null;
+				ringHead++;
+
+				InputLog.recordPacket(packetBytes, length);
+				accept(packetBytes, length);
+			}
 
-					privilege.stats.numPacketsReceived++;
-				}
-				catch (MalformedPacketException e) {
-				}
+			// the receive thread parks while the ring is full
+			if (wasFull)
+				LockSupport.unpark(receiveThread);
+		}
+
+		if (incomingPackets.isEmpty())
+			scheduleReceiveInterrupt();
+		else if (receiveInterruptHandler != null)
+			receiveInterruptHandler.run();
+
+		// poll again if the handler did not take every packet
+		if (!incomingPackets.isEmpty())
+			scheduleReceiveInterrupt();
+	}
+
+	/**
+	 * Called by the fabric when it accepts a packet for this link. The packet
+	 * reaches the simulation after <i>delay</i> ticks.
+	 */
+	void arrive(final byte[] packetBytes, final int length, long delay) {
+		privilege.interrupt.schedule(delay, "network fabric", new Runnable() {
+			public void run() {
+				fabricInterrupt(packetBytes, length);
 			}
+		});
+	}
+
+	private void fabricInterrupt(byte[] packetBytes, int length) {
+		if (accept(packetBytes, length) && receiveInterruptHandler != null)
+			receiveInterruptHandler.run();
+	}
+
+	/**
+	 * Hand a received datagram to the simulation, unless the autograder
+	 * drops it or it is malformed, in which case its buffer is freed.
+	 *
+	 * @return <tt>true</tt> if the packet was queued for <tt>receive()</tt>.
+	 */
+	private boolean accept(byte[] packetBytes, int length) {
+		Packet p = null;
 
-			incomingBytes = null;
-			notify();
+		if (Machine.autoGrader().canReceivePacket(privilege)) {
+			try {
+				p = new Packet(packetBytes, length, true);
 
-			if (incomingPacket == null)
-				scheduleReceiveInterrupt();
-			else if (receiveInterruptHandler != null)
-				receiveInterruptHandler.run();
+				privilege.stats.numPacketsReceived++;
+			}
+			catch (MalformedPacketException e) {
+			}
 		}
-		else {
-			scheduleReceiveInterrupt();
+
+		if (p == null) {
+			Packet.freeBuffer(packetBytes);
+			return false;
 		}
+
+		incomingPackets.add(p);
+		return true;
 	}
 
 	/**
-	 * Return the next packet received.
+	 * Return the next packet received. Several packets may become available
+	 * at the same receive interrupt, so the interrupt handler should call this
+	 * until it returns <tt>null</tt>. The packet's buffer comes from the
+	 * shared pool; the caller may return it with <tt>Packet.free()</tt> once
+	 * it is finished with the packet.
 	 * 
 	 * @return the next packet received, or <tt>null</tt> if no packet is
 	 * available.
 	 */
 	public Packet receive() {
-		Packet p = incomingPacket;
+		Packet p = incomingPackets.poll();
 
-		if (incomingPacket != null) {
-			incomingPacket = null;
+		if (p != null && incomingPackets.isEmpty() && fabric == null)
 			scheduleReceiveInterrupt();
-		}
 
 		return p;
 	}
 
+	/**
+	 * Move datagrams from the channel into the ring. Runs in its own Java
+	 * thread, which is the ring's only producer.
+	 */
 	private void receiveLoop() {
 		while (true) {
-			synchronized (this) {
-				while (incomingBytes != null) {
-					try {
-						wait();
-					}
-					catch (InterruptedException e) {
-					}
-				}
-			}
-
-			byte[] packetBytes;
-
 			try {
-				byte[] buffer = new byte[Packet.maxPacketLength];
+				selector.select();
+				selector.selectedKeys().clear();
 
-				DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
+				while (true) {
+					// wait for Nachos to make room, leaving data on the host
+					while (ringTail - ringHead == ring.length)
+						LockSupport.park(this);
 
-				socket.receive(dp);
+					byte[] packetBytes = Packet.allocateBuffer();
+					ByteBuffer buffer = ByteBuffer.wrap(packetBytes);
 
-				packetBytes = new byte[dp.getLength()];
+					if (channel.receive(buffer) == null) {
+						Packet.freeBuffer(packetBytes);
+						break;
+					}
+
+					int slot = (int) (ringTail % ring.length);
+					ring[slot] = packetBytes;
+					ringLengths[slot] = buffer.position();
 
-				System.arraycopy(buffer, 0, packetBytes, 0, packetBytes.length);
+					// publish the slot to the consumer
+					ringTail++;
+				}
 			}
 			catch (IOException e) {
 				return;
 			}
-
-			synchronized (this) {
-				incomingBytes = packetBytes;
-			}
 		}
 	}
 
@@ -252,8 +396,16 @@ public class NetworkLink {
 	private void sendInterrupt() {
 		Lib.assertTrue(outgoingPacket != null);
 
+		if (fabric != null) {
+			Packet p = outgoingPacket;
+			outgoingPacket = null;
+
+			if (Machine.autoGrader().canSendPacket(privilege)
+					&& fabric.transmit(p))
+				privilege.stats.numPacketsSent++;
+		}
 		// randomly drop packets, according to its reliability
-		if (Machine.autoGrader().canSendPacket(privilege)
+		else if (Machine.autoGrader().canSendPacket(privilege)
 				&& Lib.random() <= reliability) {
 			// ok, no drop
 			privilege.doPrivileged(new Runnable() {
@@ -274,9 +426,19 @@ public class NetworkLink {
 		Packet p = outgoingPacket;
 		outgoingPacket = null;
 
+		// a replayed run has no channel, and no one to send to
+		if (channel == null) {
+			privilege.stats.numPacketsSent++;
+			return;
+		}
+
 		try {
-			socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
-					localHost, portBase + p.dstLink));
+			if (destinations[p.dstLink] == null)
+				destinations[p.dstLink] = new InetSocketAddress(localHost,
+						portBase + p.dstLink);
+
+			channel.send(ByteBuffer.wrap(p.packetBytes, 0, p.getLength()),
+					destinations[p.dstLink]);
 
 			privilege.stats.numPacketsSent++;
 		}
@@ -297,6 +459,8 @@ public class NetworkLink {
 		outgoingPacket = pkt;
 	}
 
+	private static final int socketBufferSize = 1 << 20;
+
 	private static final int hash;
 
 	private static final int portBase;
@@ -327,17 +491,35 @@ public class NetworkLink {
 
 	private InetAddress localHost;
 
-	private DatagramSocket socket;
+	private NetworkFabric fabric = null;
+
+	private DatagramChannel channel;
+
+	private Selector selector;
+
+	private Thread receiveThread;
+
+	private InetSocketAddress[] destinations;
 
 	private byte linkAddress;
 
 	private double reliability;
 
-	private byte[] incomingBytes = null;
+	/**
+	 * Datagrams received but not yet seen by Nachos. The receive thread is the
+	 * only writer of <tt>ringTail</tt> and the slots it publishes; the
+	 * interrupt handler is the only writer of <tt>ringHead</tt>.
+	 */
+	private byte[][] ring;
 
-	private Packet incomingPacket = null;
+	private int[] ringLengths;
 
-	private Packet outgoingPacket = null;
+	private volatile long ringHead = 0, ringTail = 0;
 
-	private boolean sendBusy = false;
+	/** Packets handed to the simulation but not yet taken by receive(). */
+	private LinkedList<Packet> incomingPackets = new LinkedList<Packet>();
+
+	private boolean receiveScheduled = false;
+
+	private Packet outgoingPacket = null;
 }
@@ -2,14 +2,26 @@
 
 package nachos.machine;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+
 /**
- * A link-layer packet.
+ * A link-layer packet. A packet is a view over a byte array holding the
+ * header followed by the contents, so building a packet around data that is
+ * already in place, or receiving one from the network, copies nothing. The
+ * contents start at <tt>headerLength</tt> in <tt>packetBytes</tt>.
+ * 
+ * <p>
+ * Packets may be built on buffers taken from a shared pool with
+ * <tt>allocateBuffer()</tt>. The network link receives into pooled buffers,
+ * and whoever is finished with a pooled packet returns its buffer with
+ * <tt>free()</tt>, so that the steady-state network path does not allocate.
  * 
  * @see nachos.machine.NetworkLink
  */
 public class Packet {
 	/**
-	 * Allocate a new packet to be sent, using the specified parameters.
+	 * Allocate a new packet to be sent, using the specified parameters. The
+	 * contents are copied into a new buffer.
 	 * 
 	 * @param dstLink the destination link address.
 	 * @param srcLink the source link address.
@@ -17,26 +29,40 @@ public class Packet {
 	 */
 	public Packet(int dstLink, int srcLink, byte[] contents)
 			throws MalformedPacketException {
+		this(dstLink, srcLink, copyContents(contents), contents.length, false);
+	}
+
+	/**
+	 * Allocate a new packet to be sent, whose contents have already been
+	 * placed in <i>packetBytes</i> starting at <tt>headerLength</tt>. The
+	 * header is written in place, and nothing is copied.
+	 * 
+	 * @param dstLink the destination link address.
+	 * @param srcLink the source link address.
+	 * @param packetBytes the buffer holding this packet.
+	 * @param contentsLength the number of content bytes.
+	 * @param pooled <tt>true</tt> if <i>packetBytes</i> came from
+	 * <tt>allocateBuffer()</tt> and may be returned to the pool.
+	 */
+	public Packet(int dstLink, int srcLink, byte[] packetBytes,
+			int contentsLength, boolean pooled) throws MalformedPacketException {
 		// make sure the paramters are valid
 		if (dstLink < 0 || dstLink >= linkAddressLimit || srcLink < 0
-				|| srcLink >= linkAddressLimit
-				|| contents.length > maxContentsLength)
+				|| srcLink >= linkAddressLimit || contentsLength < 0
+				|| contentsLength > maxContentsLength
+				|| headerLength + contentsLength > packetBytes.length)
 			throw new MalformedPacketException();
 
 		this.dstLink = dstLink;
 		this.srcLink = srcLink;
-		this.contents = contents;
-
-		packetBytes = new byte[headerLength + contents.length];
+		this.packetBytes = packetBytes;
+		this.contentsLength = contentsLength;
+		this.pooled = pooled;
 
 		packetBytes[0] = NetworkLink.networkID;
 		packetBytes[1] = (byte) dstLink;
 		packetBytes[2] = (byte) srcLink;
-		packetBytes[3] = (byte) contents.length;
-
-		// if java had subarrays, i'd use them. but System.arraycopy is ok...
-		System.arraycopy(contents, 0, packetBytes, headerLength,
-				contents.length);
+		packetBytes[3] = (byte) contentsLength; // unsigned
 	}
 
 	/**
@@ -46,26 +72,104 @@ public class Packet {
 	 * @param packetBytes the bytes making up this packet.
 	 */
 	public Packet(byte[] packetBytes) throws MalformedPacketException {
-		this.packetBytes = packetBytes;
+		this(packetBytes, packetBytes.length, false);
+	}
 
+	/**
+	 * Allocate a new packet over the first <i>length</i> bytes of a buffer
+	 * received from the network. Nothing is copied.
+	 * 
+	 * @param packetBytes the buffer holding this packet.
+	 * @param length the number of bytes received.
+	 * @param pooled <tt>true</tt> if <i>packetBytes</i> came from
+	 * <tt>allocateBuffer()</tt> and may be returned to the pool.
+	 */
+	public Packet(byte[] packetBytes, int length, boolean pooled)
+			throws MalformedPacketException {
 		// make sure we have a valid header
-		if (packetBytes.length < headerLength
+		if (length < headerLength || length > packetBytes.length
 				|| packetBytes[0] != NetworkLink.networkID
 				|| packetBytes[1] < 0 || packetBytes[1] >= linkAddressLimit
 				|| packetBytes[2] < 0 || packetBytes[2] >= linkAddressLimit
-				|| packetBytes[3] < 0
-				|| packetBytes[3] > packetBytes.length - 4)
+				|| (packetBytes[3] & 0xFF) > length - headerLength)
 			throw new MalformedPacketException();
 
+		this.packetBytes = packetBytes;
+		this.pooled = pooled;
+
 		dstLink = packetBytes[1];
 		srcLink = packetBytes[2];
+		contentsLength = packetBytes[3] & 0xFF;
+	}
 
-		contents = new byte[packetBytes[3]];
-		System.arraycopy(packetBytes, headerLength, contents, 0,
+	private static byte[] copyContents(byte[] contents) {
+		byte[] packetBytes = new byte[headerLength + contents.length];
+		System.arraycopy(contents, 0, packetBytes, headerLength,
 				contents.length);
+		return packetBytes;
+	}
+
+	/**
+	 * Return the number of bytes this packet occupies on the network.
+	 * 
+	 * @return the length of the header plus the contents.
+	 */
+	public int getLength() {
+		return headerLength + contentsLength;
+	}
+
+	/**
+	 * Return a copy of the contents of this packet.
+	 * 
+	 * @return a new array holding the contents.
+	 */
+	public byte[] getContents() {
+		byte[] contents = new byte[contentsLength];
+		System.arraycopy(packetBytes, headerLength, contents, 0,
+				contentsLength);
+		return contents;
+	}
+
+	/**
+	 * Return this packet's buffer to the pool, if it came from there. The
+	 * packet must not be used afterwards.
+	 */
+	public void free() {
+		if (pooled) {
+			pooled = false;
+			freeBuffer(packetBytes);
+		}
+	}
+
+	/**
+	 * Take a buffer of <tt>maxPacketLength</tt> bytes from the shared pool,
+	 * allocating one if the pool is empty. May be called from any Java
+	 * thread.
+	 * 
+	 * @return a buffer large enough for any packet.
+	 */
+	public static byte[] allocateBuffer() {
+		byte[] buffer = bufferPool.poll();
+		return (buffer != null) ? buffer : new byte[maxPacketLength];
+	}
+
+	/**
+	 * Return a buffer obtained from <tt>allocateBuffer()</tt> to the shared
+	 * pool. May be called from any Java thread.
+	 * 
+	 * @param buffer the buffer, which must not be used afterwards.
+	 */
+	public static void freeBuffer(byte[] buffer) {
+		Lib.assertTrue(buffer.length == maxPacketLength);
+
+		if (bufferPool.size() < maxPooledBuffers)
+			bufferPool.add(buffer);
 	}
 
-	/** This packet, as an array of bytes that can be sent on a network. */
+	/**
+	 * This packet, as an array of bytes that can be sent on a network. Only
+	 * the first <tt>getLength()</tt> bytes belong to the packet.
+	 */
 	public byte[] packetBytes;
 
 	/** The address of the destination link of this packet. */
@@ -74,8 +178,18 @@ public class Packet {
 	/** The address of the source link of this packet. */
 	public int srcLink;
 
-	/** The contents of this packet, excluding the link-layer header. */
-	public byte[] contents;
+	/**
+	 * The number of content bytes in this packet, excluding the link-layer
+	 * header. The contents start at <tt>headerLength</tt> in
+	 * <tt>packetBytes</tt>.
+	 */
+	public int contentsLength;
+
+	private boolean pooled;
+
+	private static ConcurrentLinkedQueue<byte[]> bufferPool = new ConcurrentLinkedQueue<byte[]>();
+
+	private static final int maxPooledBuffers = 256;
 
 	/**
 	 * The number of bytes in a link-layer packet header. The header is
@@ -105,7 +219,7 @@ public class Packet {
 	 * <tr>
 	 * <td>3</td>
 	 * <td>1</td>
-	 * <td>length of contents</td>
+	 * <td>length of contents, unsigned</td>
 	 * </tr>
 	 * </table>
 	 */
@@ -113,9 +227,25 @@ public class Packet {
 
 	/**
 	 * The maximum length, in bytes, of a packet that can be sent or received on
-	 * the network.
+	 * the network: the link MTU. It is taken from the <tt>nachos.conf</tt> key
+	 * <tt>NetworkLink.mtu</tt>, which defaults to 32 and must be between 16
+	 * and <tt>largestPacketLength</tt>. Every machine on a network must use the
+	 * same value.
+	 */
+	public static final int maxPacketLength = Config.getInteger(
+			"NetworkLink.mtu", 32);
+
+	/**
+	 * The largest MTU the header can describe, since the length of the
+	 * contents is a single unsigned byte.
 	 */
-	public static final int maxPacketLength = 32;
+	public static final int largestPacketLength = headerLength + 255;
+
+	static {
+		Lib.assertTrue(maxPacketLength >= 16
+				&& maxPacketLength <= largestPacketLength,
+				"NetworkLink.mtu out of range");
+	}
 
 	/**
 	 * The maximum number of content bytes (not including the header). Note that
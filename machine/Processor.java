@@ -100,9 +100,30 @@ public final class Processor {
 			}
 
 			privilege.interrupt.tick(false);
+
+			if (sampleHandler != null && --sampleCountdown == 0) {
+				sampleCountdown = sampleInterval;
+				sampleHandler.run();
+			}
 		}
 	}
 
+	/**
+	 * Set the handler to be called every <i>interval</i> user instructions,
+	 * for use by a sampling profiler. The handler is called between two
+	 * instructions, in the thread running them, and must not switch threads.
+	 * 
+	 * @param sampleHandler the handler, or <tt>null</tt> to stop sampling.
+	 * @param interval the number of instructions between calls.
+	 */
+	public void setSampleHandler(Runnable sampleHandler, int interval) {
+		Lib.assertTrue(interval > 0);
+
+		this.sampleHandler = sampleHandler;
+		sampleInterval = interval;
+		sampleCountdown = interval;
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -571,6 +592,10 @@ public final class Processor {
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
+	private Runnable sampleHandler = null;
+
+	private int sampleInterval, sampleCountdown;
+
 	private static final char dbgProcessor = 'p';
 
 	private static final char dbgDisassemble = 'm';
@@ -581,6 +606,15 @@ public final class Processor {
 		public void flushPipe() {
 			finishLoad();
 		}
+
+		public int translate(int vaddr, int size, boolean writing) {
+			try {
+				return Processor.this.translate(vaddr, size, writing);
+			}
+			catch (MipsException e) {
+				return -1;
+			}
+		}
 	}
 
 	private class MipsException extends Exception {
@@ -4,10 +4,20 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * A text-based console that uses System.in and System.out.
+ * 
+ * <p>
+ * In bulk transfer mode (the <tt>nachos.conf</tt> key
+ * <tt>StandardConsole.bulkTransfer</tt>, on by default), output is coalesced
+ * in a buffer that is flushed on every newline, whenever the console goes idle,
+ * and when Nachos halts, and input is read by a background thread instead of
+ * being polled. The simulated timing of both directions is unchanged.
  */
 public class StandardConsole implements SerialConsole {
 	/**
@@ -32,6 +42,29 @@ public class StandardConsole implements SerialConsole {
 			}
 		};
 
+		bulkTransfer = Config.getBoolean("StandardConsole.bulkTransfer", true);
+
+		if (bulkTransfer) {
+			output = new BufferedOutputStream(System.out, bufferSize);
+
+			privilege.addExitNotificationHandler(new Runnable() {
+				public void run() {
+					flush();
+				}
+			});
+		}
+
+		// a replayed run takes its input from the log instead
+		if (bulkTransfer && !InputLog.replaying()) {
+			Thread inputThread = new Thread(new Runnable() {
+				public void run() {
+					inputLoop();
+				}
+			});
+			inputThread.setDaemon(true);
+			inputThread.start();
+		}
+
 		scheduleReceiveInterrupt();
 	}
 
@@ -52,6 +85,11 @@ public class StandardConsole implements SerialConsole {
 	 * @return the byte read, or -1 of no data is available.
 	 */
 	protected int in() {
+		if (bulkTransfer) {
+			Integer value = input.poll();
+			return (value == null) ? -1 : value.intValue();
+		}
+
 		try {
 			if (System.in.available() <= 0)
 				return -1;
@@ -63,6 +101,20 @@ public class StandardConsole implements SerialConsole {
 		}
 	}
 
+	/**
+	 * Read <tt>System.in</tt> until end of file, queueing each byte for
+	 * <tt>in()</tt>. Runs in its own Java thread in bulk transfer mode.
+	 */
+	private void inputLoop() {
+		try {
+			int value;
+			while ((value = System.in.read()) != -1)
+				input.add(value);
+		}
+		catch (IOException e) {
+		}
+	}
+
 	private int translateCharacter(int c) {
 		// translate win32 0x0D 0x0A sequence to single newline
 		if (c == 0x0A && prevCarriageReturn) {
@@ -91,7 +143,14 @@ public class StandardConsole implements SerialConsole {
 	private void receiveInterrupt() {
 		Lib.assertTrue(incomingKey == -1);
 
-		incomingKey = translateCharacter(in());
+		// nothing was sent since the last poll, so the console is idle
+		if (bulkTransfer && outgoingKey == -1)
+			flush();
+
+		int value = InputLog.replaying() ? InputLog.replayConsoleByte() : in();
+		InputLog.recordConsoleByte(value);
+
+		incomingKey = translateCharacter(value);
 		if (incomingKey == -1) {
 			scheduleReceiveInterrupt();
 		}
@@ -125,10 +184,35 @@ public class StandardConsole implements SerialConsole {
 	 * @param value the byte to write.
 	 */
 	protected void out(int value) {
+		if (bulkTransfer) {
+			try {
+				output.write(value);
+				if (value == '\n')
+					output.flush();
+			}
+			catch (IOException e) {
+			}
+			return;
+		}
+
 		System.out.write(value);
 		System.out.flush();
 	}
 
+	/**
+	 * Write out any output still buffered in bulk transfer mode.
+	 */
+	void flush() {
+		if (!bulkTransfer)
+			return;
+
+		try {
+			output.flush();
+		}
+		catch (IOException e) {
+		}
+	}
+
 	private void sendInterrupt() {
 		Lib.assertTrue(outgoingKey != -1);
 
@@ -163,4 +247,12 @@ public class StandardConsole implements SerialConsole {
 	private int outgoingKey = -1;
 
 	private boolean prevCarriageReturn = false;
+
+	private boolean bulkTransfer;
+
+	private OutputStream output = null;
+
+	private LinkedBlockingQueue<Integer> input = new LinkedBlockingQueue<Integer>();
+
+	private static final int bufferSize = 4096;
 }
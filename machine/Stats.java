@@ -22,6 +22,9 @@ public final class Stats {
 				+ kernelTicks + ", user " + userTicks);
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
 				+ numDiskWrites);
+		if (numDiskReads + numDiskWrites > 0)
+			System.out.println("Disk latency: "
+					+ histogramToString(diskLatency));
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
@@ -46,28 +49,83 @@ public final class Stats {
 	public long userTicks = 0;
 
 	/** The total number of sectors Nachos has read from the simulated disk. */
-	public int numDiskReads = 0;
+	public long numDiskReads = 0;
 
 	/** The total number of sectors Nachos has written to the simulated disk. */
-	public int numDiskWrites = 0;
+	public long numDiskWrites = 0;
+
+	/**
+	 * A histogram of the simulated time taken by each disk request, from the
+	 * start of its seek to the end of its transfer. Bucket <i>i</i> counts the
+	 * requests that took fewer than 2<sup><i>i</i>+1</sup> ticks, but at least
+	 * 2<sup><i>i</i></sup> ticks.
+	 */
+	public long[] diskLatency = new long[histogramBuckets];
 
 	/** The total number of characters Nachos has read from the console. */
-	public int numConsoleReads = 0;
+	public long numConsoleReads = 0;
 
 	/** The total number of characters Nachos has written to the console. */
-	public int numConsoleWrites = 0;
+	public long numConsoleWrites = 0;
 
 	/** The total number of page faults that have occurred. */
-	public int numPageFaults = 0;
+	public long numPageFaults = 0;
 
 	/** The total number of TLB misses that have occurred. */
-	public int numTLBMisses = 0;
+	public long numTLBMisses = 0;
 
 	/** The total number of packets Nachos has sent to the network. */
-	public int numPacketsSent = 0;
+	public long numPacketsSent = 0;
 
 	/** The total number of packets Nachos has received from the network. */
-	public int numPacketsReceived = 0;
+	public long numPacketsReceived = 0;
+
+	/**
+	 * Add a sample to a power-of-two histogram such as <tt>diskLatency</tt>.
+	 * 
+	 * @param histogram the histogram to update.
+	 * @param ticks the sample, in ticks.
+	 */
+	public static void addSample(long[] histogram, long ticks) {
+		int bucket = 0;
+		while (ticks > 1 && bucket < histogram.length - 1) {
+			ticks >>= 1;
+			bucket++;
+		}
+
+		histogram[bucket]++;
+	}
+
+	/**
+	 * Format the non-empty buckets of a power-of-two histogram.
+	 * 
+	 * @param histogram the histogram to format.
+	 * @return a string of the form <tt>&lt;64:3 &lt;128:10</tt>, listing each
+	 * bucket's exclusive upper bound and count.
+	 */
+	public static String histogramToString(long[] histogram) {
+		StringBuffer buf = new StringBuffer();
+
+		for (int i = 0; i < histogram.length; i++) {
+			if (histogram[i] == 0)
+				continue;
+
+			if (buf.length() > 0)
+				buf.append(' ');
+
+			if (i == histogram.length - 1)
+				buf.append(">=" + (1L << i));
+			else
+				buf.append("<" + (1L << (i + 1)));
+
+			buf.append(":" + histogram[i]);
+		}
+
+		return buf.toString();
+	}
+
+	/** The number of buckets in each latency histogram. */
+	public static final int histogramBuckets = 24;
 
 	/**
 	 * The amount to advance simulated time after each user instructions is
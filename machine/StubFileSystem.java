@@ -166,6 +166,60 @@ public class StubFileSystem implements FileSystem {
 		private boolean open = false;
 	}
 
+	/**
+	 * Return the host file holding the named file, as <tt>open()</tt> and
+	 * <tt>remove()</tt> use it, for a subclass that accesses the host file
+	 * some other way. The caller is charged the same simulated delay.
+	 * 
+	 * @param name the name of the file.
+	 * @return the host file, or <tt>null</tt> if the name is not allowed.
+	 */
+	protected File getHostFile(String name) {
+		if (!checkName(name))
+			return null;
+
+		delay();
+
+		return new File(directory, name);
+	}
+
+	/**
+	 * Charge the simulated delay of one read or write request.
+	 */
+	protected void delayRequest() {
+		delay();
+	}
+
+	/**
+	 * Take one of the open file slots shared with <tt>StubOpenFile</tt>.
+	 * 
+	 * @return <tt>false</tt> if all the slots are taken.
+	 */
+	protected boolean reserveOpenFile() {
+		if (openCount == maxOpenFiles)
+			return false;
+
+		openCount++;
+		return true;
+	}
+
+	/**
+	 * Return a slot taken by <tt>reserveOpenFile()</tt>.
+	 */
+	protected void releaseOpenFile() {
+		Lib.assertTrue(openCount > 0);
+		openCount--;
+	}
+
+	/**
+	 * Perform an action that accesses the host, with privilege.
+	 * 
+	 * @param action the action to perform.
+	 */
+	protected void doPrivileged(Runnable action) {
+		privilege.doPrivileged(action);
+	}
+
 	private int openCount = 0;
 
 	private static final int maxOpenFiles = 16;
@@ -216,6 +216,23 @@ public final class TCB {
 		return (currentTCB != null && Thread.currentThread() == currentTCB.javaThread);
 	}
 
+	/**
+	 * Stop every TCB, because the machine is halting but the JVM is not
+	 * exiting, as when it runs a batch of simulations. Every other TCB thread
+	 * unwinds as a destroyed TCB does; the caller must end its own thread by
+	 * throwing <tt>ThreadDeath</tt>.
+	 */
+	static void stopAll() {
+		stopping = true;
+
+		for (TCB tcb : runningThreads.toArray(new TCB[0])) {
+			if (tcb.javaThread != Thread.currentThread()) {
+				tcb.done = true;
+				tcb.interrupt();
+			}
+		}
+	}
+
 	private void threadroot() {
 		// this should be running the current thread
 		Lib.assertTrue(javaThread == Thread.currentThread());
@@ -249,6 +266,9 @@ public final class TCB {
 			Lib.assertNotReached();
 		}
 		catch (ThreadDeath e) {
+			if (stopping)
+				return;
+
 			// make sure this TCB is being destroyed properly
 			if (!done) {
 				System.out.print("\nTCB terminated improperly!\n");
@@ -260,6 +280,9 @@ public final class TCB {
 				privilege.exit(0);
 		}
 		catch (Throwable e) {
+			if (stopping)
+				return;
+
 			System.out.print("\n");
 			e.printStackTrace();
 
@@ -379,6 +402,9 @@ public final class TCB {
 
 	private static KThread toBeDestroyed = null;
 
+	/** Set by <tt>stopAll()</tt>. */
+	private static boolean stopping = false;
+
 	/**
 	 * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
 	 * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -65,6 +65,7 @@ public final class Timer {
 		scheduleAutoGraderInterrupt();
 
 		lastTimerInterrupt = getTime();
+		Metrics.tick(privilege.stats);
 
 		if (handler != null)
 			handler.run();
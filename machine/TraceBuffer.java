@@ -0,0 +1,77 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.PrintStream;
+
+/**
+ * A fixed-size ring of debug messages, used by <tt>Lib.debug()</tt> when the
+ * <tt>nachos.conf</tt> key <tt>Lib.traceBuffer</tt> is set. Each entry holds
+ * the time, the flag, the format string and its arguments; nothing is
+ * formatted until the ring is dumped. When the ring is full, each new message
+ * replaces the oldest one.
+ */
+final class TraceBuffer {
+	/**
+	 * Allocate a new trace buffer.
+	 *
+	 * @param size the number of messages to keep.
+	 */
+	TraceBuffer(int size) {
+		times = new long[size];
+		flags = new char[size];
+		formats = new String[size];
+		args = new Object[size][];
+	}
+
+	/**
+	 * Record a message, replacing the oldest one if the ring is full.
+	 *
+	 * @param time the time of the message, in ticks.
+	 * @param flag the debug flag of the message.
+	 * @param format the message, or its format string if <i>args</i> is not
+	 * <tt>null</tt>.
+	 * @param args the format arguments, or <tt>null</tt>.
+	 */
+	synchronized void record(long time, char flag, String format, Object[] args) {
+		int i = (int) (count % times.length);
+
+		times[i] = time;
+		flags[i] = flag;
+		formats[i] = format;
+		this.args[i] = args;
+
+		count++;
+	}
+
+	/**
+	 * Print the recorded messages, oldest first.
+	 *
+	 * @param out the stream to print to.
+	 */
+	synchronized void dump(PrintStream out) {
+		long first = Math.max(0, count - times.length);
+
+		out.println("trace: last " + (count - first) + " of " + count
+				+ " debug messages");
+
+		for (long n = first; n < count; n++) {
+			int i = (int) (n % times.length);
+
+			out.println("[" + times[i] + "] " + flags[i] + ": "
+					+ (args[i] == null ? formats[i] : String.format(formats[i],
+							args[i])));
+		}
+	}
+
+	private long[] times;
+
+	private char[] flags;
+
+	private String[] formats;
+
+	private Object[][] args;
+
+	/** The number of messages ever recorded. */
+	private long count = 0;
+}
@@ -0,0 +1,429 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * One end of a reliable byte stream managed by a <tt>ConnectionManager</tt>.
+ * A connection is an <tt>OpenFile</tt>, so that user processes can use it
+ * through a file descriptor. Reads never block: they return 0 if no data has
+ * arrived yet, and -1 once the remote end has closed the connection and all
+ * of its data has been read. Writes block while the send buffer is full.
+ *
+ * <p>
+ * All of a connection's state is protected by the manager's lock. Methods
+ * called by the manager expect the lock to be held; the <tt>OpenFile</tt>
+ * methods acquire it themselves.
+ */
+public class Connection extends OpenFile {
+	Connection(ConnectionManager manager, int localPort, int remoteLink,
+			int remotePort) {
+		super(null, "connection to " + remoteLink + ":" + remotePort);
+
+		this.manager = manager;
+		this.localPort = localPort;
+		this.remoteLink = remoteLink;
+		this.remotePort = remotePort;
+
+		windowSize = manager.getWindowSize();
+		peerWindow = windowSize;
+		stateChanged = new Condition(manager.lock);
+
+		maxRetransmits = Config.getInteger("Connection.maxRetransmits", 32);
+	}
+
+	/**
+	 * Send the initial <tt>SYN</tt>.
+	 */
+	void startConnect() {
+		state = synSent;
+		lastSendTime = Machine.timer().getTime();
+		manager.send(this, ConnectionManager.SYN, 0, 0, null, 0);
+	}
+
+	/**
+	 * Wait until the remote end accepts this connection or it times out.
+	 *
+	 * @return <tt>true</tt> if the connection was established.
+	 */
+	boolean waitEstablished() {
+		while (state == synSent)
+			stateChanged.sleep();
+
+		return (state != closed);
+	}
+
+	/**
+	 * Complete a connection that has been waiting on a listening port.
+	 */
+	void accept() {
+		state = established;
+		sendSynAck();
+	}
+
+	private void sendSynAck() {
+		manager.send(this, ConnectionManager.SYN | ConnectionManager.ACK,
+				receiveWindow(), 0, null, 0);
+	}
+
+	private void sendAck() {
+		manager.send(this, ConnectionManager.ACK, receiveWindow(),
+				expectedSeq, null, 0);
+		advertisedWindow = receiveWindow();
+	}
+
+	/**
+	 * Handle a transport message addressed to this connection.
+	 */
+	void receive(int flags, int window, int number, byte[] payload) {
+		if (state == closed)
+			return;
+
+		if ((flags & ConnectionManager.SYN) != 0) {
+			if ((flags & ConnectionManager.ACK) != 0) {
+				if (state == synSent) {
+					state = established;
+					peerWindow = window;
+					retries = 0;
+					stateChanged.wakeAll();
+					pump();
+				}
+			}
+			else if (state != pending) {
+				// our SYN|ACK was lost
+				sendSynAck();
+			}
+			return;
+		}
+
+		if (state == synSent || state == pending)
+			return;
+
+		if ((flags & ConnectionManager.DATA) != 0)
+			receiveData(number, payload);
+
+		if ((flags & ConnectionManager.FIN) != 0) {
+			if ((flags & ConnectionManager.ACK) != 0) {
+				if (finSent)
+					finish();
+			}
+			else if (number == expectedSeq) {
+				// every message before the FIN has arrived
+				peerFinished = true;
+				manager.send(this, ConnectionManager.FIN
+						| ConnectionManager.ACK, 0, number, null, 0);
+				stateChanged.wakeAll();
+			}
+			return;
+		}
+
+		if ((flags & ConnectionManager.ACK) != 0)
+			receiveAck(window, number);
+	}
+
+	private void receiveData(int seq, byte[] payload) {
+		if (seq == expectedSeq && receiveWindow() > 0) {
+			received.add(payload);
+			expectedSeq++;
+
+			// deliver any messages that were waiting for this one
+			byte[] next;
+			while ((next = outOfOrder.remove(expectedSeq)) != null) {
+				received.add(next);
+				expectedSeq++;
+			}
+		}
+		else if (seq > expectedSeq && seq < expectedSeq + windowSize
+				&& !outOfOrder.containsKey(seq) && receiveWindow() > 0) {
+			outOfOrder.put(seq, payload);
+		}
+
+		sendAck();
+	}
+
+	private void receiveAck(int window, int ack) {
+		// the peer is alive, even if it is not making progress
+		peerWindow = window;
+		retries = 0;
+
+		if (ack > sendBase && ack <= nextSeq) {
+			if (rttSeq >= 0 && ack > rttSeq) {
+				if (rtt == null)
+					rtt = Metrics.histogram("port." + localPort + ".rtt");
+				rtt.addSample(Machine.timer().getTime() - rttStartTime,
+						System.nanoTime() - rttStartNanos);
+				rttSeq = -1;
+			}
+
+			while (sendBase < ack) {
+				unacked.removeFirst();
+				sendBase++;
+			}
+
+			lastSendTime = Machine.timer().getTime();
+			stateChanged.wakeAll();
+		}
+
+		pump();
+	}
+
+	/**
+	 * Send as many queued messages as the window allows, then the
+	 * <tt>FIN</tt> once everything written before <tt>close()</tt> has been
+	 * acknowledged.
+	 */
+	private void pump() {
+		if (state != established)
+			return;
+
+		int window = Math.min(windowSize, peerWindow);
+
+		while (!unsent.isEmpty() && nextSeq - sendBase < window) {
+			byte[] payload = unsent.removeFirst();
+			if (unacked.isEmpty())
+				lastSendTime = Machine.timer().getTime();
+			unacked.add(payload);
+
+			// time one message at a time, from its first send to its ack
+			if (rttSeq < 0 && Metrics.enabled()) {
+				rttSeq = nextSeq;
+				rttStartTime = Machine.timer().getTime();
+				rttStartNanos = System.nanoTime();
+			}
+
+			sendData(nextSeq++, payload);
+		}
+
+		if (localClosed && !finSent && unsent.isEmpty() && unacked.isEmpty()) {
+			finSent = true;
+			retries = 0;
+			lastSendTime = Machine.timer().getTime();
+			manager.send(this, ConnectionManager.FIN, 0, nextSeq, null, 0);
+		}
+	}
+
+	private void sendData(int seq, byte[] payload) {
+		manager.send(this, ConnectionManager.DATA, receiveWindow(), seq,
+				payload, payload.length);
+	}
+
+	/**
+	 * Called by the manager each time one of this connection's messages has
+	 * been handed to the network.
+	 */
+	void sent(long time) {
+		lastSendTime = time;
+	}
+
+	/**
+	 * Called periodically by the manager's timer thread. Retransmits
+	 * everything that has not been acknowledged if the oldest message has
+	 * waited longer than the timeout.
+	 */
+	void timerTick(long time, int timeout) {
+		if (state == closed || state == pending)
+			return;
+
+		boolean waiting = (state == synSent || finSent || !unacked.isEmpty()
+				|| (!unsent.isEmpty() && peerWindow == 0));
+
+		// messages still waiting in the outbox have not timed out yet
+		if (!waiting || queued > 0 || time - lastSendTime < timeout)
+			return;
+
+		if (++retries > maxRetransmits) {
+			Lib.debug(dbgTransport, "giving up on %s", getName());
+			finish();
+			return;
+		}
+
+		lastSendTime = time;
+
+		// an ack for a retransmitted message does not say which copy it was for
+		rttSeq = -1;
+
+		if (state == synSent) {
+			manager.send(this, ConnectionManager.SYN, 0, 0, null, 0);
+		}
+		else if (finSent) {
+			manager.send(this, ConnectionManager.FIN, 0, nextSeq, null, 0);
+		}
+		else if (!unacked.isEmpty()) {
+			if (Lib.test(dbgTransport))
+				Lib.debug(dbgTransport,
+						"retransmitting %d messages from %d on %s",
+						unacked.size(), sendBase, getName());
+
+			int seq = sendBase;
+			for (byte[] payload : unacked)
+				sendData(seq++, payload);
+		}
+		else {
+			// the receiver's window is closed; probe it with the next message
+			byte[] payload = unsent.removeFirst();
+			unacked.add(payload);
+			sendData(nextSeq++, payload);
+		}
+	}
+
+	/**
+	 * Mark this connection closed and forget it. Any thread waiting on it is
+	 * woken.
+	 */
+	private void finish() {
+		state = closed;
+		peerFinished = true;
+		stateChanged.wakeAll();
+
+		manager.remove(this);
+	}
+
+	private int receiveWindow() {
+		return Math.max(0, windowSize - received.size() - outOfOrder.size());
+	}
+
+	public int read(byte[] buf, int offset, int length) {
+		manager.lock.acquire();
+
+		int amount = 0;
+		while (amount < length && !received.isEmpty()) {
+			byte[] payload = received.getFirst();
+			int chunk = Math.min(length - amount, payload.length
+					- receivedOffset);
+
+			System.arraycopy(payload, receivedOffset, buf, offset + amount,
+					chunk);
+			amount += chunk;
+			receivedOffset += chunk;
+
+			if (receivedOffset == payload.length) {
+				received.removeFirst();
+				receivedOffset = 0;
+			}
+		}
+
+		// tell a sender that stopped on a full window that it may continue
+		if (advertisedWindow == 0 && receiveWindow() > 0 && state != closed)
+			sendAck();
+
+		boolean finished = (amount == 0 && length > 0 && peerFinished);
+
+		manager.lock.release();
+		manager.flush();
+
+		return finished ? -1 : amount;
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+		int amount = 0;
+
+		while (amount < length) {
+			manager.lock.acquire();
+
+			while (state != closed && unsent.size() >= windowSize)
+				stateChanged.sleep();
+
+			if (state == closed || peerFinished || localClosed) {
+				manager.lock.release();
+				break;
+			}
+
+			int chunk = Math.min(length - amount,
+					ConnectionManager.maxPayloadLength);
+			byte[] payload = new byte[chunk];
+			System.arraycopy(buf, offset + amount, payload, 0, chunk);
+			unsent.add(payload);
+			amount += chunk;
+
+			pump();
+
+			manager.lock.release();
+			manager.flush();
+		}
+
+		return (amount == 0 && length > 0) ? -1 : amount;
+	}
+
+	/**
+	 * Close this end of the connection. Data already written is still
+	 * delivered; the <tt>FIN</tt> follows it once it has been acknowledged.
+	 */
+	public void close() {
+		manager.lock.acquire();
+
+		if (!localClosed) {
+			localClosed = true;
+
+			if (state == established)
+				pump();
+			else if (state != closed)
+				finish();
+		}
+
+		manager.lock.release();
+		manager.flush();
+	}
+
+	final int localPort, remoteLink, remotePort;
+
+	private ConnectionManager manager;
+
+	private static final int pending = 0, synSent = 1, established = 2,
+			closed = 3;
+
+	private int state = pending;
+
+	private Condition stateChanged;
+
+	private int windowSize;
+
+	private int maxRetransmits;
+
+	private int retries = 0;
+
+	private long lastSendTime;
+
+	/** The number of this connection's messages waiting in the outbox. */
+	int queued = 0;
+
+	/** The pure acknowledgement waiting in the outbox, if there is one. */
+	ConnectionManager.Outgoing pendingAck = null;
+
+	/** The sequence number of the oldest unacknowledged message. */
+	private int sendBase = 0;
+
+	private int nextSeq = 0;
+
+	private int peerWindow;
+
+	/** The message being timed for round-trip time, or -1 if none. */
+	private int rttSeq = -1;
+
+	private long rttStartTime, rttStartNanos;
+
+	private Metrics.Histogram rtt = null;
+
+	private LinkedList<byte[]> unacked = new LinkedList<byte[]>();
+
+	private LinkedList<byte[]> unsent = new LinkedList<byte[]>();
+
+	private boolean localClosed = false, finSent = false;
+
+	/** The sequence number of the next message to deliver in order. */
+	private int expectedSeq = 0;
+
+	private int advertisedWindow = -1;
+
+	private HashMap<Integer, byte[]> outOfOrder = new HashMap<Integer, byte[]>();
+
+	private LinkedList<byte[]> received = new LinkedList<byte[]>();
+
+	private int receivedOffset = 0;
+
+	private boolean peerFinished = false;
+
+	private static final char dbgTransport = 'T';
+}
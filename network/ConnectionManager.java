@@ -0,0 +1,421 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * A reliable, connection-oriented transport built on top of a
+ * <tt>PostOffice</tt>. Each connection is a byte stream between a local port
+ * and a remote (link, port) pair, exposed to the kernel as a
+ * <tt>Connection</tt>.
+ *
+ * <p>
+ * Every transport message carries a small header in front of its payload:
+ *
+ * <table>
+ * <tr>
+ * <td>byte 0</td>
+ * <td>flags (<tt>SYN</tt>, <tt>ACK</tt>, <tt>FIN</tt>, <tt>DATA</tt>)</td>
+ * </tr>
+ * <tr>
+ * <td>byte 1</td>
+ * <td>the sender's receive window, in messages</td>
+ * </tr>
+ * <tr>
+ * <td>bytes 2-5</td>
+ * <td>the sequence number of a data message, or the next sequence number
+ * expected by the sender of an acknowledgement</td>
+ * </tr>
+ * </table>
+ *
+ * <p>
+ * Sequence numbers count messages rather than bytes, since a message is at
+ * most <tt>maxPayloadLength</tt> bytes long. Acknowledgements are cumulative.
+ * A sender keeps up to <tt>Connection.windowSize</tt> unacknowledged messages
+ * in flight, but never more than the receiver last advertised, and goes back
+ * to the oldest unacknowledged message when the retransmission timer expires.
+ * The receiver buffers messages that arrive out of order within its window.
+ *
+ * <p>
+ * One receiving thread is started for each local port the transport uses, and
+ * a single timer thread drives retransmission using the kernel's
+ * <tt>Alarm</tt>.
+ */
+public class ConnectionManager {
+	/**
+	 * Allocate a new connection manager using the specified post office.
+	 *
+	 * @param postOffice the post office that carries this transport's
+	 * messages.
+	 */
+	public ConnectionManager(PostOffice postOffice) {
+		this.postOffice = postOffice;
+
+		windowSize = Config.getInteger("Connection.windowSize", 16);
+		Lib.assertTrue(windowSize > 0 && windowSize <= maxWindowSize);
+
+		retransmitTimeout = Config.getInteger("Connection.retransmitTimeout",
+				5000);
+		Lib.assertTrue(retransmitTimeout > 0);
+
+		portsInUse = new boolean[MailMessage.portLimit];
+
+		@SuppressWarnings("unchecked")
+		LinkedList<Connection>[] queues = (LinkedList<Connection>[])
+				new LinkedList<?>[MailMessage.portLimit];
+		pendingConnections = queues;
+
+		KThread timerThread = new KThread(new Runnable() {
+			public void run() {
+				retransmitLoop();
+			}
+		});
+		timerThread.setName("transport timer");
+		timerThread.fork();
+	}
+
+	/**
+	 * Open a connection to the specified remote port, waiting until the
+	 * remote host accepts it.
+	 *
+	 * @param link the link address of the remote host.
+	 * @param port the remote port.
+	 * @return the new connection, or <tt>null</tt> if the connection could not
+	 * be established.
+	 */
+	public Connection connect(int link, int port) {
+		if (port < 0 || port >= MailMessage.portLimit)
+			return null;
+
+		lock.acquire();
+
+		int localPort = allocatePort();
+		if (localPort == -1) {
+			lock.release();
+			return null;
+		}
+
+		Connection connection = new Connection(this, localPort, link, port);
+		add(connection);
+		connection.startConnect();
+
+		lock.release();
+		flush();
+
+		lock.acquire();
+		Connection result = connection.waitEstablished() ? connection : null;
+		lock.release();
+		flush();
+
+		return result;
+	}
+
+	/**
+	 * Accept a connection waiting on the specified local port. Does not wait
+	 * for a connection to arrive.
+	 *
+	 * @param port the local port.
+	 * @return the new connection, or <tt>null</tt> if no connection is
+	 * waiting.
+	 */
+	public Connection accept(int port) {
+		if (port < 0 || port >= MailMessage.portLimit)
+			return null;
+
+		lock.acquire();
+
+		if (pendingConnections[port] == null) {
+			if (portsInUse[port]) {
+				lock.release();
+				return null;
+			}
+			pendingConnections[port] = new LinkedList<Connection>();
+			listen(port);
+		}
+
+		Connection connection = pendingConnections[port].poll();
+		if (connection != null)
+			connection.accept();
+
+		lock.release();
+		flush();
+
+		return connection;
+	}
+
+	/**
+	 * Return the configured window size, in messages.
+	 */
+	int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Queue a transport message for sending. The caller must hold
+	 * <tt>lock</tt>, and must call <tt>flush()</tt> after releasing it.
+	 */
+	void send(Connection connection, int flags, int window, int number,
+			byte[] payload, int length) {
+		// build the message in place in a pooled buffer
+		byte[] buffer = Packet.allocateBuffer();
+		int offset = MailMessage.contentsOffset;
+
+		buffer[offset + 0] = (byte) flags;
+		buffer[offset + 1] = (byte) window;
+		Lib.bytesFromInt(buffer, offset + 2, number);
+		if (length > 0)
+			System.arraycopy(payload, 0, buffer, offset + headerLength, length);
+
+		MailMessage mail;
+		try {
+			mail = new MailMessage(connection.remoteLink,
+					connection.remotePort, postOffice.getLinkAddress(),
+					connection.localPort, buffer, headerLength + length, true);
+		}
+		catch (MalformedPacketException e) {
+			Lib.assertNotReached();
+			return;
+		}
+
+		// a newer acknowledgement replaces one that has not been sent yet
+		if (flags == ACK && connection.pendingAck != null) {
+			connection.pendingAck.mail.free();
+			connection.pendingAck.mail = mail;
+			return;
+		}
+
+		Outgoing outgoing = new Outgoing(connection, mail);
+		outbox.add(outgoing);
+		connection.queued++;
+
+		if (flags == ACK)
+			connection.pendingAck = outgoing;
+	}
+
+	/**
+	 * Send every queued transport message. Must be called without holding
+	 * <tt>lock</tt>, since this waits until each message is on the wire.
+	 * Handing the post office one message at a time keeps acknowledgements in
+	 * the outbox, where a newer one can still replace them. A connection's
+	 * retransmission timer runs from the time its last message actually left,
+	 * not from when it was queued.
+	 */
+	void flush() {
+		lock.acquire();
+
+		Outgoing outgoing;
+		while ((outgoing = outbox.poll()) != null) {
+			if (outgoing.connection.pendingAck == outgoing)
+				outgoing.connection.pendingAck = null;
+
+			lock.release();
+			postOffice.sendAndWait(outgoing.mail);
+			lock.acquire();
+
+			outgoing.connection.queued--;
+			outgoing.connection.sent(Machine.timer().getTime());
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Start managing a connection, waking the timer thread if it was idle.
+	 * The caller must hold <tt>lock</tt>.
+	 */
+	private void add(Connection connection) {
+		connections.put(key(connection.localPort, connection.remoteLink,
+				connection.remotePort), connection);
+		connectionAdded.wake();
+	}
+
+	/**
+	 * Forget a connection that has been closed by both sides. The caller must
+	 * hold <tt>lock</tt>.
+	 */
+	void remove(Connection connection) {
+		connections.remove(key(connection.localPort, connection.remoteLink,
+				connection.remotePort));
+
+		if (pendingConnections[connection.localPort] == null)
+			releasePort(connection.localPort);
+	}
+
+	/**
+	 * Choose an unused local port for an outgoing connection, starting from
+	 * the top so that the low ports remain free for servers.
+	 */
+	private int allocatePort() {
+		for (int port = MailMessage.portLimit - 1; port >= 0; port--) {
+			if (!portsInUse[port]) {
+				listen(port);
+				return port;
+			}
+		}
+
+		return -1;
+	}
+
+	private void releasePort(int port) {
+		for (Connection connection : connections.values()) {
+			if (connection.localPort == port)
+				return;
+		}
+
+		// the receiving thread stays, but the port can be reused
+		portsInUse[port] = false;
+	}
+
+	/**
+	 * Mark a port as used by the transport, starting its receiving thread the
+	 * first time the port is used.
+	 */
+	private void listen(final int port) {
+		portsInUse[port] = true;
+
+		if (receiving[port])
+			return;
+
+		receiving[port] = true;
+
+		KThread receiver = new KThread(new Runnable() {
+			public void run() {
+				receiveLoop(port);
+			}
+		});
+		receiver.setName("transport port " + port);
+		receiver.fork();
+	}
+
+	private void receiveLoop(int port) {
+		while (true) {
+			// handle everything that has arrived under one acquisition
+			MailMessage[] batch = postOffice.receive(port, windowSize,
+					PostOffice.waitForever);
+
+			lock.acquire();
+			for (MailMessage mail : batch) {
+				byte[] bytes = mail.packet.packetBytes;
+				int offset = MailMessage.contentsOffset;
+
+				if (mail.contentsLength >= headerLength) {
+					int flags = bytes[offset + 0];
+					int window = bytes[offset + 1] & 0xFF;
+					int number = Lib.bytesToInt(bytes, offset + 2);
+					byte[] payload = new byte[mail.contentsLength
+							- headerLength];
+					System.arraycopy(bytes, offset + headerLength, payload, 0,
+							payload.length);
+
+					deliver(mail.packet.srcLink, mail.srcPort, port, flags,
+							window, number, payload);
+				}
+
+				mail.free();
+			}
+			lock.release();
+			flush();
+		}
+	}
+
+	private void deliver(int link, int remotePort, int port, int flags,
+			int window, int number, byte[] payload) {
+		Connection connection = connections.get(key(port, link, remotePort));
+
+		if (connection == null) {
+			if (flags == SYN && pendingConnections[port] != null) {
+				connection = new Connection(this, port, link, remotePort);
+				add(connection);
+				pendingConnections[port].add(connection);
+			}
+			else if ((flags & FIN) != 0 && (flags & ACK) == 0) {
+				// the connection is already gone; finish the peer's close
+				Connection stale = new Connection(this, port, link, remotePort);
+				send(stale, FIN | ACK, 0, number, null, 0);
+			}
+			return;
+		}
+
+		connection.receive(flags, window, number, payload);
+	}
+
+	private void retransmitLoop() {
+		int interval = Math.max(1, retransmitTimeout / 4);
+
+		while (true) {
+			// with no connections there is nothing to time out
+			lock.acquire();
+			while (connections.isEmpty())
+				connectionAdded.sleep();
+			lock.release();
+
+			ThreadedKernel.alarm.waitUntil(interval);
+
+			lock.acquire();
+			long time = Machine.timer().getTime();
+			for (Connection connection : connections.values()
+					.toArray(new Connection[0]))
+				connection.timerTick(time, retransmitTimeout);
+			lock.release();
+			flush();
+		}
+	}
+
+	private static long key(int localPort, int remoteLink, int remotePort) {
+		return ((long) localPort << 40) | ((long) remotePort << 32)
+				| (remoteLink & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * A message in the outbox, and the connection that sent it.
+	 */
+	static class Outgoing {
+		Outgoing(Connection connection, MailMessage mail) {
+			this.connection = connection;
+			this.mail = mail;
+		}
+
+		Connection connection;
+
+		MailMessage mail;
+	}
+
+	/** Flag bits in the transport header. */
+	static final int SYN = 0x01, ACK = 0x02, FIN = 0x04, DATA = 0x08;
+
+	/** The number of bytes in a transport header. */
+	static final int headerLength = 6;
+
+	/** The maximum number of payload bytes in one transport message. */
+	public static final int maxPayloadLength = MailMessage.maxContentsLength
+			- headerLength;
+
+	/** The largest window that fits in the header's window field. */
+	public static final int maxWindowSize = 255;
+
+	/** Protects every connection managed by this transport. */
+	Lock lock = new Lock();
+
+	/** Wakes the timer thread when there are connections to time out. */
+	private Condition connectionAdded = new Condition(lock);
+
+	private PostOffice postOffice;
+
+	private int windowSize;
+
+	private int retransmitTimeout;
+
+	private HashMap<Long, Connection> connections = new HashMap<Long, Connection>();
+
+	private LinkedList<Outgoing> outbox = new LinkedList<Outgoing>();
+
+	private boolean[] portsInUse;
+
+	private boolean[] receiving = new boolean[MailMessage.portLimit];
+
+	/** Unaccepted connections on each listening port. */
+	private LinkedList<Connection>[] pendingConnections;
+}
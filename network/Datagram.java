@@ -0,0 +1,35 @@
+package nachos.network;
+
+/**
+ * A datagram received through a <tt>Fragmenter</tt>.
+ *
+ * @see nachos.network.Fragmenter
+ */
+public class Datagram {
+	/**
+	 * Allocate a new datagram.
+	 *
+	 * @param srcLink the link address of the sender.
+	 * @param srcPort the port the datagram was sent from.
+	 * @param dstPort the port the datagram was received on.
+	 * @param data the contents of the datagram.
+	 */
+	public Datagram(int srcLink, int srcPort, int dstPort, byte[] data) {
+		this.srcLink = srcLink;
+		this.srcPort = srcPort;
+		this.dstPort = dstPort;
+		this.data = data;
+	}
+
+	/** The link address of the sender. */
+	public int srcLink;
+
+	/** The port the datagram was sent from. */
+	public int srcPort;
+
+	/** The port the datagram was received on. */
+	public int dstPort;
+
+	/** The contents of the datagram. */
+	public byte[] data;
+}
@@ -0,0 +1,265 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.LinkedList;
+
+/**
+ * Sends and receives datagrams larger than one mail message by splitting them
+ * into fragments and reassembling them at the other end. Each fragment is a
+ * mail message whose payload starts with a fragment header:
+ *
+ * <table>
+ * <tr>
+ * <td>bytes 0-1</td>
+ * <td>datagram identifier, chosen by the sender</td>
+ * </tr>
+ * <tr>
+ * <td>byte 2</td>
+ * <td>index of this fragment</td>
+ * </tr>
+ * <tr>
+ * <td>byte 3</td>
+ * <td>number of fragments in the datagram</td>
+ * </tr>
+ * </table>
+ *
+ * <p>
+ * Fragments may be lost, so a datagram is delivered only if all of its
+ * fragments arrive. A partly reassembled datagram is discarded once
+ * <tt>Fragmenter.timeout</tt> ticks (20000 by default) have passed since its
+ * first fragment arrived. Each port holds at most
+ * <tt>Fragmenter.maxReassemblies</tt> partial datagrams (8 by default); when
+ * another one starts, the oldest is discarded.
+ *
+ * <p>
+ * How many bytes fit in a datagram depends on the link MTU, set by
+ * <tt>NetworkLink.mtu</tt>; see <tt>maxDatagramLength</tt>.
+ */
+public class Fragmenter {
+	/**
+	 * Allocate a new fragmenter using the specified post office.
+	 *
+	 * @param postOffice the post office that carries the fragments.
+	 */
+	public Fragmenter(PostOffice postOffice) {
+		this.postOffice = postOffice;
+
+		timeout = Config.getInteger("Fragmenter.timeout", 20000);
+		maxReassemblies = Config.getInteger("Fragmenter.maxReassemblies", 8);
+		Lib.assertTrue(timeout > 0 && maxReassemblies > 0);
+
+		@SuppressWarnings("unchecked")
+		LinkedList<Reassembly>[] reassemblies = (LinkedList<Reassembly>[])
+				new LinkedList<?>[MailMessage.portLimit];
+		this.reassemblies = reassemblies;
+		for (int i = 0; i < reassemblies.length; i++)
+			reassemblies[i] = new LinkedList<Reassembly>();
+	}
+
+	/**
+	 * Send a datagram. Returns once every fragment has been queued.
+	 *
+	 * @param dstLink the destination link address.
+	 * @param dstPort the destination port.
+	 * @param srcPort the source port.
+	 * @param data the datagram, at most <tt>maxDatagramLength</tt> bytes.
+	 * @return <tt>true</tt> if the datagram was sent.
+	 */
+	public boolean send(int dstLink, int dstPort, int srcPort, byte[] data) {
+		if (data.length > maxDatagramLength)
+			return false;
+
+		int count = Math.max(1, (data.length + maxFragmentLength - 1)
+				/ maxFragmentLength);
+		int id = nextId++ & 0xFFFF;
+		int srcLink = postOffice.getLinkAddress();
+
+		for (int i = 0; i < count; i++) {
+			int offset = i * maxFragmentLength;
+			int length = Math.min(maxFragmentLength, data.length - offset);
+
+			// build each fragment in place in a pooled buffer
+			byte[] buffer = Packet.allocateBuffer();
+			int start = MailMessage.contentsOffset;
+
+			buffer[start + 0] = (byte) (id >> 8);
+			buffer[start + 1] = (byte) id;
+			buffer[start + 2] = (byte) i;
+			buffer[start + 3] = (byte) count;
+			System.arraycopy(data, offset, buffer, start + headerLength, length);
+
+			try {
+				postOffice.send(new MailMessage(dstLink, dstPort, srcLink,
+						srcPort, buffer, headerLength + length, true));
+			}
+			catch (MalformedPacketException e) {
+				Packet.freeBuffer(buffer);
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Wait for a complete datagram to arrive on the specified port.
+	 *
+	 * @param port the port on which to wait.
+	 * @return the datagram received.
+	 */
+	public Datagram receive(int port) {
+		return receive(port, PostOffice.waitForever);
+	}
+
+	/**
+	 * Wait at most <i>timeout</i> ticks for a complete datagram to arrive on
+	 * the specified port. Only one thread at a time should receive on a port.
+	 *
+	 * @param port the port on which to wait.
+	 * @param timeout the maximum number of ticks to wait, or
+	 * <tt>PostOffice.waitForever</tt>.
+	 * @return the datagram received, or <tt>null</tt> if none was completed
+	 * in time.
+	 */
+	public Datagram receive(int port, long timeout) {
+		long deadline = Machine.timer().getTime() + timeout;
+
+		while (true) {
+			long remaining = (timeout == PostOffice.waitForever) ? timeout
+					: Math.max(0, deadline - Machine.timer().getTime());
+
+			MailMessage mail = postOffice.receive(port, remaining);
+			if (mail == null)
+				return null;
+
+			Datagram datagram = addFragment(port, mail);
+			mail.free();
+
+			if (datagram != null)
+				return datagram;
+		}
+	}
+
+	private Datagram addFragment(int port, MailMessage mail) {
+		if (mail.contentsLength < headerLength)
+			return null;
+
+		byte[] bytes = mail.packet.packetBytes;
+		int start = MailMessage.contentsOffset;
+
+		int id = ((bytes[start + 0] & 0xFF) << 8) | (bytes[start + 1] & 0xFF);
+		int index = bytes[start + 2] & 0xFF;
+		int count = bytes[start + 3] & 0xFF;
+		int length = mail.contentsLength - headerLength;
+
+		if (count == 0 || index >= count
+				|| (index < count - 1 && length != maxFragmentLength))
+			return null;
+
+		int srcLink = mail.packet.srcLink;
+		int srcPort = mail.srcPort;
+
+		// the common case: a datagram that fits in one fragment
+		if (count == 1) {
+			byte[] data = new byte[length];
+			System.arraycopy(bytes, start + headerLength, data, 0, length);
+			return new Datagram(srcLink, srcPort, port, data);
+		}
+
+		long time = Machine.timer().getTime();
+		LinkedList<Reassembly> list = reassemblies[port];
+
+		Reassembly reassembly = null;
+		for (Reassembly r : list.toArray(new Reassembly[0])) {
+			if (time - r.startTime > timeout) {
+				Lib.debug(dbgFragment, "reassembly of %d timed out", r.id);
+				list.remove(r);
+			}
+			else if (r.srcLink == srcLink && r.srcPort == srcPort
+					&& r.id == id) {
+				reassembly = r;
+			}
+		}
+
+		if (reassembly == null) {
+			if (list.size() == maxReassemblies)
+				list.removeFirst();
+
+			reassembly = new Reassembly(srcLink, srcPort, id, count, time);
+			list.add(reassembly);
+		}
+
+		if (reassembly.received[index] || count != reassembly.received.length)
+			return null;
+
+		reassembly.received[index] = true;
+		reassembly.remaining--;
+		System.arraycopy(bytes, start + headerLength, reassembly.data, index
+				* maxFragmentLength, length);
+
+		if (index == count - 1)
+			reassembly.length = index * maxFragmentLength + length;
+
+		if (reassembly.remaining > 0)
+			return null;
+
+		list.remove(reassembly);
+
+		byte[] data = new byte[reassembly.length];
+		System.arraycopy(reassembly.data, 0, data, 0, data.length);
+		return new Datagram(srcLink, srcPort, port, data);
+	}
+
+	/**
+	 * A datagram being reassembled.
+	 */
+	private static class Reassembly {
+		Reassembly(int srcLink, int srcPort, int id, int count, long startTime) {
+			this.srcLink = srcLink;
+			this.srcPort = srcPort;
+			this.id = id;
+			this.startTime = startTime;
+
+			received = new boolean[count];
+			remaining = count;
+			data = new byte[count * maxFragmentLength];
+		}
+
+		int srcLink, srcPort, id;
+
+		long startTime;
+
+		boolean[] received;
+
+		int remaining;
+
+		int length;
+
+		byte[] data;
+	}
+
+	/** The number of bytes in a fragment header. */
+	static final int headerLength = 4;
+
+	/** The number of datagram bytes carried by one fragment. */
+	public static final int maxFragmentLength = MailMessage.maxContentsLength
+			- headerLength;
+
+	/** The largest datagram that can be sent. */
+	public static final int maxDatagramLength = 255 * maxFragmentLength;
+
+	private PostOffice postOffice;
+
+	private int timeout;
+
+	private int maxReassemblies;
+
+	private int nextId = 0;
+
+	/** The partial datagrams on each port, oldest first. */
+	private LinkedList<Reassembly>[] reassemblies;
+
+	private static final char dbgFragment = 'g';
+}
@@ -4,13 +4,17 @@ import nachos.machine.*;
 
 /**
  * A mail message. Includes a packet header, a mail header, and the actual
- * payload.
+ * payload. A message is a view over its packet's buffer: the payload starts at
+ * <tt>contentsOffset</tt> in <tt>packet.packetBytes</tt>, and nothing is
+ * copied when a message is received or built around a buffer that already
+ * holds its payload.
  * 
  * @see nachos.machine.Packet
  */
 public class MailMessage {
 	/**
 	 * Allocate a new mail message to be sent, using the specified parameters.
+	 * The contents are copied into the new packet.
 	 * 
 	 * @param dstLink the destination link address.
 	 * @param dstPort the destination port.
@@ -20,24 +24,43 @@ public class MailMessage {
 	 */
 	public MailMessage(int dstLink, int dstPort, int srcLink, int srcPort,
 			byte[] contents) throws MalformedPacketException {
+		this(dstLink, dstPort, srcLink, srcPort, copyContents(contents),
+				contents.length, false);
+	}
+
+	/**
+	 * Allocate a new mail message to be sent, whose payload has already been
+	 * placed in <i>buffer</i> starting at <tt>contentsOffset</tt>. Both
+	 * headers are written in place, and nothing is copied.
+	 * 
+	 * @param dstLink the destination link address.
+	 * @param dstPort the destination port.
+	 * @param srcLink the source link address.
+	 * @param srcPort the source port.
+	 * @param buffer the buffer holding the packet.
+	 * @param contentsLength the number of payload bytes.
+	 * @param pooled <tt>true</tt> if <i>buffer</i> came from
+	 * <tt>Packet.allocateBuffer()</tt>. A pooled message belongs to the post
+	 * office once it is sent, and its buffer is reused once it has left.
+	 */
+	public MailMessage(int dstLink, int dstPort, int srcLink, int srcPort,
+			byte[] buffer, int contentsLength, boolean pooled)
+			throws MalformedPacketException {
 		// make sure the paramters are valid
 		if (dstPort < 0 || dstPort >= portLimit || srcPort < 0
-				|| srcPort >= portLimit || contents.length > maxContentsLength)
+				|| srcPort >= portLimit || contentsLength < 0
+				|| contentsLength > maxContentsLength)
 			throw new MalformedPacketException();
 
-		this.dstPort = (byte) dstPort;
-		this.srcPort = (byte) srcPort;
-		this.contents = contents;
-
-		byte[] packetContents = new byte[headerLength + contents.length];
+		this.dstPort = dstPort;
+		this.srcPort = srcPort;
+		this.contentsLength = contentsLength;
 
-		packetContents[0] = (byte) dstPort;
-		packetContents[1] = (byte) srcPort;
+		buffer[Packet.headerLength + 0] = (byte) dstPort;
+		buffer[Packet.headerLength + 1] = (byte) srcPort;
 
-		System.arraycopy(contents, 0, packetContents, headerLength,
-				contents.length);
-
-		packet = new Packet(dstLink, srcLink, packetContents);
+		packet = new Packet(dstLink, srcLink, buffer, headerLength
+				+ contentsLength, pooled);
 	}
 
 	/**
@@ -48,18 +71,46 @@ public class MailMessage {
 	public MailMessage(Packet packet) throws MalformedPacketException {
 		this.packet = packet;
 
+		byte[] bytes = packet.packetBytes;
+
 		// make sure we have a valid header
-		if (packet.contents.length < headerLength || packet.contents[0] < 0
-				|| packet.contents[0] >= portLimit || packet.contents[1] < 0
-				|| packet.contents[1] >= portLimit)
+		if (packet.contentsLength < headerLength
+				|| bytes[Packet.headerLength + 0] < 0
+				|| bytes[Packet.headerLength + 0] >= portLimit
+				|| bytes[Packet.headerLength + 1] < 0
+				|| bytes[Packet.headerLength + 1] >= portLimit)
 			throw new MalformedPacketException();
 
-		dstPort = packet.contents[0];
-		srcPort = packet.contents[1];
+		dstPort = bytes[Packet.headerLength + 0];
+		srcPort = bytes[Packet.headerLength + 1];
 
-		contents = new byte[packet.contents.length - headerLength];
-		System.arraycopy(packet.contents, headerLength, contents, 0,
-				contents.length);
+		contentsLength = packet.contentsLength - headerLength;
+	}
+
+	private static byte[] copyContents(byte[] contents) {
+		byte[] buffer = new byte[contentsOffset + contents.length];
+		System.arraycopy(contents, 0, buffer, contentsOffset, contents.length);
+		return buffer;
+	}
+
+	/**
+	 * Return a copy of the contents of this message.
+	 * 
+	 * @return a new array holding the payload.
+	 */
+	public byte[] getContents() {
+		byte[] contents = new byte[contentsLength];
+		System.arraycopy(packet.packetBytes, contentsOffset, contents, 0,
+				contentsLength);
+		return contents;
+	}
+
+	/**
+	 * Return this message's buffer to the pool, if it came from there. The
+	 * message must not be used afterwards.
+	 */
+	public void free() {
+		packet.free();
 	}
 
 	/**
@@ -67,7 +118,7 @@ public class MailMessage {
 	 */
 	public String toString() {
 		return "from (" + packet.srcLink + ":" + srcPort + ") to ("
-				+ packet.dstLink + ":" + dstPort + "), " + contents.length
+				+ packet.dstLink + ":" + dstPort + "), " + contentsLength
 				+ " bytes";
 	}
 
@@ -80,8 +131,11 @@ public class MailMessage {
 	/** The port used by this message on the source machine. */
 	public int srcPort;
 
-	/** The contents of this message, excluding the mail message header. */
-	public byte[] contents;
+	/**
+	 * The number of payload bytes in this message. The payload starts at
+	 * <tt>contentsOffset</tt> in <tt>packet.packetBytes</tt>.
+	 */
+	public int contentsLength;
 
 	/**
 	 * The number of bytes in a mail header. The header is formatted as follows:
@@ -106,6 +160,10 @@ public class MailMessage {
 	 */
 	public static final int headerLength = 2;
 
+	/** The offset of the payload within a packet's bytes. */
+	public static final int contentsOffset = Packet.headerLength
+			+ headerLength;
+
 	/** Maximum payload (real data) that can be included in a single mesage. */
 	public static final int maxContentsLength = Packet.maxContentsLength
 			- headerLength;
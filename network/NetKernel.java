@@ -24,6 +24,8 @@ public class NetKernel extends VMKernel {
 		super.initialize(args);
 
 		postOffice = new PostOffice();
+		connections = new ConnectionManager(postOffice);
+		fragmenter = new Fragmenter(postOffice);
 	}
 
 	/**
@@ -91,13 +93,15 @@ public class NetKernel extends VMKernel {
 
 			try {
 				ack = new MailMessage(ping.packet.srcLink, ping.srcPort,
-						ping.packet.dstLink, ping.dstPort, ping.contents);
+						ping.packet.dstLink, ping.dstPort, ping.getContents());
 			}
 			catch (MalformedPacketException e) {
 				// should never happen...
 				continue;
 			}
 
+			ping.free();
+
 			postOffice.send(ack);
 		}
 	}
@@ -118,6 +122,12 @@ public class NetKernel extends VMKernel {
 
 	private PostOffice postOffice;
 
+	/** The reliable transport used by the connect() and accept() syscalls. */
+	public static ConnectionManager connections = null;
+
+	/** Sends and receives datagrams larger than one mail message. */
+	public static Fragmenter fragmenter = null;
+
 	// dummy variables to make javac smarter
 	private static NetProcess dummy1 = null;
 }
@@ -16,6 +16,39 @@ public class NetProcess extends VMProcess {
 		super();
 	}
 
+	/**
+	 * Handle the connect() system call. Blocks until the remote host accepts
+	 * the connection.
+	 */
+	private int handleConnect(int host, int port) {
+		int fd = findFreeFileDescriptor();
+		if (fd == -1)
+			return -1;
+
+		Connection connection = NetKernel.connections.connect(host, port);
+		if (connection == null)
+			return -1;
+
+		fileTable[fd] = connection;
+		return fd;
+	}
+
+	/**
+	 * Handle the accept() system call. Does not wait for a connection.
+	 */
+	private int handleAccept(int port) {
+		int fd = findFreeFileDescriptor();
+		if (fd == -1)
+			return -1;
+
+		Connection connection = NetKernel.connections.accept(port);
+		if (connection == null)
+			return -1;
+
+		fileTable[fd] = connection;
+		return fd;
+	}
+
 	private static final int syscallConnect = 11, syscallAccept = 12;
 
 	/**
@@ -46,6 +79,11 @@ public class NetProcess extends VMProcess {
 	 */
 	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
 		switch (syscall) {
+		case syscallConnect:
+			return handleConnect(a0, a1);
+		case syscallAccept:
+			return handleAccept(a0);
+
 		default:
 			return super.handleSyscall(syscall, a0, a1, a2, a3);
 		}
@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.LinkedList;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because of
@@ -10,25 +12,68 @@ import nachos.threads.*;
  * corrupted, but they might get lost.
  * 
  * <p>
- * The post office uses a "postal worker" thread to wait for messages to arrive
- * from the network and to place them in the appropriate queues. This cannot be
- * done in the receive interrupt handler because each queue (implemented with a
- * <tt>SynchList</tt>) is protected by a lock.
+ * The receive interrupt handler places each arriving message directly in its
+ * port's queue and wakes a thread waiting on that port, so delivery does not
+ * depend on a kernel thread being scheduled. Each port's queue is a ring of
+ * <tt>PostOffice.portQueueLength</tt> messages (32 by default); when it is
+ * full, further messages for that port are dropped, just as the network
+ * itself may drop them. The queues are protected by disabling interrupts.
+ *
+ * <p>
+ * Outgoing messages are placed in a transmit queue, and the send interrupt
+ * handler puts the next one on the wire as soon as the network link finishes
+ * each packet, so <tt>send()</tt> only waits if the queue is full. The queue
+ * holds at most <tt>PostOffice.sendQueueLength</tt> messages (64 by default).
+ * Each source port has a priority class, set with <tt>setPriority()</tt>;
+ * queued messages from a higher class are always sent first, and messages
+ * within a class are sent in order.
  */
 public class PostOffice {
 	/**
-	 * Allocate a new post office, using an array of <tt>SynchList</tt>s.
-	 * Register the interrupt handlers with the network hardware and start the
-	 * "postal worker" thread.
+	 * Allocate a new post office, with a queue for each port. Register the
+	 * interrupt handlers with the network hardware.
 	 */
 	public PostOffice() {
-		messageReceived = new Semaphore(0);
-		messageSent = new Semaphore(0);
-		sendLock = new Lock();
+		this(Machine.networkLink());
+	}
+
+	/**
+	 * Allocate a new post office on the specified network link, so that a
+	 * machine with several links can run a post office on each.
+	 *
+	 * @param link the network link that carries this post office's mail.
+	 */
+	public PostOffice(NetworkLink link) {
+		this.link = link;
+
+		int sendQueueLength = Config.getInteger("PostOffice.sendQueueLength",
+				64);
+		Lib.assertTrue(sendQueueLength > 0);
+		freeSendSlots = new Semaphore(sendQueueLength);
 
-		queues = new SynchList[MailMessage.portLimit];
-		for (int i = 0; i < queues.length; i++)
-			queues[i] = new SynchList();
+		@SuppressWarnings("unchecked")
+		LinkedList<Outgoing>[] sendQueues = (LinkedList<Outgoing>[])
+				new LinkedList<?>[maximumPriority + 1];
+		this.sendQueues = sendQueues;
+		for (int i = 0; i < sendQueues.length; i++)
+			sendQueues[i] = new LinkedList<Outgoing>();
+
+		priorities = new int[MailMessage.portLimit];
+
+		int portQueueLength = Config.getInteger("PostOffice.portQueueLength",
+				32);
+		Lib.assertTrue(portQueueLength > 0);
+
+		queues = new MailMessage[MailMessage.portLimit][portQueueLength];
+		queueHeads = new int[MailMessage.portLimit];
+		queueCounts = new int[MailMessage.portLimit];
+
+		@SuppressWarnings("unchecked")
+		LinkedList<Waiter>[] waiters = (LinkedList<Waiter>[])
+				new LinkedList<?>[MailMessage.portLimit];
+		this.waiters = waiters;
+		for (int i = 0; i < waiters.length; i++)
+			waiters[i] = new LinkedList<Waiter>();
 
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
@@ -40,15 +85,17 @@ public class PostOffice {
 				sendInterrupt();
 			}
 		};
-		Machine.networkLink().setInterruptHandlers(receiveHandler, sendHandler);
-
-		KThread t = new KThread(new Runnable() {
-			public void run() {
-				postalDelivery();
-			}
-		});
+		link.setInterruptHandlers(receiveHandler, sendHandler);
+	}
 
-		t.fork();
+	/**
+	 * Return the address of this post office's network link, which is the
+	 * source address of the mail it sends.
+	 *
+	 * @return the link address.
+	 */
+	public int getLinkAddress() {
+		return link.getLinkAddress();
 	}
 
 	/**
@@ -59,66 +106,212 @@ public class PostOffice {
 	 * @return the message received.
 	 */
 	public MailMessage receive(int port) {
-		Lib.assertTrue(port >= 0 && port < queues.length);
+		return receive(port, 1, waitForever)[0];
+	}
 
-		Lib.debug(dbgNet, "waiting for mail on port " + port);
+	/**
+	 * Retrieve a message on the specified port, waiting at most
+	 * <i>timeout</i> ticks for one to arrive.
+	 * 
+	 * @param port the port on which to wait for a message.
+	 * @param timeout the maximum number of ticks to wait, or
+	 * <tt>waitForever</tt>.
+	 * 
+	 * @return the message received, or <tt>null</tt> if none arrived in time.
+	 */
+	public MailMessage receive(int port, long timeout) {
+		MailMessage[] mail = receive(port, 1, timeout);
+		return (mail.length == 0) ? null : mail[0];
+	}
 
-		MailMessage mail = (MailMessage) queues[port].removeFirst();
+	/**
+	 * Retrieve up to <i>max</i> messages on the specified port, waiting at
+	 * most <i>timeout</i> ticks for the first one to arrive. Every message
+	 * already queued, up to <i>max</i>, is returned at once, so a busy server
+	 * pays for one wakeup per batch rather than one per message.
+	 * 
+	 * @param port the port on which to wait for messages.
+	 * @param max the maximum number of messages to return.
+	 * @param timeout the maximum number of ticks to wait, or
+	 * <tt>waitForever</tt>.
+	 * 
+	 * @return the messages received, oldest first. The array is empty if no
+	 * message arrived in time.
+	 */
+	public MailMessage[] receive(int port, int max, long timeout) {
+		Lib.assertTrue(port >= 0 && port < queues.length);
+		Lib.assertTrue(max > 0);
 
 		if (Lib.test(dbgNet))
-			System.out.println("got mail on port " + port + ": " + mail);
+			Lib.debug(dbgNet, "waiting for mail on port %d", port);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		long deadline = Machine.timer().getTime() + timeout;
+
+		while (queueCounts[port] == 0) {
+			long remaining = deadline - Machine.timer().getTime();
+			if (timeout != waitForever && remaining <= 0)
+				break;
+
+			Waiter waiter = new Waiter(timeout != waitForever);
+			waiters[port].add(waiter);
+
+			if (waiter.timed)
+				ThreadedKernel.alarm.wakeAfter(waiter.thread, remaining);
+
+			KThread.sleep();
+
+			// if the alarm woke us, we are still on the list
+			if (!waiter.woken)
+				waiters[port].remove(waiter);
+		}
+
+		int count = Math.min(max, queueCounts[port]);
+		MailMessage[] mail = new MailMessage[count];
+
+		for (int i = 0; i < count; i++) {
+			mail[i] = queues[port][queueHeads[port]];
+			queues[port][queueHeads[port]] = null;
+			queueHeads[port] = (queueHeads[port] + 1) % queues[port].length;
+		}
+		queueCounts[port] -= count;
+
+		// pass the wakeup on if messages remain for another waiter
+		if (queueCounts[port] > 0)
+			wakeWaiter(port);
+
+		Machine.interrupt().restore(intStatus);
+
+		if (Lib.test(dbgNet)) {
+			for (int i = 0; i < count; i++)
+				System.out.println("got mail on port " + port + ": " + mail[i]);
+		}
 
 		return mail;
 	}
 
 	/**
-	 * Wait for incoming messages, and then put them in the correct mailbox.
+	 * Called when packets have arrived and can be dequeued from the network
+	 * link. Places each message in its port's queue.
 	 */
-	private void postalDelivery() {
-		while (true) {
-			messageReceived.P();
-
-			Packet p = Machine.networkLink().receive();
+	private void receiveInterrupt() {
+		Packet p;
+		while ((p = link.receive()) != null)
+			deliver(p);
+	}
 
-			MailMessage mail;
+	private void deliver(Packet p) {
+		MailMessage mail;
 
-			try {
-				mail = new MailMessage(p);
-			}
-			catch (MalformedPacketException e) {
-				continue;
-			}
+		try {
+			mail = new MailMessage(p);
+		}
+		catch (MalformedPacketException e) {
+			p.free();
+			return;
+		}
 
-			if (Lib.test(dbgNet))
-				System.out.println("delivering mail to port " + mail.dstPort
-						+ ": " + mail);
+		int port = mail.dstPort;
+		MailMessage[] queue = queues[port];
 
-			// atomically add message to the mailbox and wake a waiting thread
-			queues[mail.dstPort].add(mail);
+		if (queueCounts[port] == queue.length) {
+			Lib.debug(dbgNet, "port %d is full, dropping mail", port);
+			mail.free();
+			return;
 		}
+
+		if (Lib.test(dbgNet))
+			System.out.println("delivering mail to port " + port + ": " + mail);
+
+		queue[(queueHeads[port] + queueCounts[port]) % queue.length] = mail;
+		queueCounts[port]++;
+
+		wakeWaiter(port);
 	}
 
 	/**
-	 * Called when a packet has arrived and can be dequeued from the network
-	 * link.
+	 * Wake the longest-waiting thread on a port, skipping any that the alarm
+	 * has already woken. Interrupts must be disabled.
 	 */
-	private void receiveInterrupt() {
-		messageReceived.V();
+	private void wakeWaiter(int port) {
+		Waiter waiter;
+		while ((waiter = waiters[port].poll()) != null) {
+			if (waiter.timed && !ThreadedKernel.alarm.cancel(waiter.thread))
+				continue;
+
+			waiter.woken = true;
+			waiter.thread.ready();
+			return;
+		}
 	}
 
 	/**
-	 * Send a message to a mailbox on a remote machine.
+	 * Send a message to a mailbox on a remote machine. Returns as soon as the
+	 * message is queued, waiting only if the transmit queue is full. If the
+	 * message was built on a pooled buffer, the buffer is returned to the pool
+	 * once the message has left.
 	 */
 	public void send(MailMessage mail) {
+		enqueue(new Outgoing(mail, null));
+	}
+
+	/**
+	 * Send a message to a mailbox on a remote machine, and wait until the
+	 * network link has finished sending it. Callers that time their own
+	 * retransmissions use this so that time spent in the queue does not count.
+	 */
+	public void sendAndWait(MailMessage mail) {
+		Semaphore sent = new Semaphore(0);
+		enqueue(new Outgoing(mail, sent));
+		sent.P();
+	}
+
+	/**
+	 * Set the priority class of messages sent from the specified local port.
+	 * Every port starts at <tt>minimumPriority</tt>.
+	 *
+	 * @param port the source port.
+	 * @param priority the new priority class, between
+	 * <tt>minimumPriority</tt> and <tt>maximumPriority</tt>.
+	 */
+	public void setPriority(int port, int priority) {
+		Lib.assertTrue(port >= 0 && port < priorities.length);
+		Lib.assertTrue(priority >= minimumPriority
+				&& priority <= maximumPriority);
+
+		priorities[port] = priority;
+	}
+
+	private void enqueue(Outgoing outgoing) {
 		if (Lib.test(dbgNet))
-			System.out.println("sending mail: " + mail);
+			System.out.println("sending mail: " + outgoing.mail);
 
-		sendLock.acquire();
+		freeSendSlots.P();
 
-		Machine.networkLink().send(mail.packet);
-		messageSent.P();
+		boolean intStatus = Machine.interrupt().disable();
 
-		sendLock.release();
+		sendQueues[priorities[outgoing.mail.srcPort]].add(outgoing);
+		if (sending == null)
+			sendNext();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Put the next queued message on the wire, taking the highest priority
+	 * class first. Interrupts must be disabled.
+	 */
+	private void sendNext() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		for (int i = maximumPriority; i >= minimumPriority; i--) {
+			sending = sendQueues[i].poll();
+			if (sending != null) {
+				link.send(sending.mail.packet);
+				return;
+			}
+		}
 	}
 
 	/**
@@ -127,16 +320,75 @@ public class PostOffice {
 	 * dropped.
 	 */
 	private void sendInterrupt() {
-		messageSent.V();
+		Outgoing sent = sending;
+		sending = null;
+
+		freeSendSlots.V();
+		if (sent.sent != null)
+			sent.sent.V();
+
+		// a pooled message belongs to the post office once it is sent
+		sent.mail.free();
+
+		sendNext();
 	}
 
-	private SynchList[] queues;
+	private NetworkLink link;
+
+	/** The ring of messages queued on each port; interrupts protect them. */
+	private MailMessage[][] queues;
+
+	private int[] queueHeads, queueCounts;
+
+	private LinkedList<Waiter>[] waiters;
+
+	private Semaphore freeSendSlots; // P'd for each message queued to send
+
+	/** The transmit queue of each priority class; interrupts protect them. */
+	private LinkedList<Outgoing>[] sendQueues;
+
+	/** The message the network link is sending, or <tt>null</tt>. */
+	private Outgoing sending = null;
+
+	private int[] priorities;
+
+	private static class Outgoing {
+		Outgoing(MailMessage mail, Semaphore sent) {
+			this.mail = mail;
+			this.sent = sent;
+		}
+
+		MailMessage mail;
+
+		/** V'd once the message is on the wire, if not <tt>null</tt>. */
+		Semaphore sent;
+	}
+
+	/**
+	 * A thread waiting for mail on a port.
+	 */
+	private static class Waiter {
+		Waiter(boolean timed) {
+			this.timed = timed;
+		}
+
+		KThread thread = KThread.currentThread();
+
+		/** Whether the alarm will also wake this thread. */
+		boolean timed;
+
+		/** Set when a message, rather than the alarm, woke this thread. */
+		boolean woken = false;
+	}
 
-	private Semaphore messageReceived; // V'd when a message can be dequeued
+	/** The timeout that makes <tt>receive()</tt> wait as long as necessary. */
+	public static final long waitForever = -1;
 
-	private Semaphore messageSent; // V'd when a message can be queued
+	/** The lowest priority class, used by default. */
+	public static final int minimumPriority = 0;
 
-	private Lock sendLock;
+	/** The highest priority class. */
+	public static final int maximumPriority = 3;
 
 	private static final char dbgNet = 'n';
 }
@@ -31,6 +31,7 @@ import java.security.PrivilegedActionException;
  * <li>accessing machine statistics
  * <li>installing a console
  * <li>flushing the simulated processor's pipeline
+ * <li>translating addresses with the simulated processor
  * <li>approving TCB operations
  * </ol>
  * These operations can be directly performed using a <tt>Privilege</tt> object.
@@ -169,6 +170,17 @@ public abstract class Privilege {
 		 * mode.
 		 */
 		public void flushPipe();
+
+		/**
+		 * Translate a virtual address the way a memory reference would,
+		 * without touching memory. Used to benchmark address translation.
+		 * 
+		 * @param vaddr the virtual address to translate.
+		 * @param size the size of the memory reference (1, 2, or 4).
+		 * @param writing <tt>true</tt> if the reference is a write.
+		 * @return the physical address, or -1 if the translation failed.
+		 */
+		public int translate(int vaddr, int size, boolean writing);
 	}
 
 	/**
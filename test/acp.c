@@ -0,0 +1,99 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define BUFSIZE 1024
+#define NBUF 4
+
+char buf[NBUF][BUFSIZE];
+int offset[NBUF];
+
+struct io_completion done[NBUF];
+
+int src, dst, next, eof, inflight;
+
+/* Start an asynchronous request on buffer b. Read tags are buffer numbers;
+ * write tags are buffer numbers plus NBUF.
+ */
+void start(int opcode, int b, int count)
+{
+  struct io_request request;
+
+  request.opcode = opcode;
+  request.fileDescriptor = (opcode==ioRead) ? src : dst;
+  request.buffer = buf[b];
+  request.count = count;
+  request.offset = offset[b];
+  request.tag = (opcode==ioRead) ? b : b+NBUF;
+
+  if (submit(&request, 1) != 1) {
+    printf("submit failed\n");
+    exit(1);
+  }
+
+  inflight++;
+}
+
+void startRead(int b)
+{
+  offset[b] = next;
+  next += BUFSIZE;
+  start(ioRead, b, BUFSIZE);
+}
+
+int main(int argc, char** argv)
+{
+  int i, n, b;
+
+  if (argc!=3) {
+    printf("Usage: acp <src> <dst>\n");
+    return 1;
+  }
+
+  src = open(argv[1]);
+  if (src==-1) {
+    printf("Unable to open %s\n", argv[1]);
+    return 1;
+  }
+
+  dst = creat(argv[2]);
+  if (dst==-1) {
+    printf("Unable to create %s\n", argv[2]);
+    return 1;
+  }
+
+  /* keep NBUF reads in flight; each buffer is written as soon as it is
+   * read, and refilled as soon as it is written */
+  for (b=0; b<NBUF; b++)
+    startRead(b);
+
+  while (inflight > 0) {
+    n = reap(done, NBUF, 1);
+
+    for (i=0; i<n; i++) {
+      inflight--;
+
+      if (done[i].tag < NBUF) {
+	b = done[i].tag;
+	if (done[i].result > 0)
+	  start(ioWrite, b, done[i].result);
+	else
+	  eof = 1;
+      }
+      else {
+	b = done[i].tag - NBUF;
+	if (done[i].result < 0) {
+	  printf("Write failed\n");
+	  return 1;
+	}
+	if (!eof)
+	  startRead(b);
+      }
+    }
+  }
+
+  close(src);
+  close(dst);
+
+  return 0;
+}
@@ -0,0 +1,59 @@
+/* ckpt.c
+ *	Take a checkpoint and check what survives it. Writes "before" to
+ *	ckpt.txt and sums 1..100 into a global, then checkpoints to ckpt.img.
+ *	The first run prints "checkpoint saved" and exits. A run with
+ *	Machine.checkpoint = ckpt.img resumes from the checkpoint() call, which
+ *	then returns 1: it checks the sum, appends "after" to the reopened
+ *	ckpt.txt, and prints "resumed". ckpt.txt then holds "before\nafter\n".
+ *
+ *	Must run alone, with no TLB.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+int total;
+
+int main(int argc, char** argv)
+{
+  int fd, i, r;
+
+  fd = creat("ckpt.txt");
+  if (fd==-1) {
+    printf("Unable to create ckpt.txt\n");
+    return 1;
+  }
+
+  write(fd, "before\n", 7);
+
+  total = 0;
+  for (i=1; i<=100; i++)
+    total += i;
+
+  r = checkpoint("ckpt.img");
+  if (r==0) {
+    printf("checkpoint saved\n");
+    return 0;
+  }
+  if (r!=1) {
+    printf("checkpoint failed\n");
+    return 1;
+  }
+
+  /* resumed: the global and the open file must have survived */
+  if (total!=5050) {
+    printf("resumed with the wrong total\n");
+    return 1;
+  }
+
+  if (write(fd, "after\n", 6)!=6) {
+    printf("Write failed\n");
+    return 1;
+  }
+
+  close(fd);
+
+  printf("resumed\n");
+  return 0;
+}
@@ -67,3 +67,6 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(submit, syscallSubmit)
+	SYSCALLSTUB(reap, syscallReap)
+	SYSCALLSTUB(checkpoint, syscallCheckpoint)
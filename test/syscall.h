@@ -25,6 +25,9 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallSubmit		13
+#define syscallReap		14
+#define syscallCheckpoint	15
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -79,7 +82,7 @@ void exit(int status);
  * extension.
  *
  * argc specifies the number of arguments to pass to the child process. This
- * number must be non-negative.
+ * number must be non-negative, and at most 256, a page's worth of pointers.
  *
  * argv is an array of pointers to null-terminated strings that represent the
  * arguments to pass to the child process. argv[0] points to the first
@@ -190,6 +193,8 @@ int write(int fileDescriptor, void *buffer, int count);
  * If the file descriptor refers to a stream, all data written to it by write()
  * will eventually be flushed (unless the stream is terminated remotely), but
  * not necessarily before close() returns.
+ * If asynchronous requests submitted on the file descriptor have not yet
+ * completed, close() waits for them first.
  *
  * The resources associated with the file descriptor are released. If the
  * descriptor is the last reference to a disk file which has been removed using
@@ -257,6 +262,78 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* ASYNCHRONOUS I/O SYSCALLS: submit(), reap() */
+
+/* Operation codes for struct io_request. */
+#define ioRead			0
+#define ioWrite			1
+
+/**
+ * An asynchronous read or write request, as passed to submit().
+ *
+ * offset is the position in the file at which to start, or -1 to read or
+ * write at the descriptor's current position, as read() and write() do.
+ * tag is not interpreted by the kernel; it is returned with the completion.
+ */
+struct io_request {
+  int opcode;
+  int fileDescriptor;
+  void *buffer;
+  int count;
+  int offset;
+  int tag;
+};
+
+/**
+ * The completion of an asynchronous request, as returned by reap(). result is
+ * what read() or write() would have returned for the request.
+ */
+struct io_completion {
+  int tag;
+  int result;
+};
+
+/**
+ * Start count asynchronous read or write requests and return without waiting
+ * for any of them to complete. The data of a write is copied before submit()
+ * returns, so its buffer may be reused at once. The buffer of a read must not
+ * be used until its completion has been reaped.
+ *
+ * A process may have at most 64 requests that are outstanding or completed
+ * but not yet reaped. A request that cannot be started (for example, because
+ * its file descriptor is invalid) completes immediately with a result of -1.
+ *
+ * Returns the number of requests submitted, which is less than count if the
+ * limit was reached, or -1 if an error occurred.
+ */
+int submit(struct io_request *requests, int count);
+
+/**
+ * Wait until at least minimum requests have completed, or until no requests
+ * are outstanding, then store up to count completions in completions, oldest
+ * first.
+ *
+ * Returns the number of completions stored, or -1 if an error occurred.
+ */
+int reap(struct io_completion *completions, int count, int minimum);
+
+/* CHECKPOINT SYSCALL: checkpoint() */
+
+/**
+ * Save the state of the machine and of this process in the named file. A
+ * later run of Nachos with Machine.checkpoint set to that file starts with
+ * this process already loaded, continuing from this call, so a test can skip
+ * its setup by starting from a checkpoint taken after it.
+ *
+ * Only possible in a machine without a TLB, when this is the only process
+ * and it has no asynchronous I/O in progress. Open files are reopened by name
+ * at the same position when the process is resumed.
+ *
+ * Returns 0 after saving the checkpoint, 1 when resumed from it, or -1 if an
+ * error occurred.
+ */
+int checkpoint(char *name);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -40,7 +40,9 @@ public class Alarm {
 		for(int i = 0; i < sleepingThreads.size(); i++){
 			if(i < sleepingThreads.size() && sleepingThreads.get(i).canWake()){
 				//Wake up the thread
-				System.out.println("\tAlarm::Waking up " + sleepingThreads.get(i).toString());
+				if (Lib.test(dbgThread))
+					Lib.debug(dbgThread, "\tAlarm::Waking up %s",
+							sleepingThreads.get(i));
 				sleepingThreads.get(i).ready();
 				sleepingThreads.remove(i);
 				i--;
@@ -74,8 +76,9 @@ public class Alarm {
 	 */
 	public void waitUntil(long x) {
 		long wakeTime = Machine.timer().getTime() + x;
-		System.out.println("\tAlarm::" + KThread.currentThread().toString() + 
-						   " is waiting until " + wakeTime);
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "\tAlarm::%s is waiting until %d",
+					KThread.currentThread(), wakeTime);
 		
 		Machine.interrupt().disable();
 		KThread.currentThread().setWakeTime(wakeTime);
@@ -83,7 +86,36 @@ public class Alarm {
 		KThread.sleep();
 		Machine.interrupt().enable();
 	}
-	
+
+	/**
+	 * Arrange for a thread to be woken in the first timer interrupt at least
+	 * <i>x</i> ticks from now. Unlike <tt>waitUntil()</tt>, this does not put
+	 * the thread to sleep; the caller does that, and calls <tt>cancel()</tt>
+	 * if something else wakes the thread first. Interrupts must be disabled.
+	 * 
+	 * @param thread the thread to wake.
+	 * @param x the minimum number of clock ticks to wait.
+	 */
+	public void wakeAfter(KThread thread, long x) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		thread.setWakeTime(Machine.timer().getTime() + x);
+		sleepingThreads.add(thread);
+	}
+
+	/**
+	 * Cancel a wakeup arranged with <tt>wakeAfter()</tt>. Interrupts must be
+	 * disabled.
+	 * 
+	 * @param thread the thread that no longer needs waking.
+	 * @return <tt>true</tt> if the wakeup was cancelled, or <tt>false</tt> if
+	 * the alarm has already woken the thread.
+	 */
+	public boolean cancel(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return sleepingThreads.remove(thread);
+	}
 
 	// Place this function inside Alarm. And make sure Alarm.selfTest() is called inside ThreadedKernel.selfTest() method.
 	public static void selftest() {
@@ -135,5 +167,6 @@ public class Alarm {
 	    t3.fork();
 	    t3.join();
 	}
-	
+
+	private static final char dbgThread = 't';
 }
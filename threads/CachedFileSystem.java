@@ -0,0 +1,437 @@
+package nachos.threads;
+
+import nachos.machine.*;
+import nachos.filesys.*;
+
+import java.util.HashMap;
+
+/**
+ * A block cache in front of another file system. Files are cached in
+ * fixed-size blocks that are shared by every <tt>OpenFile</tt> with the same
+ * name. When the cache is full, the least recently used block is evicted.
+ * Dirty blocks are written back when the last reference to their file is
+ * closed, when they are evicted, and when the kernel halts.
+ *
+ * <p>
+ * Only cache misses reach the underlying file system, so only misses pay its
+ * simulated delay. The underlying file is opened lazily on the first miss and
+ * closed again once the last reference is closed, so cached files do not hold
+ * on to the underlying file system's open file slots.
+ *
+ * <p>
+ * To use it, set the <tt>nachos.conf</tt> key <tt>ThreadedKernel.fileSystem</tt>
+ * to <tt>nachos.threads.CachedFileSystem</tt>. It caches a
+ * <tt>DiskFileSystem</tt> if the machine has a disk, and the stub file system
+ * otherwise. The number of blocks is taken from
+ * <tt>CachedFileSystem.numBlocks</tt>.
+ */
+public class CachedFileSystem implements FileSystem {
+	/**
+	 * Allocate a new block cache in front of a file system on the machine's
+	 * disk, or in front of the stub file system if there is no disk. Must be
+	 * called from a thread.
+	 */
+	public CachedFileSystem() {
+		this(Machine.disk() != null ? new DiskFileSystem() : Machine
+				.stubFileSystem());
+	}
+
+	/**
+	 * Allocate a new block cache in front of the specified file system.
+	 *
+	 * @param fileSystem the file system to cache.
+	 */
+	public CachedFileSystem(FileSystem fileSystem) {
+		Lib.assertTrue(fileSystem != null);
+
+		this.fileSystem = fileSystem;
+
+		numBlocks = Config.getInteger("CachedFileSystem.numBlocks", 64);
+		Lib.assertTrue(numBlocks > 0);
+
+		lruHead = new Block(null, -1);
+		lruHead.prev = lruHead.next = lruHead;
+	}
+
+	public OpenFile open(String name, boolean create) {
+		lock.acquire();
+
+		CachedFile file = files.get(name);
+
+		if (create || file == null) {
+			// the underlying file system decides whether the file exists
+			OpenFile underlying = fileSystem.open(name, create);
+			if (underlying == null) {
+				lock.release();
+				return null;
+			}
+
+			if (file == null) {
+				file = new CachedFile(name);
+				files.put(name, file);
+			}
+			else {
+				discardBlocks(file);
+				if (file.underlying != null)
+					file.underlying.close();
+			}
+
+			file.underlying = underlying;
+			file.length = underlying.length();
+		}
+
+		file.references++;
+
+		lock.release();
+
+		return new CachedOpenFile(file);
+	}
+
+	public boolean remove(String name) {
+		lock.acquire();
+
+		CachedFile file = files.get(name);
+		if (file != null) {
+			discardBlocks(file);
+			if (file.underlying != null) {
+				file.underlying.close();
+				file.underlying = null;
+			}
+			file.removed = true;
+			files.remove(name);
+		}
+
+		boolean result = fileSystem.remove(name);
+
+		lock.release();
+
+		return result;
+	}
+
+	/**
+	 * Write every dirty block back to the underlying file system, and flush
+	 * that file system too if it is on the disk. Called when the kernel halts.
+	 */
+	public void flush() {
+		lock.acquire();
+
+		for (Block block = lruHead.next; block != lruHead; block = block.next)
+			writeBack(block);
+
+		if (fileSystem instanceof DiskFileSystem)
+			((DiskFileSystem) fileSystem).flush();
+
+		lock.release();
+	}
+
+	/**
+	 * Return the cached block, reading it from the underlying file system on a
+	 * miss. The caller must hold <tt>lock</tt>.
+	 *
+	 * @param file the file containing the block.
+	 * @param blockNumber the index of the block within the file.
+	 * @param load <tt>false</tt> if the caller is about to overwrite the whole
+	 * block, so a miss need not read it.
+	 * @return the block, or <tt>null</tt> if it could not be read.
+	 */
+	private Block getBlock(CachedFile file, int blockNumber, boolean load) {
+		Block block = file.blocks.get(blockNumber);
+
+		if (block != null) {
+			hits++;
+			unlink(block);
+			linkFirst(block);
+			return block;
+		}
+
+		misses++;
+
+		if (numCached == numBlocks)
+			evict(lruHead.prev);
+
+		block = new Block(file, blockNumber);
+
+		int pos = blockNumber * blockSize;
+		if (load && pos < file.length) {
+			if (!openUnderlying(file))
+				return null;
+
+			int amount = Math.min(blockSize, file.length - pos);
+			if (file.underlying.read(pos, block.data, 0, amount) != amount)
+				return null;
+		}
+
+		file.blocks.put(blockNumber, block);
+		linkFirst(block);
+		numCached++;
+
+		return block;
+	}
+
+	private void evict(Block block) {
+		if (Lib.test(dbgCache))
+			Lib.debug(dbgCache, "evicting block %d of %s", block.blockNumber,
+					block.file.name);
+
+		writeBack(block);
+
+		CachedFile file = block.file;
+		if (file.references == 0 && file.underlying != null) {
+			file.underlying.close();
+			file.underlying = null;
+		}
+
+		removeBlock(block);
+	}
+
+	private void writeBack(Block block) {
+		if (!block.dirty)
+			return;
+
+		CachedFile file = block.file;
+		int pos = block.blockNumber * blockSize;
+		int amount = Math.min(blockSize, file.length - pos);
+
+		if (amount > 0 && openUnderlying(file))
+			file.underlying.write(pos, block.data, 0, amount);
+
+		block.dirty = false;
+	}
+
+	private void discardBlocks(CachedFile file) {
+		for (Block block : file.blocks.values().toArray(new Block[0]))
+			removeBlock(block);
+	}
+
+	private void removeBlock(Block block) {
+		unlink(block);
+		block.file.blocks.remove(block.blockNumber);
+		numCached--;
+
+		CachedFile file = block.file;
+		if (file.blocks.isEmpty() && file.references == 0
+				&& files.get(file.name) == file)
+			files.remove(file.name);
+	}
+
+	private boolean openUnderlying(CachedFile file) {
+		if (file.underlying == null && !file.removed)
+			file.underlying = fileSystem.open(file.name, false);
+
+		return (file.underlying != null);
+	}
+
+	private void linkFirst(Block block) {
+		block.next = lruHead.next;
+		block.prev = lruHead;
+		lruHead.next.prev = block;
+		lruHead.next = block;
+	}
+
+	private void unlink(Block block) {
+		block.prev.next = block.next;
+		block.next.prev = block.prev;
+	}
+
+	private int read(CachedFile file, int pos, byte[] buf, int offset,
+			int length) {
+		if (pos < 0 || length < 0)
+			return -1;
+
+		lock.acquire();
+
+		int amount = 0;
+		length = Math.max(0, Math.min(length, file.length - pos));
+
+		while (amount < length) {
+			int blockNumber = (pos + amount) / blockSize;
+			int blockOffset = (pos + amount) % blockSize;
+			int chunk = Math.min(length - amount, blockSize - blockOffset);
+
+			Block block = getBlock(file, blockNumber, true);
+			if (block == null)
+				break;
+
+			System.arraycopy(block.data, blockOffset, buf, offset + amount,
+					chunk);
+			amount += chunk;
+		}
+
+		lock.release();
+
+		return amount;
+	}
+
+	private int write(CachedFile file, int pos, byte[] buf, int offset,
+			int length) {
+		if (pos < 0 || length < 0)
+			return -1;
+
+		lock.acquire();
+
+		int amount = 0;
+
+		while (amount < length) {
+			int blockNumber = (pos + amount) / blockSize;
+			int blockOffset = (pos + amount) % blockSize;
+			int chunk = Math.min(length - amount, blockSize - blockOffset);
+
+			Block block = getBlock(file, blockNumber, chunk < blockSize);
+			if (block == null)
+				break;
+
+			System.arraycopy(buf, offset + amount, block.data, blockOffset,
+					chunk);
+			block.dirty = true;
+			amount += chunk;
+
+			file.length = Math.max(file.length, pos + amount);
+		}
+
+		lock.release();
+
+		return (amount == 0 && length > 0) ? -1 : amount;
+	}
+
+	private void close(CachedFile file) {
+		lock.acquire();
+
+		for (Block block : file.blocks.values())
+			writeBack(block);
+
+		file.references--;
+		if (file.references == 0) {
+			if (file.underlying != null) {
+				file.underlying.close();
+				file.underlying = null;
+			}
+
+			if (file.blocks.isEmpty() && files.get(file.name) == file)
+				files.remove(file.name);
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * The state shared by every open instance of the same file.
+	 */
+	private class CachedFile {
+		CachedFile(String name) {
+			this.name = name;
+		}
+
+		String name;
+
+		/** The file on the underlying file system, if it is open. */
+		OpenFile underlying = null;
+
+		int length;
+
+		int references = 0;
+
+		boolean removed = false;
+
+		HashMap<Integer, Block> blocks = new HashMap<Integer, Block>();
+	}
+
+	/**
+	 * A cached block, linked into the LRU list. The most recently used block
+	 * follows <tt>lruHead</tt>.
+	 */
+	private class Block {
+		Block(CachedFile file, int blockNumber) {
+			this.file = file;
+			this.blockNumber = blockNumber;
+		}
+
+		CachedFile file;
+
+		int blockNumber;
+
+		byte[] data = new byte[blockSize];
+
+		boolean dirty = false;
+
+		Block prev, next;
+	}
+
+	private class CachedOpenFile extends OpenFileWithPosition {
+		CachedOpenFile(CachedFile file) {
+			super(CachedFileSystem.this, file.name);
+
+			this.file = file;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (file == null)
+				return -1;
+
+			return CachedFileSystem.this.read(file, pos, buf, offset, length);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (file == null)
+				return -1;
+
+			return CachedFileSystem.this.write(file, pos, buf, offset, length);
+		}
+
+		public int length() {
+			if (file == null)
+				return -1;
+
+			return file.length;
+		}
+
+		public void close() {
+			if (file != null) {
+				CachedFileSystem.this.close(file);
+				file = null;
+			}
+		}
+
+		private CachedFile file;
+	}
+
+	/**
+	 * Return the number of block lookups satisfied from the cache.
+	 *
+	 * @return the number of cache hits.
+	 */
+	public int getHits() {
+		return hits;
+	}
+
+	/**
+	 * Return the number of blocks that had to be fetched from the underlying
+	 * file system.
+	 *
+	 * @return the number of cache misses.
+	 */
+	public int getMisses() {
+		return misses;
+	}
+
+	/** The size of a cache block, in bytes. */
+	public static final int blockSize = 1024;
+
+	private FileSystem fileSystem;
+
+	private int numBlocks;
+
+	private int numCached = 0;
+
+	private int hits = 0;
+
+	private int misses = 0;
+
+	private HashMap<String, CachedFile> files = new HashMap<String, CachedFile>();
+
+	/** Sentinel of the circular LRU list. */
+	private Block lruHead;
+
+	private Lock lock = new Lock();
+
+	private static final char dbgCache = 'f';
+}
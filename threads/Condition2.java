@@ -40,7 +40,9 @@ public class Condition2 {
 		
 		if (value == 0) {
 			waitQueue.add(KThread.currentThread());
+			Machine.autoGrader().sleepingOnCondition(this);
 			KThread.sleep();
+			Machine.autoGrader().wokeOnCondition(this);
 		}
 		else {
 			value--;
@@ -61,6 +63,7 @@ public class Condition2 {
 			KThread threadFromQueue = waitQueue.poll();
 			boolean intStatus = Machine.interrupt().disable();
 			if (threadFromQueue != null) {
+				Machine.autoGrader().wakingCondition(this);
 				threadFromQueue.ready();
 			}
 			else {
@@ -161,8 +161,9 @@ public class KThread {
 		Lib.assertTrue(status == statusNew);
 		Lib.assertTrue(target != null);
 
-		Lib.debug(dbgThread, "Forking thread: " + toString() + " Runnable: "
-				+ target);
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Forking thread: %s Runnable: %s", this,
+					target);
 
 		boolean intStatus = Machine.interrupt().disable();
 
@@ -184,7 +185,8 @@ public class KThread {
 	}
 
 	private void begin() {
-		Lib.debug(dbgThread, "Beginning thread: " + toString());
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Beginning thread: %s", this);
 
 		Lib.assertTrue(this == currentThread);
 
@@ -208,7 +210,8 @@ public class KThread {
 	 */
 	
 	public static void finish() {
-		Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Finishing thread: %s", currentThread);
 		Machine.interrupt().disable();
 
 		Machine.autoGrader().finishingCurrentThread();
@@ -246,7 +249,8 @@ public class KThread {
 	 * called with interrupts disabled.
 	 */
 	public static void yield() {
-		Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Yielding thread: %s", currentThread);
 
 		Lib.assertTrue(currentThread.status == statusRunning);
 
@@ -277,7 +281,8 @@ public class KThread {
 	 */
 	//Interrupts must be disabled, sets unfinished threads to blocked, run next thread
 	public static void sleep() {
-		Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Sleeping thread: %s", currentThread);
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 
@@ -293,7 +298,8 @@ public class KThread {
 	 */
 	//Interrupts must be disabled thread must be not ready, set to ready and waiting
 	public void ready() {
-		Lib.debug(dbgThread, "Ready thread: " + toString());
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Ready thread: %s", this);
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(status != statusReady);
@@ -315,7 +321,7 @@ public class KThread {
 	 */
 	public void join() {
 		//Joining threads, checking to make sure you aren't joining yourself
-		Lib.debug(dbgThread, "Joining to thread: " + toString());
+		Lib.debug(dbgThread, "Joining to thread: %s", this);
 		Lib.assertTrue(this != currentThread);
 	
 		/*
@@ -405,8 +411,15 @@ public class KThread {
 
 		//Soon to be old thread
 		currentThread.saveState();
-		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
-				+ " to: " + toString());
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Switching from: %s to: %s",
+					currentThread, this);
+
+		if (Metrics.enabled()) {
+			if (switches == null)
+				switches = Metrics.counter("thread." + name + ".switches");
+			switches.add(1);
+		}
 
 		//The new thread is this one
 		currentThread = this;
@@ -419,7 +432,8 @@ public class KThread {
 	 * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
 	 */
 	protected void restoreState() {
-		Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Running thread: %s", currentThread);
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(this == currentThread);
@@ -511,6 +525,9 @@ public class KThread {
 	
 	//wakeTime if set is the (time) ticks to wait until to run
 	private long wakeTime = 0;
+
+	/** The number of times this thread has been switched to. */
+	private Metrics.Counter switches = null;
 	
 	private static ThreadQueue readyQueue = null;
 
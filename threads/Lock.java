@@ -36,15 +36,28 @@ public class Lock {
 		KThread thread = KThread.currentThread();
 
 		if (lockHolder != null) {
+			boolean measuring = Metrics.enabled();
+			long startTime = measuring ? Machine.timer().getTime() : 0;
+			long startNanos = measuring ? System.nanoTime() : 0;
+
 			waitQueue.waitForAccess(thread);
+			Machine.autoGrader().waitingForLock(this);
 			KThread.sleep();
+
+			if (measuring)
+				waitTime().addSample(Machine.timer().getTime() - startTime,
+						System.nanoTime() - startNanos);
 		}
 		else {
 			waitQueue.acquire(thread);
 			lockHolder = thread;
+
+			if (Metrics.enabled())
+				waitTime().addSample(0, 0);
 		}
 
 		Lib.assertTrue(lockHolder == thread);
+		Machine.autoGrader().acquiredLock(this);
 
 		Machine.interrupt().restore(intStatus);
 	}
@@ -57,6 +70,8 @@ public class Lock {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		Machine.autoGrader().releasingLock(this);
+
 		if ((lockHolder = waitQueue.nextThread()) != null)
 			lockHolder.ready();
 
@@ -72,8 +87,24 @@ public class Lock {
 		return (lockHolder == KThread.currentThread());
 	}
 
+	/**
+	 * Return the histogram of the time threads have waited for this lock,
+	 * creating it the first time.
+	 */
+	private Metrics.Histogram waitTime() {
+		if (waitTime == null)
+			waitTime = Metrics.histogram("lock." + (numLocks++) + ".wait");
+
+		return waitTime;
+	}
+
 	private KThread lockHolder = null;
 
+	private Metrics.Histogram waitTime = null;
+
+	/** The number of locks that have recorded their wait times. */
+	private static int numLocks = 0;
+
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(true);
 }
@@ -39,12 +39,15 @@ public class Semaphore {
 
 		if (value == 0) {
 			waitQueue.waitForAccess(KThread.currentThread());
+			Machine.autoGrader().waitingForSemaphore(this);
 			KThread.sleep();
 		}
 		else {
 			value--;
 		}
 
+		Machine.autoGrader().acquiredSemaphore(this);
+
 		Machine.interrupt().restore(intStatus);
 	}
 
@@ -55,6 +58,8 @@ public class Semaphore {
 	public void V() {
 		boolean intStatus = Machine.interrupt().disable();
 
+		Machine.autoGrader().releasingSemaphore(this);
+
 		KThread thread = waitQueue.nextThread();
 		if (thread != null) {
 			thread.ready();
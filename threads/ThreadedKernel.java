@@ -1,6 +1,7 @@
 package nachos.threads;
 
 import nachos.machine.*;
+import nachos.filesys.*;
 
 /**
  * A multi-threaded OS kernel.
@@ -15,35 +16,38 @@ public class ThreadedKernel extends Kernel {
 
 	/**
 	 * Initialize this kernel. Creates a scheduler, the first thread, and an
-	 * alarm, and enables interrupts. Creates a file system if necessary.
+	 * alarm, and enables interrupts. Creates a file system if necessary, on
+	 * the disk if there is one.
 	 */
 	public void initialize(String[] args) {
 		// set scheduler
 		String schedulerName = Config.getString("ThreadedKernel.scheduler");
 		scheduler = (Scheduler) Lib.constructObject(schedulerName);
 
-		// set fileSystem
+		// start threading
+		new KThread(null);
+
+		alarm = new Alarm();
+
+		Machine.interrupt().enable();
+
+		// set fileSystem, now that it can use the disk
 		String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
 		if (fileSystemName != null)
 			fileSystem = (FileSystem) Lib.constructObject(fileSystemName);
+		else if (Machine.disk() != null)
+			fileSystem = new DiskFileSystem();
 		else if (Machine.stubFileSystem() != null)
 			fileSystem = Machine.stubFileSystem();
 		else
 			fileSystem = null;
-
-		// start threading
-		new KThread(null);
-
-		alarm = new Alarm();
-
-		Machine.interrupt().enable();
 	}
 
 	/**
 	 * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-	 * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-	 * autograder never calls this method, so it is safe to put additional tests
-	 * here.
+	 * <tt>SynchList</tt>, <tt>ElevatorBank</tt>, <tt>SynchDisk</tt>, and
+	 * <tt>DiskFileSystem</tt> classes. Note that the autograder never calls
+	 * this method, so it is safe to put additional tests here.
 	 */
 	public void selfTest() {
 		//System.out.println("\nKThread/Join Test");
@@ -61,6 +65,12 @@ public class ThreadedKernel extends Kernel {
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
+		if (fileSystem instanceof DiskFileSystem) {
+			((DiskFileSystem) fileSystem).selfTest();
+		}
+		else if (Machine.disk() != null) {
+			new SynchDisk(Machine.disk()).selfTest();
+		}
 	}
 
 	/**
@@ -71,9 +81,15 @@ public class ThreadedKernel extends Kernel {
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Terminate this kernel. Writes back any cached file data, and the inodes
+	 * of files still open on the disk. Never returns.
 	 */
 	public void terminate() {
+		if (fileSystem instanceof CachedFileSystem)
+			((CachedFileSystem) fileSystem).flush();
+		else if (fileSystem instanceof DiskFileSystem)
+			((DiskFileSystem) fileSystem).flush();
+
 		Machine.halt();
 	}
 
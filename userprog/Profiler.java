@@ -0,0 +1,293 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A sampling profiler for user programs. Every
+ * <tt>Profiler.interval</tt> user instructions, the processor calls the
+ * profiler, which walks the current process's stack and counts the sample
+ * against each function on it. Function names come from the executable's
+ * symbol table; an address outside every known function is shown in hex.
+ *
+ * <p>
+ * When the kernel terminates, the profiler prints a flat profile of the
+ * functions that were executing when sampled. If
+ * <tt>Profiler.foldedFile</tt> is set, it also writes every sampled stack to
+ * that file in the Nachos file system, one line per distinct stack in the
+ * form <tt>program;caller;callee count</tt>, which flame graph tools read
+ * directly.
+ *
+ * <p>
+ * Each sample costs a short stack walk and one table lookup. An interval of
+ * about 1000 instructions keeps the overhead to a few percent, and a prime
+ * interval avoids sampling in step with a program's loops.
+ *
+ * <p>
+ * The stack walk uses the frame layout recorded for each procedure. A sample
+ * taken in a prologue or epilogue, while the frame is half built, may lose
+ * its callers.
+ */
+public class Profiler {
+	/**
+	 * Allocate a new profiler and start sampling.
+	 *
+	 * @param interval the number of user instructions between samples.
+	 */
+	public Profiler(int interval) {
+		this.interval = interval;
+
+		Machine.processor().setSampleHandler(new Runnable() {
+			public void run() {
+				sample();
+			}
+		}, interval);
+	}
+
+	private void sample() {
+		if (!(KThread.currentThread() instanceof UThread))
+			return;
+
+		UserProcess process = ((UThread) KThread.currentThread()).process;
+		int depth = walk(process);
+
+		// look the stack up without allocating, and copy it only if it is new
+		probe.set(KThread.currentThread().getName(), frames, depth);
+		Stack stack = stacks.get(probe);
+		if (stack == null) {
+			stack = probe.copy();
+			stacks.put(stack, stack);
+		}
+
+		stack.count++;
+		samples++;
+	}
+
+	/**
+	 * Walk the current process's stack into <tt>frames</tt>, innermost
+	 * first. Each frame is a <tt>CoffSymbolTable.Procedure</tt>, or the
+	 * address itself if it is not in any known procedure.
+	 *
+	 * @return the number of frames.
+	 */
+	private int walk(UserProcess process) {
+		Processor processor = Machine.processor();
+		CoffSymbolTable symbols = process.symbols;
+
+		int pc = processor.readRegister(Processor.regPC);
+		CoffSymbolTable.Procedure procedure = (symbols != null) ? symbols
+				.find(pc) : null;
+
+		if (procedure == null) {
+			frames[0] = pc;
+			return 1;
+		}
+
+		int sp = 0;
+		int depth = 0;
+
+		while (depth < maxDepth) {
+			frames[depth++] = procedure;
+
+			int caller;
+
+			if (depth == 1) {
+				// the frame may still be under construction
+				int frame = processor.readRegister(procedure.frameRegister);
+
+				if (pc == procedure.start) {
+					sp = frame;
+					caller = processor.readRegister(Processor.regRA);
+				}
+				else if (pc == procedure.start + 4
+						|| !procedure.savesReturnAddress) {
+					sp = frame + procedure.frameSize;
+					caller = processor.readRegister(Processor.regRA);
+				}
+				else {
+					sp = frame + procedure.frameSize;
+					caller = readWord(process, sp
+							+ procedure.returnAddressOffset);
+				}
+			}
+			else {
+				// only a procedure that saved RA can have called another
+				if (!procedure.savesReturnAddress
+						|| procedure.frameRegister != Processor.regSP)
+					break;
+
+				sp += procedure.frameSize;
+				caller = readWord(process, sp + procedure.returnAddressOffset);
+			}
+
+			// the return address follows the call and its delay slot
+			pc = caller - 8;
+			procedure = symbols.find(pc);
+			if (procedure == null)
+				break;
+		}
+
+		return depth;
+	}
+
+	private int readWord(UserProcess process, int vaddr) {
+		if (process.readVirtualMemory(vaddr, word) != 4)
+			return 0;
+
+		return Lib.bytesToInt(word, 0);
+	}
+
+	private static String frameName(Object frame) {
+		if (frame instanceof CoffSymbolTable.Procedure)
+			return ((CoffSymbolTable.Procedure) frame).name;
+		else
+			return "0x" + Lib.toHexString((Integer) frame);
+	}
+
+	private static void count(HashMap<String, Integer> counts, String key,
+			int amount) {
+		Integer count = counts.get(key);
+		counts.put(key, (count == null) ? amount : count + amount);
+	}
+
+	/**
+	 * Print the flat profile, and write the folded stacks if a file was
+	 * configured. Called when the kernel terminates.
+	 */
+	public void print() {
+		HashMap<String, Integer> flat = new HashMap<String, Integer>();
+		HashMap<String, Integer> folded = new HashMap<String, Integer>();
+
+		for (Stack stack : stacks.keySet()) {
+			count(flat, stack.program + " " + frameName(stack.frames[0]),
+					stack.count);
+			count(folded, stack.toString(), stack.count);
+		}
+
+		System.out.println("Profile: " + samples + " samples, one every "
+				+ interval + " instructions");
+
+		for (Map.Entry<String, Integer> e : sorted(flat)) {
+			int count = e.getValue();
+			System.out.println("\t" + count + "\t" + (count * 100 / samples)
+					+ "%\t" + e.getKey());
+		}
+
+		String fileName = Config.getString("Profiler.foldedFile");
+		if (fileName == null)
+			return;
+
+		OpenFile file = ThreadedKernel.fileSystem.open(fileName, true);
+		if (file == null) {
+			System.out.println("Profile: cannot create " + fileName);
+			return;
+		}
+
+		for (Map.Entry<String, Integer> e : sorted(folded)) {
+			byte[] line = (e.getKey() + " " + e.getValue() + "\n").getBytes();
+			file.write(line, 0, line.length);
+		}
+		file.close();
+	}
+
+	/**
+	 * Return the entries of a table of counts, largest count first.
+	 */
+	private static ArrayList<Map.Entry<String, Integer>> sorted(
+			HashMap<String, Integer> counts) {
+		ArrayList<Map.Entry<String, Integer>> entries =
+				new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+
+		Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+			public int compare(Map.Entry<String, Integer> a,
+					Map.Entry<String, Integer> b) {
+				return b.getValue() - a.getValue();
+			}
+		});
+
+		return entries;
+	}
+
+	/**
+	 * A sampled stack, and the number of samples that found it.
+	 */
+	private static class Stack {
+		void set(String program, Object[] frames, int depth) {
+			this.program = program;
+			this.frames = frames;
+			this.depth = depth;
+
+			hash = program.hashCode();
+			for (int i = 0; i < depth; i++)
+				hash = hash * 31 + frames[i].hashCode();
+		}
+
+		Stack copy() {
+			Stack stack = new Stack();
+			Object[] copy = new Object[depth];
+			System.arraycopy(frames, 0, copy, 0, depth);
+			stack.set(program, copy, depth);
+			return stack;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			Stack stack = (Stack) o;
+
+			if (hash != stack.hash || depth != stack.depth
+					|| !program.equals(stack.program))
+				return false;
+
+			for (int i = 0; i < depth; i++) {
+				if (!frames[i].equals(stack.frames[i]))
+					return false;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Return this stack in folded form, outermost function first.
+		 */
+		public String toString() {
+			StringBuffer buf = new StringBuffer(program);
+			for (int i = depth - 1; i >= 0; i--)
+				buf.append(";" + frameName(frames[i]));
+			return buf.toString();
+		}
+
+		String program;
+
+		Object[] frames;
+
+		int depth, hash;
+
+		int count = 0;
+	}
+
+	private int interval;
+
+	private int samples = 0;
+
+	/** Every distinct stack sampled. */
+	private HashMap<Stack, Stack> stacks = new HashMap<Stack, Stack>();
+
+	/** The stack being sampled, reused to look up <tt>stacks</tt>. */
+	private Stack probe = new Stack();
+
+	private Object[] frames = new Object[maxDepth];
+
+	private byte[] word = new byte[4];
+
+	/** The deepest stack that will be walked. */
+	private static final int maxDepth = 64;
+}
@@ -7,6 +7,12 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ * 
+ * <p>
+ * Output is buffered in a ring that the send interrupt handler drains into the
+ * serial console one byte at a time, so writers only block when the ring is
+ * full. Input is line-buffered: bytes become readable once a newline arrives,
+ * and backspaces erase the last byte of the line still being typed.
  */
 public class SynchConsole {
 	/**
@@ -28,12 +34,17 @@ public class SynchConsole {
 			}
 		};
 		console.setInterruptHandlers(receiveHandler, sendHandler);
+
+		// a byte that arrived before the handlers were set is still waiting
+		boolean intStatus = Machine.interrupt().disable();
+		receiveInterrupt();
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
 	 * Return the next unsigned byte received (in the range <tt>0</tt> through
-	 * <tt>255</tt>). If a byte has not arrived at, blocks until a byte arrives,
-	 * or returns immediately, depending on the value of <i>block</i>.
+	 * <tt>255</tt>). If a complete line has not arrived, blocks until one
+	 * does, or returns immediately, depending on the value of <i>block</i>.
 	 * 
 	 * @param block <tt>true</tt> if <tt>readByte()</tt> should wait for a byte
 	 * if none is available.
@@ -41,24 +52,45 @@ public class SynchConsole {
 	 * and no byte was available.
 	 */
 	public int readByte(boolean block) {
-		int value;
-		boolean intStatus = Machine.interrupt().disable();
+		byte[] buf = new byte[1];
+
+		if (read(buf, 0, 1, block) == 0)
+			return -1;
+
+		return buf[0] & 0xFF;
+	}
+
+	/**
+	 * Transfer up to <i>length</i> bytes of completed input lines into
+	 * <i>buf</i>. If no complete line is available, blocks until one is, or
+	 * returns immediately, depending on the value of <i>block</i>.
+	 * 
+	 * @param buf the buffer to store the bytes in.
+	 * @param offset the offset in the buffer to start storing bytes.
+	 * @param length the maximum number of bytes to read.
+	 * @param block <tt>true</tt> to wait for input if none is available.
+	 * @return the number of bytes read.
+	 */
+	private int read(byte[] buf, int offset, int length, boolean block) {
 		readLock.acquire();
+		boolean intStatus = Machine.interrupt().disable();
 
-		if (block || charAvailable) {
-			charAvailable = false;
+		while (block && length > 0 && inputReady == 0) {
+			readerWaiting = true;
 			readWait.P();
-
-			value = console.readByte();
-			Lib.assertTrue(value != -1);
 		}
-		else {
-			value = -1;
+
+		int amount = Math.min(length, inputReady);
+		for (int i = 0; i < amount; i++) {
+			buf[offset + i] = inputRing[inputHead];
+			inputHead = (inputHead + 1) % inputRing.length;
 		}
+		inputReady -= amount;
 
-		readLock.release();
 		Machine.interrupt().restore(intStatus);
-		return value;
+		readLock.release();
+
+		return amount;
 	}
 
 	/**
@@ -70,20 +102,95 @@ public class SynchConsole {
 		return new File(true, false);
 	}
 
+	/**
+	 * Apply the line discipline to each byte that arrives. Called with
+	 * interrupts disabled.
+	 */
 	private void receiveInterrupt() {
-		charAvailable = true;
-		readWait.V();
+		int value = console.readByte();
+		if (value == -1)
+			return;
+
+		int inputCount = inputReady + inputPending;
+
+		if (value == '\b') {
+			if (inputPending > 0)
+				inputPending--;
+			return;
+		}
+
+		// drop input that arrives while the ring is full of unread lines
+		if (inputCount == inputRing.length)
+			return;
+
+		inputRing[(inputHead + inputCount) % inputRing.length] = (byte) value;
+		inputPending++;
+
+		// a newline, or a line too long to ever finish, completes the line
+		if (value == '\n' || inputReady + inputPending == inputRing.length) {
+			inputReady += inputPending;
+			inputPending = 0;
+
+			if (readerWaiting) {
+				readerWaiting = false;
+				readWait.V();
+			}
+		}
 	}
 
 	/**
-	 * Send a byte. Blocks until the send is complete.
+	 * Queue a byte to be sent. Blocks only if the output ring is full.
 	 * 
 	 * @param value the byte to be sent (the upper 24 bits are ignored).
 	 */
 	public void writeByte(int value) {
+		write(new byte[] { (byte) value }, 0, 1);
+	}
+
+	/**
+	 * Queue <i>length</i> bytes to be sent, blocking whenever the output ring
+	 * is full. The bytes of a single call are never interleaved with the bytes
+	 * of another.
+	 * 
+	 * @param buf the buffer to get the bytes from.
+	 * @param offset the offset in the buffer to start getting bytes.
+	 * @param length the number of bytes to send.
+	 */
+	private void write(byte[] buf, int offset, int length) {
 		writeLock.acquire();
-		console.writeByte(value);
-		writeWait.P();
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int i = 0; i < length; i++) {
+			while (outputCount == outputRing.length) {
+				writerWaiting = true;
+				writeWait.P();
+			}
+
+			outputRing[(outputHead + outputCount) % outputRing.length] = buf[offset
+					+ i];
+			outputCount++;
+
+			if (!sending)
+				sendNext();
+		}
+
+		Machine.interrupt().restore(intStatus);
+		writeLock.release();
+	}
+
+	/**
+	 * Block until every byte written so far has been sent.
+	 */
+	public void flush() {
+		writeLock.acquire();
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (sending) {
+			writerWaiting = true;
+			writeWait.P();
+		}
+
+		Machine.interrupt().restore(intStatus);
 		writeLock.release();
 	}
 
@@ -96,11 +203,30 @@ public class SynchConsole {
 		return new File(false, true);
 	}
 
-	private void sendInterrupt() {
-		writeWait.V();
+	/**
+	 * Hand the next byte in the output ring to the serial console. Called
+	 * with interrupts disabled.
+	 */
+	private void sendNext() {
+		if (outputCount == 0) {
+			sending = false;
+		}
+		else {
+			sending = true;
+			console.writeByte(outputRing[outputHead]);
+			outputHead = (outputHead + 1) % outputRing.length;
+			outputCount--;
+		}
+
+		if (writerWaiting) {
+			writerWaiting = false;
+			writeWait.V();
+		}
 	}
 
-	private boolean charAvailable = false;
+	private void sendInterrupt() {
+		sendNext();
+	}
 
 	private SerialConsole console;
 
@@ -112,6 +238,33 @@ public class SynchConsole {
 
 	private Semaphore writeWait = new Semaphore(0);
 
+	private static final int ringSize = 1024;
+
+	/** Bytes received but not yet read; completed lines come first. */
+	private byte[] inputRing = new byte[ringSize];
+
+	private int inputHead = 0;
+
+	/** The number of bytes of completed lines that can be read. */
+	private int inputReady = 0;
+
+	/** The number of bytes in the line still being typed. */
+	private int inputPending = 0;
+
+	private boolean readerWaiting = false;
+
+	/** Bytes written but not yet handed to the serial console. */
+	private byte[] outputRing = new byte[ringSize];
+
+	private int outputHead = 0;
+
+	private int outputCount = 0;
+
+	/** <tt>true</tt> while the serial console is busy sending a byte. */
+	private boolean sending = false;
+
+	private boolean writerWaiting = false;
+
 	private class File extends OpenFile {
 		File(boolean canRead, boolean canWrite) {
 			super(null, "SynchConsole");
@@ -128,24 +281,14 @@ public class SynchConsole {
 			if (!canRead)
 				return 0;
 
-			int i;
-			for (i = 0; i < length; i++) {
-				int value = SynchConsole.this.readByte(false);
-				if (value == -1)
-					break;
-
-				buf[offset + i] = (byte) value;
-			}
-
-			return i;
+			return SynchConsole.this.read(buf, offset, length, false);
 		}
 
 		public int write(byte[] buf, int offset, int length) {
 			if (!canWrite)
 				return 0;
 
-			for (int i = 0; i < length; i++)
-				SynchConsole.this.writeByte(buf[offset + i]);
+			SynchConsole.this.write(buf, offset, length);
 
 			return length;
 		}
@@ -4,6 +4,9 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.HashMap;
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple user processes.
  */
@@ -16,14 +19,27 @@ public class UserKernel extends ThreadedKernel {
 	}
 
 	/**
-	 * Initialize this kernel. Creates a synchronized console and sets the
-	 * processor's exception handler.
+	 * Initialize this kernel. Creates a synchronized console, the list of free
+	 * physical pages and the process table, and sets the processor's exception
+	 * handler.
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
 
 		console = new SynchConsole(Machine.console());
 
+		pageLock = new Lock();
+		freePages = new LinkedList<Integer>();
+		for (int ppn = 0; ppn < Machine.processor().getNumPhysPages(); ppn++)
+			freePages.add(ppn);
+
+		processLock = new Lock();
+		processTable = new HashMap<Integer, UserProcess>();
+
+		int profileInterval = Config.getInteger("Profiler.interval", 0);
+		if (profileInterval > 0)
+			profiler = new Profiler(profileInterval);
+
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
 				exceptionHandler();
@@ -62,6 +78,122 @@ public class UserKernel extends ThreadedKernel {
 		return ((UThread) KThread.currentThread()).process;
 	}
 
+	/**
+	 * Allocate a free page of physical memory.
+	 * 
+	 * @return the physical page number of the allocated page, or -1 if no
+	 * physical memory is left.
+	 */
+	public static int allocatePage() {
+		pageLock.acquire();
+		Integer ppn = freePages.poll();
+		pageLock.release();
+
+		return (ppn == null) ? -1 : ppn.intValue();
+	}
+
+	/**
+	 * Allocate a specific page of physical memory, as when restoring a
+	 * checkpoint.
+	 * 
+	 * @param ppn the physical page number of the page to allocate.
+	 * @return <tt>true</tt> if the page was free.
+	 */
+	public static boolean reservePage(int ppn) {
+		pageLock.acquire();
+		boolean free = freePages.remove(Integer.valueOf(ppn));
+		pageLock.release();
+
+		return free;
+	}
+
+	/**
+	 * Return a page of physical memory to the free list.
+	 * 
+	 * @param ppn the physical page number of the page to free.
+	 */
+	public static void freePage(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
+
+		pageLock.acquire();
+		freePages.add(ppn);
+		pageLock.release();
+	}
+
+	/**
+	 * Add a process to the process table and assign it a process ID. The
+	 * caller must hold <tt>processLock</tt>.
+	 * 
+	 * @param process the new process.
+	 * @return the process ID assigned to the process.
+	 */
+	static int registerProcess(UserProcess process) {
+		Lib.assertTrue(processLock.isHeldByCurrentThread());
+
+		int processID = nextProcessID++;
+		processTable.put(processID, process);
+
+		if (Metrics.enabled())
+			Metrics.gauge("kernel.processes").set(processTable.size());
+
+		return processID;
+	}
+
+	/**
+	 * Remove a process from the process table. The caller must hold
+	 * <tt>processLock</tt>.
+	 * 
+	 * @param processID the ID of the process to remove.
+	 * @return <tt>true</tt> if this was the last process in the system.
+	 */
+	static boolean unregisterProcess(int processID) {
+		Lib.assertTrue(processLock.isHeldByCurrentThread());
+
+		Lib.assertTrue(processTable.remove(processID) != null);
+
+		if (Metrics.enabled())
+			Metrics.gauge("kernel.processes").set(processTable.size());
+
+		return processTable.isEmpty();
+	}
+
+	/**
+	 * Return the number of processes in the process table. The caller must
+	 * hold <tt>processLock</tt>.
+	 * 
+	 * @return the number of processes.
+	 */
+	static int numProcesses() {
+		Lib.assertTrue(processLock.isHeldByCurrentThread());
+
+		return processTable.size();
+	}
+
+	/**
+	 * Queue an asynchronous I/O request to be run by one of the kernel's I/O
+	 * worker threads. The workers are started by the first request; their
+	 * number is taken from <tt>UserKernel.ioWorkers</tt>.
+	 * 
+	 * @param request the request to run.
+	 */
+	static void submitIO(Runnable request) {
+		if (ioQueue == null) {
+			ioQueue = new SynchList();
+
+			int numWorkers = Config.getInteger("UserKernel.ioWorkers", 4);
+			for (int i = 0; i < numWorkers; i++) {
+				new KThread(new Runnable() {
+					public void run() {
+						while (true)
+							((Runnable) ioQueue.removeFirst()).run();
+					}
+				}).setName("I/O worker " + i).fork();
+			}
+		}
+
+		ioQueue.add(request);
+	}
+
 	/**
 	 * The exception handler. This handler is called by the processor whenever a
 	 * user instruction causes a processor exception.
@@ -86,7 +218,8 @@ public class UserKernel extends ThreadedKernel {
 	/**
 	 * Start running user programs, by creating a process and running a shell
 	 * program in it. The name of the shell program it must run is returned by
-	 * <tt>Machine.getShellProgramName()</tt>.
+	 * <tt>Machine.getShellProgramName()</tt>. If the machine was restored from
+	 * a checkpoint, the process saved in the checkpoint is resumed instead.
 	 * 
 	 * @see nachos.machine.Machine#getShellProgramName
 	 */
@@ -95,22 +228,54 @@ public class UserKernel extends ThreadedKernel {
 
 		UserProcess process = UserProcess.newUserProcess();
 
-		String shellProgram = Machine.getShellProgramName();
-		Lib.assertTrue(process.execute(shellProgram, new String[] {}));
+		MachineState checkpoint = Machine.getCheckpoint();
+		if (checkpoint != null) {
+			Lib.assertTrue(process.resume(checkpoint),
+					"cannot resume checkpointed process");
+		}
+		else {
+			String shellProgram = Machine.getShellProgramName();
+			Lib.assertTrue(process.execute(shellProgram, new String[] {}));
+		}
 
 		KThread.currentThread().finish();
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Terminate this kernel, after sending any console output still buffered.
+	 * Never returns.
 	 */
 	public void terminate() {
+		console.flush();
+
+		if (profiler != null)
+			profiler.print();
+
 		super.terminate();
 	}
 
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/**
+	 * Protects the process table and the parent/child links between processes.
+	 */
+	static Lock processLock;
+
+	private static HashMap<Integer, UserProcess> processTable;
+
+	private static int nextProcessID = 0;
+
+	/** The user program profiler, if <tt>Profiler.interval</tt> is set. */
+	static Profiler profiler = null;
+
+	/** Requests waiting for an I/O worker, created with the first one. */
+	private static SynchList ioQueue = null;
+
+	private static Lock pageLock;
+
+	private static LinkedList<Integer> freePages;
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 }
@@ -4,7 +4,14 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
 
 /**
  * Encapsulates the state of a user process that is not contained in its user
@@ -23,10 +30,16 @@ public class UserProcess {
 	 * Allocate a new process.
 	 */
 	public UserProcess() {
-		int numPhysPages = Machine.processor().getNumPhysPages();
-		pageTable = new TranslationEntry[numPhysPages];
-		for (int i = 0; i < numPhysPages; i++)
-			pageTable[i] = new TranslationEntry(i, i, true, false, false, false);
+		fileTable[fdStandardInput] = UserKernel.console.openForReading();
+		fileTable[fdStandardOutput] = UserKernel.console.openForWriting();
+
+		UserKernel.processLock.acquire();
+		processID = UserKernel.registerProcess(this);
+		childExited = new Condition(UserKernel.processLock);
+		UserKernel.processLock.release();
+
+		ioLock = new Lock();
+		ioCompleted = new Condition(ioLock);
 	}
 
 	/**
@@ -49,14 +62,143 @@ public class UserProcess {
 	 * @return <tt>true</tt> if the program was successfully executed.
 	 */
 	public boolean execute(String name, String[] args) {
-		if (!load(name, args))
+		if (!load(name, args)) {
+			closeFiles();
+
+			UserKernel.processLock.acquire();
+			UserKernel.unregisterProcess(processID);
+			UserKernel.processLock.release();
 			return false;
+		}
 
 		new UThread(this).setName(name).fork();
 
 		return true;
 	}
 
+	/**
+	 * Resume the process saved in a checkpoint by <tt>checkpoint()</tt>. The
+	 * machine has already restored main memory; this reclaims the process's
+	 * pages, reopens its program and files, and forks a thread that continues
+	 * from the saved registers, with <tt>checkpoint()</tt> returning 1.
+	 * 
+	 * @param checkpoint the checkpoint the machine was restored from.
+	 * @return <tt>true</tt> if the process was successfully resumed.
+	 */
+	public boolean resume(MachineState checkpoint) {
+		if (checkpoint.getKernelState() == null || !restore(checkpoint)) {
+			UserKernel.processLock.acquire();
+			UserKernel.unregisterProcess(processID);
+			UserKernel.processLock.release();
+			return false;
+		}
+
+		resumeRegisters = checkpoint.getRegisters();
+
+		new UThread(this).setName(programName).fork();
+
+		return true;
+	}
+
+	/**
+	 * Restore this process's program, page table and files from the kernel
+	 * state saved by <tt>handleCheckpoint()</tt>. On failure, whatever had
+	 * already been reclaimed is released again: the program is closed, the
+	 * reserved pages are freed and the reopened files are closed.
+	 */
+	private boolean restore(MachineState checkpoint) {
+		if (reclaim(checkpoint))
+			return true;
+
+		unloadSections();
+		closeFiles();
+		if (coff != null) {
+			coff.close();
+			coff = null;
+		}
+		symbols = null;
+
+		return false;
+	}
+
+	private boolean reclaim(MachineState checkpoint) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				checkpoint.getKernelState()));
+
+		try {
+			programName = in.readUTF();
+
+			OpenFile executable = ThreadedKernel.fileSystem.open(programName,
+					false);
+			if (executable == null) {
+				Lib.debug(dbgProcess, "\topen failed");
+				return false;
+			}
+
+			try {
+				coff = new Coff(executable);
+			}
+			catch (EOFException e) {
+				executable.close();
+				Lib.debug(dbgProcess, "\tcoff load failed");
+				return false;
+			}
+
+			if (UserKernel.profiler != null)
+				symbols = coff.getSymbolTable();
+
+			numPages = in.readInt();
+			pageTable = new TranslationEntry[numPages];
+			for (int vpn = 0; vpn < numPages; vpn++) {
+				TranslationEntry entry = new TranslationEntry(vpn,
+						in.readInt(), in.readBoolean(), in.readBoolean(),
+						in.readBoolean(), in.readBoolean());
+
+				if (entry.valid && !UserKernel.reservePage(entry.ppn)) {
+					Lib.debug(dbgProcess, "\tpage " + entry.ppn + " in use");
+					return false;
+				}
+				pageTable[vpn] = entry;
+			}
+
+			int numFiles = in.readInt();
+			for (int fd = 0; fd < numFiles && fd < fileTable.length; fd++) {
+				byte kind = in.readByte();
+
+				if (kind == fileNamed) {
+					String name = in.readUTF();
+					int position = in.readInt();
+
+					fileTable[fd] = ThreadedKernel.fileSystem.open(name, false);
+					if (fileTable[fd] == null) {
+						Lib.debug(dbgProcess, "\tcannot reopen " + name);
+						return false;
+					}
+					fileTable[fd].seek(position);
+				}
+				else if (kind == fileClosed && fileTable[fd] != null) {
+					fileTable[fd].close();
+					fileTable[fd] = null;
+				}
+			}
+		}
+		catch (IOException e) {
+			Lib.debug(dbgProcess, "\tbad checkpoint: " + e);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Return the process ID assigned to this process by the kernel.
+	 * 
+	 * @return the process ID of this process.
+	 */
+	public int getProcessID() {
+		return processID;
+	}
+
 	/**
 	 * Save the state of this process in preparation for a context switch.
 	 * Called by <tt>UThread.saveState()</tt>.
@@ -127,19 +269,7 @@ public class UserProcess {
 	 * @return the number of bytes successfully transferred.
 	 */
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0
-				&& offset + length <= data.length);
-
-		byte[] memory = Machine.processor().getMemory();
-
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
-
-		int amount = Math.min(length, memory.length - vaddr);
-		System.arraycopy(memory, vaddr, data, offset, amount);
-
-		return amount;
+		return transferVirtualMemory(vaddr, data, offset, length, false);
 	}
 
 	/**
@@ -169,17 +299,58 @@ public class UserProcess {
 	 * @return the number of bytes successfully transferred.
 	 */
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+		return transferVirtualMemory(vaddr, data, offset, length, true);
+	}
+
+	/**
+	 * Copy data between this process's virtual memory and the specified array,
+	 * one page at a time. Stops at the first page that is not mapped, or at the
+	 * first read-only page when writing.
+	 * 
+	 * @param vaddr the first byte of virtual memory to transfer.
+	 * @param data the array to transfer to or from.
+	 * @param offset the first byte of the array to transfer.
+	 * @param length the number of bytes to transfer.
+	 * @param writing <tt>true</tt> to copy from the array into virtual memory.
+	 * @return the number of bytes successfully transferred.
+	 */
+	private int transferVirtualMemory(int vaddr, byte[] data, int offset,
+			int length, boolean writing) {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
 		byte[] memory = Machine.processor().getMemory();
 
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
+		if (vaddr < 0 || pageTable == null)
 			return 0;
 
-		int amount = Math.min(length, memory.length - vaddr);
-		System.arraycopy(data, offset, memory, vaddr, amount);
+		int amount = 0;
+
+		while (amount < length) {
+			int vpn = Processor.pageFromAddress(vaddr + amount);
+			int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+
+			if (vpn >= pageTable.length)
+				break;
+
+			TranslationEntry entry = pageTable[vpn];
+			if (entry == null || !entry.valid || (writing && entry.readOnly))
+				break;
+
+			int paddr = entry.ppn * pageSize + pageOffset;
+			int chunk = Math.min(length - amount, pageSize - pageOffset);
+
+			if (writing) {
+				System.arraycopy(data, offset + amount, memory, paddr, chunk);
+				entry.dirty = true;
+			}
+			else {
+				System.arraycopy(memory, paddr, data, offset + amount, chunk);
+			}
+			entry.used = true;
+
+			amount += chunk;
+		}
 
 		return amount;
 	}
@@ -197,6 +368,8 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
+		programName = name;
+
 		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
 		if (executable == null) {
 			Lib.debug(dbgProcess, "\topen failed");
@@ -212,6 +385,9 @@ public class UserProcess {
 			return false;
 		}
 
+		if (UserKernel.profiler != null)
+			symbols = coff.getSymbolTable();
+
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
 		for (int s = 0; s < coff.getNumSections(); s++) {
@@ -285,6 +461,20 @@ public class UserProcess {
 			return false;
 		}
 
+		pageTable = new TranslationEntry[numPages];
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			int ppn = UserKernel.allocatePage();
+			if (ppn == -1) {
+				unloadSections();
+				coff.close();
+				Lib.debug(dbgProcess, "\tinsufficient physical memory");
+				return false;
+			}
+
+			pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, false,
+					false);
+		}
+
 		// load sections
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
@@ -295,8 +485,8 @@ public class UserProcess {
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
 
-				// for now, just assume virtual addresses=physical addresses
-				section.loadPage(i, vpn);
+				pageTable[vpn].readOnly = section.isReadOnly();
+				section.loadPage(i, pageTable[vpn].ppn);
 			}
 		}
 
@@ -307,6 +497,16 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		if (pageTable == null)
+			return;
+
+		for (int vpn = 0; vpn < pageTable.length; vpn++) {
+			if (pageTable[vpn] != null && pageTable[vpn].valid)
+				UserKernel.freePage(pageTable[vpn].ppn);
+			pageTable[vpn] = null;
+		}
+
+		pageTable = null;
 	}
 
 	/**
@@ -314,13 +514,22 @@ public class UserProcess {
 	 * program loaded into this process. Set the PC register to point at the
 	 * start function, set the stack pointer register to point at the top of the
 	 * stack, set the A0 and A1 registers to argc and argv, respectively, and
-	 * initialize all other registers to 0.
+	 * initialize all other registers to 0. A process resumed from a checkpoint
+	 * instead gets the registers saved in the checkpoint.
 	 */
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		if (resumeRegisters != null) {
+			for (int i = 0; i < Processor.numUserRegisters; i++)
+				processor.writeRegister(i, resumeRegisters[i]);
+
+			resumeRegisters = null;
+			return;
+		}
+
 		// by default, everything's 0
-		for (int i = 0; i < processor.numUserRegisters; i++)
+		for (int i = 0; i < Processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
 
 		// initialize PC and SP according
@@ -333,20 +542,570 @@ public class UserProcess {
 	}
 
 	/**
-	 * Handle the halt() system call.
+	 * Handle the halt() system call. Only the root process may halt the
+	 * machine.
 	 */
 	private int handleHalt() {
+		if (processID != rootProcessID)
+			return -1;
+
+		Kernel.kernel.terminate();
+
+		Lib.assertNotReached("Kernel.terminate() did not halt machine!");
+		return 0;
+	}
 
-		Machine.halt();
+	/**
+	 * Handle the exit() system call.
+	 */
+	private int handleExit(int status) {
+		terminate(Integer.valueOf(status));
 
-		Lib.assertNotReached("Machine.halt() did not halt machine!");
+		Lib.assertNotReached();
 		return 0;
 	}
 
+	/**
+	 * Handle the exec() system call. Loads the named executable into a new
+	 * child process and forks a <tt>UThread</tt> to run it.
+	 */
+	private int handleExec(int nameVaddr, int argc, int argvVaddr) {
+		String name = readVirtualMemoryString(nameVaddr, maxStringLength);
+		if (name == null || !name.endsWith(".coff") || argc < 0
+				|| argc > maxExecArguments)
+			return -1;
+
+		String[] args = new String[argc];
+		byte[] pointer = new byte[4];
+		for (int i = 0; i < argc; i++) {
+			if (readVirtualMemory(argvVaddr + i * 4, pointer) != 4)
+				return -1;
+
+			args[i] = readVirtualMemoryString(Lib.bytesToInt(pointer, 0),
+					maxStringLength);
+			if (args[i] == null)
+				return -1;
+		}
+
+		UserProcess child = newUserProcess();
+
+		UserKernel.processLock.acquire();
+		child.parent = this;
+		children.put(child.processID, child);
+		UserKernel.processLock.release();
+
+		if (!child.execute(name, args)) {
+			UserKernel.processLock.acquire();
+			children.remove(child.processID);
+			UserKernel.processLock.release();
+			return -1;
+		}
+
+		return child.processID;
+	}
+
+	/**
+	 * Handle the join() system call. Blocks until the specified child exits,
+	 * then delivers its exit status. Returns 1 if the child exited normally, 0
+	 * if it was killed by an unhandled exception, and -1 if the process ID
+	 * does not refer to an unjoined child of this process.
+	 */
+	private int handleJoin(int processID, int statusVaddr) {
+		UserKernel.processLock.acquire();
+
+		if (!children.containsKey(processID)
+				&& !exitStatuses.containsKey(processID)) {
+			UserKernel.processLock.release();
+			return -1;
+		}
+
+		while (children.containsKey(processID))
+			childExited.sleep();
+
+		Integer status = exitStatuses.remove(processID);
+
+		UserKernel.processLock.release();
+
+		if (status == null)
+			return 0;
+
+		writeVirtualMemory(statusVaddr, Lib.bytesFromInt(status.intValue()));
+		return 1;
+	}
+
+	/**
+	 * Handle the creat() and open() system calls.
+	 */
+	private int handleOpen(int nameVaddr, boolean create) {
+		String name = readVirtualMemoryString(nameVaddr, maxStringLength);
+		if (name == null)
+			return -1;
+
+		int fd = findFreeFileDescriptor();
+		if (fd == -1)
+			return -1;
+
+		OpenFile file = ThreadedKernel.fileSystem.open(name, create);
+		if (file == null)
+			return -1;
+
+		fileTable[fd] = file;
+		return fd;
+	}
+
+	/**
+	 * Handle the read() system call.
+	 */
+	private int handleRead(int fd, int bufferVaddr, int count) {
+		OpenFile file = getOpenFile(fd);
+		if (file == null || count < 0)
+			return -1;
+
+		byte[] buffer = new byte[Math.min(count, pageSize)];
+		int total = 0;
+
+		while (total < count) {
+			int amount = file.read(buffer, 0, Math.min(count - total,
+					buffer.length));
+			if (amount == -1)
+				return (total == 0) ? -1 : total;
+
+			int written = writeVirtualMemory(bufferVaddr + total, buffer, 0,
+					amount);
+			if (written < amount)
+				return -1;
+
+			total += amount;
+			if (amount < buffer.length)
+				break;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Handle the write() system call.
+	 */
+	private int handleWrite(int fd, int bufferVaddr, int count) {
+		OpenFile file = getOpenFile(fd);
+		if (file == null || count < 0)
+			return -1;
+
+		byte[] buffer = new byte[Math.min(count, pageSize)];
+		int total = 0;
+
+		while (total < count) {
+			int amount = readVirtualMemory(bufferVaddr + total, buffer, 0,
+					Math.min(count - total, buffer.length));
+			if (amount == 0)
+				return -1;
+
+			if (file.write(buffer, 0, amount) != amount)
+				return -1;
+
+			total += amount;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Handle the close() system call. Waits for the asynchronous requests
+	 * still using the file, so that a worker never uses a closed file.
+	 */
+	private int handleClose(int fd) {
+		OpenFile file = getOpenFile(fd);
+		if (file == null)
+			return -1;
+
+		ioLock.acquire();
+		while (ioOutstandingOnFile[fd] > 0)
+			ioCompleted.sleep();
+		ioLock.release();
+
+		fileTable[fd] = null;
+		file.close();
+		return 0;
+	}
+
+	/**
+	 * Handle the unlink() system call.
+	 */
+	private int handleUnlink(int nameVaddr) {
+		String name = readVirtualMemoryString(nameVaddr, maxStringLength);
+		if (name == null)
+			return -1;
+
+		return ThreadedKernel.fileSystem.remove(name) ? 0 : -1;
+	}
+
+	/**
+	 * Handle the submit() system call. Reads <i>count</i> request records from
+	 * user memory and hands each to the kernel's I/O workers. The data of a
+	 * write is copied when the request is submitted; the data of a read is
+	 * copied out when it completes. A request that cannot be started completes
+	 * at once with a result of -1. Returns the number of requests accepted,
+	 * which is less than <i>count</i> if too many are already outstanding.
+	 */
+	private int handleSubmit(int requestsVaddr, int count) {
+		if (count < 0)
+			return -1;
+
+		byte[] record = new byte[ioRequestSize];
+		int submitted;
+
+		for (submitted = 0; submitted < count; submitted++) {
+			if (readVirtualMemory(requestsVaddr + submitted * ioRequestSize,
+					record) != ioRequestSize)
+				return (submitted == 0) ? -1 : submitted;
+
+			ioLock.acquire();
+			if (ioOutstanding + ioCompletions.size() == maxAsyncRequests) {
+				ioLock.release();
+				break;
+			}
+			ioOutstanding++;
+			ioLock.release();
+
+			AsyncRequest request = new AsyncRequest(record);
+
+			if (!request.prepare())
+				request.complete(-1);
+			else
+				UserKernel.submitIO(request);
+		}
+
+		return submitted;
+	}
+
+	/**
+	 * Handle the reap() system call. Waits until at least <i>minimum</i>
+	 * requests have completed, or none are outstanding, then copies up to
+	 * <i>count</i> completion records to user memory. Returns the number of
+	 * records copied.
+	 */
+	private int handleReap(int completionsVaddr, int count, int minimum) {
+		if (count < 0 || minimum < 0 || minimum > count)
+			return -1;
+
+		ioLock.acquire();
+
+		while (ioCompletions.size() < minimum && ioOutstanding > 0)
+			ioCompleted.sleep();
+
+		int reaped = 0;
+		byte[] record = new byte[ioCompletionSize];
+
+		while (reaped < count && !ioCompletions.isEmpty()) {
+			int[] completion = ioCompletions.getFirst();
+			Lib.bytesFromInt(record, 0, completion[0]);
+			Lib.bytesFromInt(record, 4, completion[1]);
+
+			if (writeVirtualMemory(completionsVaddr + reaped * ioCompletionSize,
+					record) != ioCompletionSize) {
+				ioLock.release();
+				return (reaped == 0) ? -1 : reaped;
+			}
+
+			ioCompletions.removeFirst();
+			reaped++;
+		}
+
+		ioLock.release();
+
+		return reaped;
+	}
+
+	/**
+	 * Handle the checkpoint() system call. Writes the state of the machine
+	 * and of this process to the named file, so that a later run with
+	 * <tt>Machine.checkpoint</tt> set to that file resumes this process just
+	 * after the syscall. Only possible in a machine without a TLB, when this
+	 * is the only process and it has no asynchronous I/O in progress. Returns
+	 * 0 after saving the checkpoint, and 1 when resumed from it.
+	 */
+	private int handleCheckpoint(int nameVaddr) {
+		String name = readVirtualMemoryString(nameVaddr, maxStringLength);
+		if (name == null || Machine.processor().hasTLB())
+			return -1;
+
+		UserKernel.processLock.acquire();
+		boolean alone = UserKernel.numProcesses() == 1;
+		UserKernel.processLock.release();
+
+		ioLock.acquire();
+		boolean idle = ioOutstanding == 0 && ioCompletions.isEmpty();
+		ioLock.release();
+
+		if (!alone || !idle)
+			return -1;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		try {
+			out.writeUTF(programName);
+
+			out.writeInt(pageTable.length);
+			for (int vpn = 0; vpn < pageTable.length; vpn++) {
+				TranslationEntry entry = pageTable[vpn];
+				out.writeInt(entry.ppn);
+				out.writeBoolean(entry.valid);
+				out.writeBoolean(entry.readOnly);
+				out.writeBoolean(entry.used);
+				out.writeBoolean(entry.dirty);
+			}
+
+			out.writeInt(fileTable.length);
+			for (int fd = 0; fd < fileTable.length; fd++) {
+				OpenFile file = fileTable[fd];
+
+				if (file == null) {
+					out.writeByte(fileClosed);
+				}
+				else if (file.getFileSystem() == ThreadedKernel.fileSystem) {
+					out.writeByte(fileNamed);
+					out.writeUTF(file.getName());
+					out.writeInt(file.tell());
+				}
+				else if (file.getFileSystem() == null
+						&& (fd == fdStandardInput || fd == fdStandardOutput)) {
+					out.writeByte(fileConsole);
+				}
+				else {
+					return -1;
+				}
+			}
+
+			out.close();
+		}
+		catch (IOException e) {
+			Lib.assertNotReached();
+		}
+
+		MachineState checkpoint = MachineState.capture();
+		checkpoint.setKernelState(bytes.toByteArray());
+
+		// resume after the syscall, as advancePC() would, returning 1
+		int[] registers = checkpoint.getRegisters();
+		registers[Processor.regV0] = 1;
+		registers[Processor.regPC] = registers[Processor.regNextPC];
+		registers[Processor.regNextPC] += 4;
+
+		OpenFile file = ThreadedKernel.fileSystem.open(name, true);
+		if (file == null)
+			return -1;
+
+		byte[] data = checkpoint.toBytes();
+		int written = file.write(data, 0, data.length);
+		file.close();
+
+		Lib.debug(dbgProcess, "checkpoint: " + data.length + " bytes to "
+				+ name);
+
+		return (written == data.length) ? 0 : -1;
+	}
+
+	/**
+	 * An asynchronous read or write submitted by this process, run by one of
+	 * the kernel's I/O worker threads.
+	 */
+	private class AsyncRequest implements Runnable {
+		AsyncRequest(byte[] record) {
+			opcode = Lib.bytesToInt(record, 0);
+			fd = Lib.bytesToInt(record, 4);
+			file = getOpenFile(fd);
+			bufferVaddr = Lib.bytesToInt(record, 8);
+			length = Lib.bytesToInt(record, 12);
+			offset = Lib.bytesToInt(record, 16);
+			tag = Lib.bytesToInt(record, 20);
+		}
+
+		/**
+		 * Check the request and copy in the data of a write. A write must fit
+		 * in the address space, which bounds the copy; a read is copied out a
+		 * page at a time as it runs. A request that can be started holds its
+		 * file open until it completes.
+		 * 
+		 * @return <tt>true</tt> if the request can be started.
+		 */
+		boolean prepare() {
+			if (file == null || length < 0 || offset < -1
+					|| (opcode != ioRead && opcode != ioWrite))
+				return false;
+
+			if (opcode == ioWrite) {
+				if (length > numPages * pageSize)
+					return false;
+
+				data = new byte[length];
+				if (readVirtualMemory(bufferVaddr, data) != length)
+					return false;
+			}
+
+			ioLock.acquire();
+			ioOutstandingOnFile[fd]++;
+			ioLock.release();
+
+			holdsFile = true;
+			return true;
+		}
+
+		public void run() {
+			int result;
+
+			if (opcode == ioWrite) {
+				if (offset == -1)
+					result = file.write(data, 0, length);
+				else
+					result = file.write(offset, data, 0, length);
+			}
+			else {
+				result = read();
+			}
+
+			complete(result);
+		}
+
+		/**
+		 * Read into the request's buffer a page at a time, as
+		 * <tt>handleRead()</tt> does.
+		 */
+		private int read() {
+			byte[] buffer = new byte[Math.min(length, pageSize)];
+			int total = 0;
+
+			while (total < length) {
+				int count = Math.min(length - total, buffer.length);
+				int amount = (offset == -1) ? file.read(buffer, 0, count)
+						: file.read(offset + total, buffer, 0, count);
+				if (amount == -1)
+					return (total == 0) ? -1 : total;
+
+				int written = writeVirtualMemory(bufferVaddr + total, buffer, 0,
+						amount);
+				if (written < amount)
+					return -1;
+
+				total += amount;
+				if (amount < count)
+					break;
+			}
+
+			return total;
+		}
+
+		/**
+		 * Post this request's completion record and wake any thread waiting in
+		 * <tt>reap()</tt>.
+		 */
+		void complete(int result) {
+			ioLock.acquire();
+			ioCompletions.add(new int[] { tag, result });
+			ioOutstanding--;
+			if (holdsFile)
+				ioOutstandingOnFile[fd]--;
+			ioCompleted.wakeAll();
+			ioLock.release();
+		}
+
+		private int opcode, fd, bufferVaddr, length, offset, tag;
+
+		private OpenFile file;
+
+		private boolean holdsFile = false;
+
+		private byte[] data;
+	}
+
+	/**
+	 * Return the file open on the specified file descriptor.
+	 * 
+	 * @param fd the file descriptor.
+	 * @return the open file, or <tt>null</tt> if the descriptor is not in use.
+	 */
+	protected OpenFile getOpenFile(int fd) {
+		if (fd < 0 || fd >= fileTable.length)
+			return null;
+
+		return fileTable[fd];
+	}
+
+	/**
+	 * Return the lowest file descriptor not currently in use.
+	 * 
+	 * @return a free file descriptor, or -1 if the file table is full.
+	 */
+	protected int findFreeFileDescriptor() {
+		for (int fd = 0; fd < fileTable.length; fd++) {
+			if (fileTable[fd] == null)
+				return fd;
+		}
+
+		return -1;
+	}
+
+	private void closeFiles() {
+		for (int fd = 0; fd < fileTable.length; fd++) {
+			if (fileTable[fd] != null) {
+				fileTable[fd].close();
+				fileTable[fd] = null;
+			}
+		}
+	}
+
+	/**
+	 * Terminate this process, which must be the current process. Releases its
+	 * file descriptors and physical memory, hands its exit status to its
+	 * parent, and finishes the current thread. Once a process has exited, its
+	 * parent retains only the exit status; everything else can be reclaimed.
+	 * If this is the last process in the system, the kernel is terminated.
+	 * 
+	 * @param status the exit status, or <tt>null</tt> if the process was
+	 * killed by an unhandled exception.
+	 */
+	protected void terminate(Integer status) {
+		Lib.assertTrue(UserKernel.currentProcess() == this);
+
+		// the I/O workers may still be using this process's memory and files
+		ioLock.acquire();
+		while (ioOutstanding > 0)
+			ioCompleted.sleep();
+		ioLock.release();
+
+		closeFiles();
+		unloadSections();
+		coff.close();
+
+		UserKernel.processLock.acquire();
+
+		for (UserProcess child : children.values())
+			child.parent = null;
+		children.clear();
+		exitStatuses.clear();
+
+		if (parent != null) {
+			parent.children.remove(processID);
+			parent.exitStatuses.put(processID, status);
+			parent.childExited.wakeAll();
+			parent = null;
+		}
+
+		boolean last = UserKernel.unregisterProcess(processID);
+
+		UserKernel.processLock.release();
+
+		if (last)
+			Kernel.kernel.terminate();
+
+		KThread.finish();
+	}
+
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallSubmit = 13, syscallReap = 14,
+			syscallCheckpoint = 15;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -400,6 +1159,20 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  submit(struct io_request *requests, int count);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  reap(struct io_completion *completions, int count,
+	 * 								int minimum);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int  checkpoint(char *name);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -413,10 +1186,34 @@ public class UserProcess {
 		switch (syscall) {
 		case syscallHalt:
 			return handleHalt();
+		case syscallExit:
+			return handleExit(a0);
+		case syscallExec:
+			return handleExec(a0, a1, a2);
+		case syscallJoin:
+			return handleJoin(a0, a1);
+		case syscallCreate:
+			return handleOpen(a0, true);
+		case syscallOpen:
+			return handleOpen(a0, false);
+		case syscallRead:
+			return handleRead(a0, a1, a2);
+		case syscallWrite:
+			return handleWrite(a0, a1, a2);
+		case syscallClose:
+			return handleClose(a0);
+		case syscallUnlink:
+			return handleUnlink(a0);
+		case syscallSubmit:
+			return handleSubmit(a0, a1);
+		case syscallReap:
+			return handleReap(a0, a1, a2);
+		case syscallCheckpoint:
+			return handleCheckpoint(a0);
 
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
-			Lib.assertNotReached("Unknown system call!");
+			terminate(null);
 		}
 		return 0;
 	}
@@ -430,28 +1227,53 @@ public class UserProcess {
 	 */
 	public void handleException(int cause) {
 		Processor processor = Machine.processor();
+		boolean measuring = Metrics.enabled();
+
+		if (measuring && (cause == Processor.exceptionPageFault
+				|| cause == Processor.exceptionTLBMiss)) {
+			if (pageFaults == null)
+				pageFaults = Metrics.counter("process." + processID
+						+ ".pageFaults");
+			pageFaults.add(1);
+		}
 
 		switch (cause) {
 		case Processor.exceptionSyscall:
-			int result = handleSyscall(processor.readRegister(Processor.regV0),
+			int syscall = processor.readRegister(Processor.regV0);
+			long startTime = measuring ? Machine.timer().getTime() : 0;
+			long startNanos = measuring ? System.nanoTime() : 0;
+
+			int result = handleSyscall(syscall,
 					processor.readRegister(Processor.regA0),
 					processor.readRegister(Processor.regA1),
 					processor.readRegister(Processor.regA2),
 					processor.readRegister(Processor.regA3));
 			processor.writeRegister(Processor.regV0, result);
 			processor.advancePC();
+
+			if (measuring && syscall >= 0
+					&& syscall < syscallLatency.length) {
+				if (syscallLatency[syscall] == null)
+					syscallLatency[syscall] = Metrics.histogram("syscall."
+							+ syscall + ".latency");
+				syscallLatency[syscall].addSample(Machine.timer().getTime()
+						- startTime, System.nanoTime() - startNanos);
+			}
 			break;
 
 		default:
 			Lib.debug(dbgProcess, "Unexpected exception: "
 					+ Processor.exceptionNames[cause]);
-			Lib.assertNotReached("Unexpected exception");
+			terminate(null);
 		}
 	}
 
 	/** The program being run by this process. */
 	protected Coff coff;
 
+	/** The procedures of the program, loaded only when profiling. */
+	CoffSymbolTable symbols = null;
+
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
 
@@ -461,10 +1283,79 @@ public class UserProcess {
 	/** The number of pages in the program's stack. */
 	protected final int stackPages = 8;
 
+	/** The name of the executable, as passed to <tt>load()</tt>. */
+	private String programName;
+
 	private int initialPC, initialSP;
 
+	/** The registers saved in a checkpoint, until the process first runs. */
+	private int[] resumeRegisters = null;
+
 	private int argc, argv;
 
+	/** This process's open files, indexed by file descriptor. */
+	protected OpenFile[] fileTable = new OpenFile[maxOpenFiles];
+
+	private int processID;
+
+	/** The number of page faults and TLB misses this process has taken. */
+	private Metrics.Counter pageFaults = null;
+
+	/** The latency of each syscall, indexed by syscall number. */
+	private static Metrics.Histogram[] syscallLatency = new Metrics.Histogram[32];
+
+	/** The parent of this process, or <tt>null</tt> if it has none. */
+	private UserProcess parent = null;
+
+	/** Children of this process that are still running. */
+	private HashMap<Integer, UserProcess> children = new HashMap<Integer, UserProcess>();
+
+	/**
+	 * Exit statuses of children that have exited but not yet been joined. A
+	 * <tt>null</tt> status means the child was killed.
+	 */
+	private HashMap<Integer, Integer> exitStatuses = new HashMap<Integer, Integer>();
+
+	/** Signalled whenever a child of this process exits. */
+	private Condition childExited;
+
+	/** Protects the state of this process's asynchronous I/O requests. */
+	private Lock ioLock;
+
+	/** Signalled whenever one of this process's I/O requests completes. */
+	private Condition ioCompleted;
+
+	/** The number of requests submitted but not yet completed. */
+	private int ioOutstanding = 0;
+
+	/** The number of those requests using each file descriptor. */
+	private int[] ioOutstandingOnFile = new int[maxOpenFiles];
+
+	/** Completed requests not yet reaped, each a tag and a result. */
+	private LinkedList<int[]> ioCompletions = new LinkedList<int[]>();
+
+	private static final int rootProcessID = 0;
+
+	private static final int maxOpenFiles = 16;
+
+	private static final int maxStringLength = 256;
+
+	/** The most arguments exec() accepts: a page's worth of pointers. */
+	private static final int maxExecArguments = Processor.pageSize / 4;
+
+	private static final int fdStandardInput = 0, fdStandardOutput = 1;
+
+	private static final int ioRead = 0, ioWrite = 1;
+
+	/** How each file descriptor is saved in a checkpoint. */
+	private static final byte fileClosed = 0, fileConsole = 1, fileNamed = 2;
+
+	/** The sizes of <tt>struct io_request</tt> and <tt>io_completion</tt>. */
+	private static final int ioRequestSize = 24, ioCompletionSize = 8;
+
+	/** The most requests a process may have outstanding or unreaped. */
+	private static final int maxAsyncRequests = 64;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';